@@ -0,0 +1,21 @@
+package com.superestos;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs JMH with the GC profiler unless another profiler was asked for, so
+ * allocation regressions show up next to the timings.
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+        if (!options.contains("-prof")) {
+            options.add("-prof");
+            options.add("gc");
+        }
+
+        org.openjdk.jmh.Main.main(options.toArray(new String[0]));
+    }
+}
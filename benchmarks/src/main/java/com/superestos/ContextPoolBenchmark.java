@@ -0,0 +1,36 @@
+package com.superestos;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Whole programs through the embedding API: one Program and one
+ * ContextPool shared by every benchmark thread, as in a service running
+ * the same script for many requests at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(Threads.MAX)
+public class ContextPoolBenchmark {
+    @Param({"fib", "loops", "strings", "blocks"})
+    public String workload;
+
+    private Program program;
+    private ContextPool pool;
+
+    @Setup
+    public void setup() throws LoxException {
+        program = Program.compile(Workloads.source(workload));
+        pool = new ContextPool();
+    }
+
+    @Benchmark
+    public String run() throws LoxException {
+        return pool.run(program);
+    }
+}
@@ -0,0 +1,50 @@
+package com.superestos;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Variable lookups on their own: a local 'depth' frames up the chain, and a
+ * global through its slot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnvironmentBenchmark {
+    @Param({"0", "1", "4", "16"})
+    public int depth;
+
+    private Environment innermost;
+    private Environment globals;
+    private Token name;
+    private int globalSlot;
+
+    @Setup
+    public void setup() {
+        GlobalSlots globalSlots = new GlobalSlots();
+        name = new Token(TokenType.IDENTIFIER, "value", null, 1);
+        globalSlot = globalSlots.slot(name.lexeme());
+        globals = new Environment(globalSlots);
+        globals.define(name, 1.0);
+
+        innermost = new Environment(globals, 4);
+        innermost.slots[2] = 1.0;
+        for (int i = 0; i < depth; i++) {
+            innermost = new Environment(innermost, 4);
+        }
+    }
+
+    @Benchmark
+    public Object getLocal() {
+        return innermost.getAt(depth, 2);
+    }
+
+    @Benchmark
+    public Object getGlobal() {
+        return globals.get(globalSlot, name);
+    }
+}
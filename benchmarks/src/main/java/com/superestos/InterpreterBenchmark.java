@@ -0,0 +1,38 @@
+package com.superestos;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Whole programs through Interpreter.interpret. The program is parsed and
+ * resolved once; each invocation runs it on a fresh interpreter, so globals
+ * start out empty every time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InterpreterBenchmark {
+    @Param({"fib", "loops", "strings", "blocks", "sumLoop", "sumParallel", "math", "arrays", "maps", "classes"})
+    public String workload;
+
+    private Program program;
+
+    @Setup
+    public void setup() {
+        program = Workloads.compile(Workloads.source(workload));
+    }
+
+    @Benchmark
+    public Interpreter interpret() {
+        Interpreter interpreter = new Interpreter(program.globalSlots);
+        interpreter.interpret(program.statements);
+        if (Main.reporter.hadRuntimeError) {
+            throw new IllegalStateException("Workload failed.");
+        }
+        return interpreter;
+    }
+}
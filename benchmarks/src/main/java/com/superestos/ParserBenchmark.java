@@ -0,0 +1,27 @@
+package com.superestos;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+    private List<Token> tokens;
+
+    @Setup
+    public void setup() {
+        String source = Workloads.FIB + Workloads.LOOPS + Workloads.STRINGS + Workloads.BLOCKS;
+        tokens = new Scanner(source, Main.reporter).scanTokens();
+    }
+
+    @Benchmark
+    public List<Statement> parse() {
+        return new Parser(tokens, Main.reporter).parse();
+    }
+}
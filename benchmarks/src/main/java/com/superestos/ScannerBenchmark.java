@@ -0,0 +1,26 @@
+package com.superestos;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScannerBenchmark {
+    private String source;
+
+    @Setup
+    public void setup() {
+        source = Workloads.FIB + Workloads.LOOPS + Workloads.STRINGS + Workloads.BLOCKS;
+    }
+
+    @Benchmark
+    public List<Token> scanTokens() {
+        return new Scanner(source, Main.reporter).scanTokens();
+    }
+}
@@ -0,0 +1,159 @@
+package com.superestos;
+
+/**
+ * Lox programs the benchmarks run. They keep their results in globals
+ * rather than printing them, so the benchmark output stays readable.
+ */
+class Workloads {
+    static final String FIB =
+            "fun fib(n) {\n" +
+            "    if (n < 2) return n;\n" +
+            "    return fib(n - 1) + fib(n - 2);\n" +
+            "}\n" +
+            "var result = fib(20);\n";
+
+    static final String LOOPS =
+            "var sum = 0;\n" +
+            "var i = 0;\n" +
+            "while (i < 300) {\n" +
+            "    var j = 0;\n" +
+            "    while (j < 300) {\n" +
+            "        sum = sum + i * j;\n" +
+            "        j = j + 1;\n" +
+            "    }\n" +
+            "    i = i + 1;\n" +
+            "}\n";
+
+    static final String STRINGS =
+            "var text = \"\";\n" +
+            "var i = 0;\n" +
+            "while (i < 1000) {\n" +
+            "    text = text + \"lox\";\n" +
+            "    i = i + 1;\n" +
+            "}\n";
+
+    static final String BLOCKS = blocks(32);
+
+    // The same sum, once in a loop and once with parallelMap. 'one' is a
+    // global variable so fib isn't memoized, only isolated.
+    static final String SUM_LOOP =
+            "var one = 1;\n" +
+            "fun fib(n) {\n" +
+            "    if (n < 2) return n;\n" +
+            "    return fib(n - one) + fib(n - 2);\n" +
+            "}\n" +
+            "var sum = 0;\n" +
+            "var i = 0;\n" +
+            "while (i < 64) {\n" +
+            "    sum = sum + fib(15);\n" +
+            "    i = i + 1;\n" +
+            "}\n";
+
+    static final String SUM_PARALLEL =
+            "var one = 1;\n" +
+            "fun fib(n) {\n" +
+            "    if (n < 2) return n;\n" +
+            "    return fib(n - one) + fib(n - 2);\n" +
+            "}\n" +
+            "fun term(i) { return fib(15); }\n" +
+            "fun add(a, b) { return a + b; }\n" +
+            "var sum = parallelMap(range(0, 64), term, add);\n";
+
+    static final String MATH =
+            "var total = 0;\n" +
+            "var i = 0;\n" +
+            "while (i < 20000) {\n" +
+            "    total = total + sqrt(i) + floor(i / 3) + abs(-i) + max(i, 5) + length(\"lox\");\n" +
+            "    i = i + 1;\n" +
+            "}\n";
+
+    static final String ARRAYS =
+            "var n = 20000;\n" +
+            "var composite = array(n, 0);\n" +
+            "var primes = array(0, nil);\n" +
+            "var i = 2;\n" +
+            "while (i < n) {\n" +
+            "    if (composite[i] == 0) {\n" +
+            "        push(primes, i);\n" +
+            "        var j = i * i;\n" +
+            "        while (j < n) {\n" +
+            "            composite[j] = 1;\n" +
+            "            j = j + i;\n" +
+            "        }\n" +
+            "    }\n" +
+            "    i = i + 1;\n" +
+            "}\n";
+
+    static final String MAPS =
+            "var counts = map();\n" +
+            "var i = 0;\n" +
+            "while (i < 20000) {\n" +
+            "    var key = floor(i / 7);\n" +
+            "    if (has(counts, key)) counts[key] = counts[key] + 1; else counts[key] = 1;\n" +
+            "    if (i - floor(i / 3) * 3 == 0) remove(counts, floor(i / 5));\n" +
+            "    i = i + 1;\n" +
+            "}\n";
+
+    // Two shapes of Shape, so the sites in the loop see a polymorphic mix.
+    static final String CLASSES =
+            "class Shape {\n" +
+            "    init(size) { this.size = size; }\n" +
+            "    area() { return this.size * this.size; }\n" +
+            "}\n" +
+            "class Circle < Shape {\n" +
+            "    init(size) { super.init(size); this.pi = 3.14159; }\n" +
+            "    area() { return super.area() * this.pi; }\n" +
+            "}\n" +
+            "var total = 0;\n" +
+            "var i = 0;\n" +
+            "while (i < 20000) {\n" +
+            "    var shape = Shape(i);\n" +
+            "    if (i - floor(i / 2) * 2 == 0) shape = Circle(i);\n" +
+            "    total = total + shape.area() + shape.size;\n" +
+            "    i = i + 1;\n" +
+            "}\n";
+
+    static String source(String workload) {
+        switch (workload) {
+            case "fib": return FIB;
+            case "loops": return LOOPS;
+            case "strings": return STRINGS;
+            case "blocks": return BLOCKS;
+            case "sumLoop": return SUM_LOOP;
+            case "sumParallel": return SUM_PARALLEL;
+            case "math": return MATH;
+            case "arrays": return ARRAYS;
+            case "maps": return MAPS;
+            case "classes": return CLASSES;
+            default: throw new IllegalArgumentException("Unknown workload " + workload + ".");
+        }
+    }
+
+    // A loop around blocks nested 'depth' deep, each declaring a local and
+    // reading the ones of all the blocks around it.
+    private static String blocks(int depth) {
+        StringBuilder source = new StringBuilder();
+        source.append("var total = 0;\nvar n = 0;\nwhile (n < 200) {\n");
+        for (int i = 0; i < depth; i++) {
+            source.append("{ var v").append(i).append(" = ").append(i).append(";\n");
+        }
+        source.append("total = total");
+        for (int i = 0; i < depth; i++) {
+            source.append(" + v").append(i);
+        }
+        source.append(";\n");
+        for (int i = 0; i < depth; i++) {
+            source.append("}\n");
+        }
+        source.append("n = n + 1;\n}\n");
+        return source.toString();
+    }
+
+    static Program compile(String source) {
+        try {
+            return Program.compile(source);
+        } catch (LoxException error) {
+            throw new IllegalStateException("Workload doesn't compile.", error);
+        }
+    }
+}
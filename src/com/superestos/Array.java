@@ -0,0 +1,242 @@
+package com.superestos;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Lox array, indexed with 'a[i]' and 'a[i] = value' from 0 up to its
+ * length, and made and resized through natives:
+ *
+ *   array(n, value)  a new array of n elements, each set to value,
+ *   push(a, value)   appends value to a,
+ *   pop(a)           removes the last element of a and returns it.
+ *
+ * length(a) is its number of elements.
+ *
+ * An array only holding numbers keeps them in a double[], so the VM can
+ * read and write its elements straight from and to its number stack
+ * without boxing them. Storing anything else in it copies the elements
+ * into an Object[] once, and the array stays that way. Either grows by
+ * doubling, so push is amortized constant time.
+ *
+ * Arrays compare by identity, like functions. They aren't synchronized;
+ * tasks that share one have to take turns through a channel.
+ */
+final class Array {
+    static final List<Native> NATIVES = List.of(
+            new Native("array", 2, Array::array),
+            new Native("push", 2, Array::push),
+            new Native("pop", 1, Array::pop));
+
+    private static final int MIN_CAPACITY = 8;
+
+    // Exactly one of these is set.
+    private double[] numbers;
+    private Object[] values;
+    private int size;
+
+    Array(int size, Object value) {
+        this.size = size;
+        int capacity = Math.max(size, MIN_CAPACITY);
+        if (value instanceof Double) {
+            numbers = new double[capacity];
+            Arrays.fill(numbers, 0, size, (double) value);
+        } else if (size == 0) {
+            numbers = new double[capacity];
+        } else {
+            values = new Object[capacity];
+            Arrays.fill(values, 0, size, value);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isNumeric() {
+        return numbers != null;
+    }
+
+    // Only for a numeric array, at an index that has been checked.
+    double number(int index) {
+        return numbers[index];
+    }
+
+    Object get(int index) {
+        return numbers != null ? (Object) numbers[index] : values[index];
+    }
+
+    void setNumber(int index, double value) {
+        if (numbers != null) {
+            numbers[index] = value;
+        } else {
+            values[index] = value;
+        }
+    }
+
+    void set(int index, Object value) {
+        if (numbers != null) {
+            if (value instanceof Double) {
+                numbers[index] = (double) value;
+                return;
+            }
+            generalize();
+        }
+        values[index] = value;
+    }
+
+    // The index as an int, or an error at bracket if it isn't one of the
+    // array's.
+    int index(double index, Token bracket) {
+        if (index != Math.floor(index)) {
+            throw new Interpreter.RuntimeError(bracket, "Array index must be an integer.");
+        }
+        if (index < 0 || index >= size) {
+            throw new Interpreter.RuntimeError(bracket, "Array index out of bounds.");
+        }
+        return (int) index;
+    }
+
+    int index(Object index, Token bracket) {
+        if (!(index instanceof Double)) {
+            throw new Interpreter.RuntimeError(bracket, "Array index must be an integer.");
+        }
+        return index((double) index, bracket);
+    }
+
+    static Array array(Object value, Token bracket) {
+        if (!(value instanceof Array)) {
+            throw new Interpreter.RuntimeError(bracket, "Only arrays and maps can be indexed.");
+        }
+        return (Array) value;
+    }
+
+    // 'object[index]' on an array or a map, for the engines that box their
+    // numbers.
+    static Object get(Object object, Object index, Token bracket) {
+        if (object instanceof Table) {
+            return ((Table) object).get(index);
+        }
+        Array array = array(object, bracket);
+        return array.get(array.index(index, bracket));
+    }
+
+    // 'object[index] = value', which evaluates to value.
+    static Object set(Object object, Object index, Object value, Token bracket) {
+        if (object instanceof Table) {
+            ((Table) object).put(index, value);
+            return value;
+        }
+        Array array = array(object, bracket);
+        array.set(array.index(index, bracket), value);
+        return value;
+    }
+
+    private void generalize() {
+        values = new Object[numbers.length];
+        for (int i = 0; i < size; i++) {
+            values[i] = numbers[i];
+        }
+        numbers = null;
+    }
+
+    void add(Object value) {
+        if (numbers != null && !(value instanceof Double)) {
+            generalize();
+        }
+        int capacity = numbers != null ? numbers.length : values.length;
+        if (size == capacity) {
+            if (capacity == Integer.MAX_VALUE - 8) {
+                throw new Native.Error("Array too long.");
+            }
+            capacity = (int) Math.min(2L * capacity, Integer.MAX_VALUE - 8);
+            if (numbers != null) {
+                numbers = Arrays.copyOf(numbers, capacity);
+            } else {
+                values = Arrays.copyOf(values, capacity);
+            }
+        }
+
+        if (numbers != null) {
+            numbers[size++] = (double) value;
+        } else {
+            values[size++] = value;
+        }
+    }
+
+    private Object removeLast() {
+        if (size == 0) {
+            throw new Native.Error("Can't pop from an empty array.");
+        }
+        size--;
+        if (numbers != null) {
+            return numbers[size];
+        }
+
+        Object value = values[size];
+        values[size] = null;
+        return value;
+    }
+
+    private static Object array(Interpreter interpreter, List<Object> arguments) {
+        Object length = arguments.get(0);
+        if (!(length instanceof Double) || (double) length != Math.floor((double) length) ||
+                (double) length < 0 || (double) length > Integer.MAX_VALUE - 8) {
+            throw new Native.Error("Array length must be a non-negative integer.");
+        }
+        return new Array((int) (double) length, arguments.get(1));
+    }
+
+    private static Object push(Interpreter interpreter, List<Object> arguments) {
+        if (!(arguments.get(0) instanceof Array)) {
+            throw new Native.Error("First argument must be an array.");
+        }
+        ((Array) arguments.get(0)).add(arguments.get(1));
+        return null;
+    }
+
+    private static Object pop(Interpreter interpreter, List<Object> arguments) {
+        if (!(arguments.get(0) instanceof Array)) {
+            throw new Native.Error("Argument must be an array.");
+        }
+        return ((Array) arguments.get(0)).removeLast();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        append(builder, this, new IdentityHashMap<>());
+        return builder.toString();
+    }
+
+    // Appends a value the way print shows it. An array or map inside
+    // itself shows as '[...]' or '{...}'; open holds the ones being shown.
+    static void append(StringBuilder builder, Object value, Map<Object, Boolean> open) {
+        if (value instanceof Array) {
+            ((Array) value).appendElements(builder, open);
+        } else if (value instanceof Table) {
+            ((Table) value).appendEntries(builder, open);
+        } else {
+            builder.append(Interpreter.stringify(value));
+        }
+    }
+
+    private void appendElements(StringBuilder builder, Map<Object, Boolean> open) {
+        if (open.put(this, true) != null) {
+            builder.append("[...]");
+            return;
+        }
+
+        builder.append('[');
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            append(builder, get(i), open);
+        }
+        builder.append(']');
+        open.remove(this);
+    }
+}
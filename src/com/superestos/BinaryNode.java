@@ -0,0 +1,192 @@
+package com.superestos;
+
+/**
+ * Executable part of an Expression.Binary that rewrites itself according to
+ * the operand types it sees. Every binary expression starts out
+ * uninitialized; the first evaluation swaps in a node specialized for the
+ * operator and operand types (say, a double addition) which only checks its
+ * guard from then on. When the guard fails the node is replaced by a generic
+ * one for good, so a site never flips back and forth.
+ */
+abstract class BinaryNode {
+    abstract Object execute(Expression.Binary expr, Object left, Object right);
+
+    static final BinaryNode UNINITIALIZED = new BinaryNode() {
+        @Override
+        Object execute(Expression.Binary expr, Object left, Object right) {
+            BinaryNode node = specialize(expr.operator.type, left, right);
+            expr.node = node;
+            return node.execute(expr, left, right);
+        }
+    };
+
+    static final BinaryNode GENERIC = new BinaryNode() {
+        @Override
+        Object execute(Expression.Binary expr, Object left, Object right) {
+            return generic(expr.operator, left, right);
+        }
+    };
+
+    private static BinaryNode specialize(TokenType operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            switch (operator) {
+                case PLUS: return ADD_DOUBLE;
+                case MINUS: return SUBTRACT_DOUBLE;
+                case STAR: return MULTIPLY_DOUBLE;
+                case SLASH: return DIVIDE_DOUBLE;
+                case GREATER: return GREATER_DOUBLE;
+                case GREATER_EQUAL: return GREATER_EQUAL_DOUBLE;
+                case LESS: return LESS_DOUBLE;
+                case LESS_EQUAL: return LESS_EQUAL_DOUBLE;
+            }
+        }
+        if (Rope.isString(left) && Rope.isString(right) && operator == TokenType.PLUS) {
+            return CONCATENATE_STRING;
+        }
+
+        return GENERIC;
+    }
+
+    // Called when a specialized node meets operands it wasn't built for.
+    private static Object despecialize(Expression.Binary expr, Object left, Object right) {
+        expr.node = GENERIC;
+        return generic(expr.operator, left, right);
+    }
+
+    private static final BinaryNode ADD_DOUBLE = new BinaryNode() {
+        @Override
+        Object execute(Expression.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double)left + (double)right;
+            }
+            return despecialize(expr, left, right);
+        }
+    };
+
+    private static final BinaryNode SUBTRACT_DOUBLE = new BinaryNode() {
+        @Override
+        Object execute(Expression.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double)left - (double)right;
+            }
+            return despecialize(expr, left, right);
+        }
+    };
+
+    private static final BinaryNode MULTIPLY_DOUBLE = new BinaryNode() {
+        @Override
+        Object execute(Expression.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double)left * (double)right;
+            }
+            return despecialize(expr, left, right);
+        }
+    };
+
+    private static final BinaryNode DIVIDE_DOUBLE = new BinaryNode() {
+        @Override
+        Object execute(Expression.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double)left / (double)right;
+            }
+            return despecialize(expr, left, right);
+        }
+    };
+
+    private static final BinaryNode GREATER_DOUBLE = new BinaryNode() {
+        @Override
+        Object execute(Expression.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double)left > (double)right;
+            }
+            return despecialize(expr, left, right);
+        }
+    };
+
+    private static final BinaryNode GREATER_EQUAL_DOUBLE = new BinaryNode() {
+        @Override
+        Object execute(Expression.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double)left >= (double)right;
+            }
+            return despecialize(expr, left, right);
+        }
+    };
+
+    private static final BinaryNode LESS_DOUBLE = new BinaryNode() {
+        @Override
+        Object execute(Expression.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double)left < (double)right;
+            }
+            return despecialize(expr, left, right);
+        }
+    };
+
+    private static final BinaryNode LESS_EQUAL_DOUBLE = new BinaryNode() {
+        @Override
+        Object execute(Expression.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double)left <= (double)right;
+            }
+            return despecialize(expr, left, right);
+        }
+    };
+
+    private static final BinaryNode CONCATENATE_STRING = new BinaryNode() {
+        @Override
+        Object execute(Expression.Binary expr, Object left, Object right) {
+            if (Rope.isString(left) && Rope.isString(right)) {
+                return Rope.concat(left, right);
+            }
+            return despecialize(expr, left, right);
+        }
+    };
+
+    static Object generic(Token operator, Object left, Object right) {
+        switch (operator.type) {
+            case PLUS:
+                if (left instanceof Double && right instanceof Double) {
+                    return (double)left + (double)right;
+                }
+                if (Rope.isString(left) && Rope.isString(right)) {
+                    return Rope.concat(left, right);
+                }
+                throw new Interpreter.RuntimeError(operator,
+                        "Operands must be two numbers or two strings.");
+
+            case MINUS:
+                checkNumberOperands(operator, left, right);
+                return (double)left - (double)right;
+            case SLASH:
+                checkNumberOperands(operator, left, right);
+                return (double)left / (double)right;
+            case STAR:
+                checkNumberOperands(operator, left, right);
+                return (double)left * (double)right;
+            case GREATER:
+                checkNumberOperands(operator, left, right);
+                return (double)left > (double)right;
+            case GREATER_EQUAL:
+                checkNumberOperands(operator, left, right);
+                return (double)left >= (double)right;
+            case LESS:
+                checkNumberOperands(operator, left, right);
+                return (double)left < (double)right;
+            case LESS_EQUAL:
+                checkNumberOperands(operator, left, right);
+                return (double)left <= (double)right;
+            case BANG_EQUAL:
+                return !Interpreter.isEqual(left, right);
+            case EQUAL_EQUAL:
+                return Interpreter.isEqual(left, right);
+        }
+
+        return null;
+    }
+
+    private static void checkNumberOperands(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+        throw new Interpreter.RuntimeError(operator, "Operand must be a number.");
+    }
+}
@@ -5,4 +5,10 @@ import java.util.List;
 interface Callable {
     Object call(Interpreter interpreter, List<Object> arguments);
     int arity();
+
+    // Whether calls write nothing shared, so they can run on several
+    // threads at once.
+    default boolean isolated() {
+        return false;
+    }
 }
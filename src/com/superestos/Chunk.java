@@ -0,0 +1,53 @@
+package com.superestos;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A sequence of bytecode together with its constant pool. The token of any
+ * instruction that can fail is kept at the instruction's offset, so runtime
+ * errors report the same line as the tree-walking interpreter.
+ */
+class Chunk {
+    byte[] code = new byte[64];
+    Token[] tokens = new Token[64];
+    int count = 0;
+
+    private final List<Object> constantList = new ArrayList<>();
+    // Index of every number and string constant, by value.
+    private final Map<Object, Integer> constantIndexes = new HashMap<>();
+    Object[] constants;
+
+    void write(byte value, Token token) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            tokens = Arrays.copyOf(tokens, count * 2);
+        }
+
+        code[count] = value;
+        tokens[count] = token;
+        count++;
+    }
+
+    int addConstant(Object value) {
+        // Numbers and strings are deduplicated, functions and tokens are not.
+        if (value instanceof Double || value instanceof String) {
+            Integer index = constantIndexes.putIfAbsent(value, constantList.size());
+            if (index != null) {
+                return index;
+            }
+        }
+
+        constantList.add(value);
+        return constantList.size() - 1;
+    }
+
+    void finish() {
+        code = Arrays.copyOf(code, count);
+        tokens = Arrays.copyOf(tokens, count);
+        constants = constantList.toArray();
+    }
+}
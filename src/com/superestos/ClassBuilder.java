@@ -0,0 +1,320 @@
+package com.superestos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough of a JVM class file writer for the Jit. Classes are emitted as
+ * version 50 so the verifier infers types itself and no stack map frames
+ * have to be computed.
+ */
+class ClassBuilder {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int CLASS_VERSION = 50;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> poolIndexes = new HashMap<>();
+    private int poolCount = 1;
+
+    private final ByteArrayOutputStream members = new ByteArrayOutputStream();
+    private final DataOutputStream membersOut = new DataOutputStream(members);
+    private int fieldCount = 0;
+    private final List<byte[]> methods = new ArrayList<>();
+
+    int utf8(String value) {
+        Integer index = poolIndexes.get("U" + value);
+        if (index != null) return index;
+
+        try {
+            poolOut.writeByte(1);
+            poolOut.writeUTF(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return register("U" + value);
+    }
+
+    int classRef(String internalName) {
+        return entry("C" + internalName, 7, utf8(internalName), -1);
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return entry("F" + owner + "." + name + ":" + descriptor,
+                9, classRef(owner), nameAndType(name, descriptor));
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return entry("M" + owner + "." + name + descriptor,
+                10, classRef(owner), nameAndType(name, descriptor));
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        return entry("N" + name + ":" + descriptor, 12, utf8(name), utf8(descriptor));
+    }
+
+    private int entry(String key, int tag, int first, int second) {
+        Integer index = poolIndexes.get(key);
+        if (index != null) return index;
+
+        try {
+            poolOut.writeByte(tag);
+            poolOut.writeShort(first);
+            if (second >= 0) {
+                poolOut.writeShort(second);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return register(key);
+    }
+
+    private int register(String key) {
+        int index = poolCount++;
+        if (index > 0xffff) {
+            throw new UnsupportedOperationException("Constant pool overflow.");
+        }
+        poolIndexes.put(key, index);
+        return index;
+    }
+
+    void addField(int access, String name, String descriptor) {
+        try {
+            membersOut.writeShort(access);
+            membersOut.writeShort(utf8(name));
+            membersOut.writeShort(utf8(descriptor));
+            membersOut.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        fieldCount++;
+    }
+
+    void addMethod(int access, String name, String descriptor, Code code) {
+        byte[] bytes = code.toByteArray();
+        if (bytes.length > 0xffff) {
+            throw new UnsupportedOperationException("Method too large.");
+        }
+
+        ByteArrayOutputStream method = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(method);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1);
+
+            out.writeShort(utf8("Code"));
+            out.writeInt(12 + bytes.length);
+            out.writeShort(code.maxStack);
+            out.writeShort(code.maxLocals);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeShort(0);
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methods.add(method.toByteArray());
+    }
+
+    byte[] build(int access, String name, String superName, String... interfaces) {
+        int thisIndex = classRef(name);
+        int superIndex = classRef(superName);
+        int[] interfaceIndexes = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaceIndexes[i] = classRef(interfaces[i]);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(CLASS_VERSION);
+            out.writeShort(poolCount);
+            out.write(pool.toByteArray());
+
+            out.writeShort(access);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(interfaceIndexes.length);
+            for (int index: interfaceIndexes) {
+                out.writeShort(index);
+            }
+
+            out.writeShort(fieldCount);
+            out.write(members.toByteArray());
+
+            out.writeShort(methods.size());
+            for (byte[] method: methods) {
+                out.write(method);
+            }
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Bytecode of one method. Keeps track of the operand stack depth as
+     * instructions are added, and of forward jumps waiting for their label.
+     */
+    static class Code {
+        static final int ACONST_NULL = 0x01;
+        static final int ICONST_0 = 0x03;
+        static final int ICONST_1 = 0x04;
+        static final int BIPUSH = 0x10;
+        static final int SIPUSH = 0x11;
+        static final int ALOAD = 0x19;
+        static final int AALOAD = 0x32;
+        static final int ASTORE = 0x3a;
+        static final int AASTORE = 0x53;
+        static final int POP = 0x57;
+        static final int DUP = 0x59;
+        static final int IFEQ = 0x99;
+        static final int IFNE = 0x9a;
+        static final int GOTO = 0xa7;
+        static final int ARETURN = 0xb0;
+        static final int RETURN = 0xb1;
+        static final int GETSTATIC = 0xb2;
+        static final int GETFIELD = 0xb4;
+        static final int PUTFIELD = 0xb5;
+        static final int INVOKESPECIAL = 0xb7;
+        static final int INVOKESTATIC = 0xb8;
+        static final int CHECKCAST = 0xc0;
+        static final int WIDE = 0xc4;
+
+        private byte[] code = new byte[256];
+        private int length = 0;
+
+        private int stack = 0;
+        int maxStack = 0;
+        int maxLocals;
+
+        Code(int maxLocals) {
+            this.maxLocals = maxLocals;
+        }
+
+        int position() {
+            return length;
+        }
+
+        int stackDepth() {
+            return stack;
+        }
+
+        // For code paths that rejoin with a different depth than the linear
+        // order of emission suggests.
+        void setStackDepth(int depth) {
+            stack = depth;
+        }
+
+        void op(int opcode, int stackEffect) {
+            writeByte(opcode);
+            adjust(stackEffect);
+        }
+
+        void op(int opcode, int operand, int stackEffect) {
+            writeByte(opcode);
+            writeShort(operand);
+            adjust(stackEffect);
+        }
+
+        void pushInt(int value) {
+            if (value >= 0 && value <= 5) {
+                op(ICONST_0 + value, 1);
+            } else if (value <= Byte.MAX_VALUE) {
+                writeByte(BIPUSH);
+                writeByte(value);
+                adjust(1);
+            } else if (value <= Short.MAX_VALUE) {
+                op(SIPUSH, value, 1);
+            } else {
+                throw new UnsupportedOperationException("Constant too large.");
+            }
+        }
+
+        void load(int local) {
+            variable(ALOAD, 0x2a, local);
+            adjust(1);
+        }
+
+        void store(int local) {
+            variable(ASTORE, 0x4b, local);
+            adjust(-1);
+        }
+
+        private void variable(int opcode, int shortForm, int local) {
+            maxLocals = Math.max(maxLocals, local + 1);
+            if (local <= 3) {
+                writeByte(shortForm + local);
+            } else if (local <= 0xff) {
+                writeByte(opcode);
+                writeByte(local);
+            } else {
+                writeByte(WIDE);
+                writeByte(opcode);
+                writeShort(local);
+            }
+        }
+
+        // Emits a jump with a placeholder offset and returns its position.
+        int jump(int opcode) {
+            int position = length;
+            op(opcode, 0, opcode == GOTO ? 0 : -1);
+            return position;
+        }
+
+        void jumpTo(int opcode, int target) {
+            int position = length;
+            op(opcode, 0, opcode == GOTO ? 0 : -1);
+            patch(position, target);
+        }
+
+        void patch(int jump) {
+            patch(jump, length);
+        }
+
+        private void patch(int jump, int target) {
+            int offset = target - jump;
+            if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                throw new UnsupportedOperationException("Jump too far.");
+            }
+            code[jump + 1] = (byte) (offset >> 8);
+            code[jump + 2] = (byte) offset;
+        }
+
+        private void adjust(int stackEffect) {
+            stack += stackEffect;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        private void writeByte(int value) {
+            if (length == code.length) {
+                code = Arrays.copyOf(code, length * 2);
+            }
+            code[length++] = (byte) value;
+        }
+
+        private void writeShort(int value) {
+            writeByte(value >> 8);
+            writeByte(value);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(code, length);
+        }
+    }
+}
@@ -0,0 +1,870 @@
+package com.superestos;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Engine that compiles the resolved tree, once, into a tree of Java closures
+ * and then runs those. Each node becomes a lambda that has its children and
+ * everything it needs from the tree (operator, slot, name) captured already,
+ * so running the program never looks at a node's type again. Every lambda is
+ * its own class, which gives HotSpot small monomorphic call sites to inline.
+ *
+ * Like the VM, each function body gets its own compiler, and the per-block
+ * frames the Resolver handed out are flattened into a single array of locals
+ * per call.
+ *
+ * Statements report whether they returned instead of throwing, and the value
+ * being returned is left in the frame. A tail call leaves the function and
+ * its arguments in the frame instead, and Function.invoke runs it in a loop.
+ */
+public class Closures {
+    interface Node {
+        Object evaluate(Frame frame);
+    }
+
+    interface Test {
+        boolean test(Frame frame);
+    }
+
+    interface Action {
+        // Returns true once a return statement has run.
+        boolean execute(Frame frame);
+    }
+
+    static final class Frame {
+        final Object[] locals;
+        Object returnValue;
+
+        // Set instead of returnValue by a tail call to a Lox function.
+        Function tailCallee;
+        Object[] tailArguments;
+
+        Frame(int size) {
+            locals = new Object[size];
+        }
+    }
+
+    private final Environment globals;
+    private final Output out = Output.standard();
+
+    Closures(GlobalSlots globalSlots) {
+        globals = new Environment(globalSlots);
+        Native.defineAll(globals);
+    }
+
+    void interpret(List<Statement> statements) {
+        Compiler compiler = new Compiler(globals, out, 0);
+        Action script = compiler.compileBody(statements);
+
+        try {
+            globals.reserveGlobals();
+            script.execute(new Frame(compiler.maxLocals));
+        } catch (Interpreter.RuntimeError error) {
+            out.flush();
+            Main.runtimeError(error);
+        } finally {
+            out.flush();
+        }
+    }
+
+    static final class Function implements Callable, LoxClass.CallableMethod {
+        private final String name;
+        private final int arity;
+        private final int frameSize;
+        private final Action body;
+        private final Memo memo;
+        private final boolean isolated;
+        // For a method of a class with a superclass, the superclass.
+        private final LoxClass superclass;
+
+        Function(String name, int arity, int frameSize, Action body, Memo memo, boolean isolated,
+                 LoxClass superclass) {
+            this.name = name;
+            this.arity = arity;
+            this.frameSize = frameSize;
+            this.body = body;
+            this.memo = memo;
+            this.isolated = isolated;
+            this.superclass = superclass;
+        }
+
+        // Room for the arguments of a call of a method, followed by 'this'
+        // and 'super', which are filled in.
+        Object[] methodArguments(Instance receiver) {
+            Object[] values = new Object[arity + (superclass != null ? 2 : 1)];
+            values[arity] = receiver;
+            if (superclass != null) {
+                values[arity + 1] = superclass;
+            }
+            return values;
+        }
+
+        Object invoke(Object[] arguments) {
+            Object key = memo != null ? memo.key(arguments, arity) : null;
+            if (key == null) {
+                return execute(arguments);
+            }
+
+            Object result = memo.get(key);
+            if (result == Memo.MISSING) {
+                result = execute(arguments);
+                memo.put(key, result);
+            }
+            return result;
+        }
+
+        private Object execute(Object[] arguments) {
+            Function function = this;
+            while (true) {
+                Frame frame = new Frame(function.frameSize);
+                System.arraycopy(arguments, 0, frame.locals, 0, arguments.length);
+                if (!function.body.execute(frame)) {
+                    return null;
+                }
+                if (frame.tailCallee == null) {
+                    return frame.returnValue;
+                }
+
+                function = frame.tailCallee;
+                arguments = frame.tailArguments;
+            }
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            return invoke(arguments.toArray());
+        }
+
+        @Override
+        public Object callMethod(Interpreter interpreter, Instance receiver, List<Object> arguments) {
+            Object[] values = methodArguments(receiver);
+            for (int i = 0; i < arity; i++) {
+                values[i] = arguments.get(i);
+            }
+            return invoke(values);
+        }
+
+        @Override
+        public int arity() {
+            return arity;
+        }
+
+        @Override
+        public boolean isolated() {
+            return isolated;
+        }
+
+        @Override
+        public String toString() {
+            return "<fn " + name + ">";
+        }
+    }
+
+    private static final class Compiler {
+        private final Environment globals;
+        private final Output out;
+
+        // Base slot of every block frame that is currently open, innermost last.
+        private final List<Integer> frames = new ArrayList<>();
+        private int localCount;
+        private int maxLocals;
+
+        Compiler(Environment globals, Output out, int parameterFrameSize) {
+            this.globals = globals;
+            this.out = out;
+            frames.add(0);
+            localCount = parameterFrameSize;
+            maxLocals = parameterFrameSize;
+        }
+
+        Action compileBody(List<Statement> statements) {
+            // Statements that failed to parse are null and are skipped.
+            List<Action> compiled = new ArrayList<>();
+            for (Statement statement: statements) {
+                if (statement != null) {
+                    compiled.add(compile(statement));
+                }
+            }
+            Action[] actions = compiled.toArray(new Action[0]);
+
+            switch (actions.length) {
+                case 0:
+                    return frame -> false;
+                case 1:
+                    return actions[0];
+                case 2: {
+                    Action first = actions[0];
+                    Action second = actions[1];
+                    return frame -> first.execute(frame) || second.execute(frame);
+                }
+                default:
+                    return frame -> {
+                        for (Action action: actions) {
+                            if (action.execute(frame)) return true;
+                        }
+                        return false;
+                    };
+            }
+        }
+
+        public Action visitPrintStatement(Statement.Print stmt) {
+            Node expression = compile(stmt.expression);
+            return frame -> {
+                out.print(expression.evaluate(frame));
+                return false;
+            };
+        }
+
+        public Action visitBlockStatement(Statement.Block stmt) {
+            if (stmt.frameSize == 0) {
+                return compileBody(stmt.statements);
+            }
+
+            frames.add(localCount);
+            localCount += stmt.frameSize;
+            maxLocals = Math.max(maxLocals, localCount);
+
+            Action body = compileBody(stmt.statements);
+
+            localCount -= stmt.frameSize;
+            frames.remove(frames.size() - 1);
+            return body;
+        }
+
+        public Action visitExprStatement(Statement.Expr stmt) {
+            Node expression = compile(stmt.expression);
+            return frame -> {
+                expression.evaluate(frame);
+                return false;
+            };
+        }
+
+        public Action visitVarStatement(Statement.Var stmt) {
+            Node initializer = stmt.initializer != null ? compile(stmt.initializer) : frame -> null;
+            return define(stmt.name, stmt.slot, initializer);
+        }
+
+        public Action visitIfStatement(Statement.If stmt) {
+            Test condition = compileCondition(stmt.condition);
+            Action thenBranch = compile(stmt.thenBranch);
+            if (stmt.elseBranch == null) {
+                return frame -> condition.test(frame) && thenBranch.execute(frame);
+            }
+
+            Action elseBranch = compile(stmt.elseBranch);
+            return frame -> condition.test(frame) ? thenBranch.execute(frame) : elseBranch.execute(frame);
+        }
+
+        public Action visitWhileStatement(Statement.While stmt) {
+            Test condition = compileCondition(stmt.condition);
+            Action body = compile(stmt.body);
+            return frame -> {
+                while (condition.test(frame)) {
+                    if (body.execute(frame)) return true;
+                }
+                return false;
+            };
+        }
+
+        public Action visitFunctionStatement(Statement.Function stmt) {
+            Compiler compiler = new Compiler(globals, out, stmt.frameSize);
+            Action body = compiler.compileBody(stmt.body);
+            String name = stmt.name.lexeme();
+            int arity = stmt.parameters.size();
+            int frameSize = compiler.maxLocals;
+            boolean pure = stmt.pure;
+            boolean isolated = stmt.isolated;
+
+            // A new function object each time the declaration runs, as in the tree walker.
+            return define(stmt.name, stmt.slot,
+                    frame -> new Function(name, arity, frameSize, body, pure ? new Memo() : null, isolated, null));
+        }
+
+        public Action visitClassStatement(Statement.Class stmt) {
+            String[] names = new String[stmt.methods.size()];
+            int[] arities = new int[names.length];
+            int[] frameSizes = new int[names.length];
+            Action[] bodies = new Action[names.length];
+            for (int i = 0; i < names.length; i++) {
+                Statement.Function method = stmt.methods.get(i);
+                Compiler compiler = new Compiler(globals, out, method.frameSize);
+                bodies[i] = compiler.compileBody(method.body);
+                names[i] = method.name.lexeme();
+                arities[i] = method.parameters.size();
+                frameSizes[i] = compiler.maxLocals;
+            }
+
+            String name = stmt.name.lexeme();
+            Node superclass = stmt.superclass != null ? compile(stmt.superclass) : null;
+            Token superclassName = stmt.superclass != null ? stmt.superclass.name : null;
+            return define(stmt.name, stmt.slot, frame -> {
+                LoxClass parent = null;
+                if (superclass != null) {
+                    parent = LoxClass.superclass(superclass.evaluate(frame), superclassName);
+                }
+
+                Map<String, LoxClass.Method> methods = new HashMap<>();
+                for (int i = 0; i < names.length; i++) {
+                    methods.put(names[i], new Function(names[i], arities[i], frameSizes[i], bodies[i],
+                            null, false, parent));
+                }
+                return new LoxClass(name, parent, methods);
+            });
+        }
+
+        public Action visitReturnStatement(Statement.Return stmt) {
+            if (stmt.tailCall && ((Expression.Call) stmt.value).intrinsic == null) {
+                Expression.Call call = (Expression.Call) stmt.value;
+                return ((CallNode) visitCallExpr(call))::tailCall;
+            }
+
+            Node value = stmt.value != null ? compile(stmt.value) : frame -> null;
+            return frame -> {
+                frame.returnValue = value.evaluate(frame);
+                return true;
+            };
+        }
+
+        public Node visitLiteralExpr(Expression.Literal expr) {
+            Object value = expr.value;
+            return frame -> value;
+        }
+
+        public Node visitGroupingExpr(Expression.Grouping expr) {
+            return compile(expr.expression);
+        }
+
+        public Node visitUnaryExpr(Expression.Unary expr) {
+            if (expr.operator.type == TokenType.BANG) {
+                Test test = compileCondition(expr);
+                return frame -> test.test(frame);
+            }
+
+            Node right = compile(expr.right);
+            if (expr.operator.type == TokenType.PLUS) {
+                return right;
+            }
+
+            Token operator = expr.operator;
+            return frame -> {
+                Object operand = right.evaluate(frame);
+                if (operand instanceof Double) {
+                    return -(double)operand;
+                }
+                throw new Interpreter.RuntimeError(operator, "Operand must be a number.");
+            };
+        }
+
+        public Node visitBinaryExpr(Expression.Binary expr) {
+            if (isComparison(expr.operator.type)) {
+                Test test = compileCondition(expr);
+                return frame -> test.test(frame);
+            }
+
+            Node left = compile(expr.left);
+            Node right = compile(expr.right);
+            Token operator = expr.operator;
+
+            switch (operator.type) {
+                case PLUS:
+                    return frame -> {
+                        Object a = left.evaluate(frame);
+                        Object b = right.evaluate(frame);
+                        if (a instanceof Double && b instanceof Double) {
+                            return (double)a + (double)b;
+                        }
+                        return BinaryNode.generic(operator, a, b);
+                    };
+                case MINUS:
+                    return frame -> {
+                        Object a = left.evaluate(frame);
+                        Object b = right.evaluate(frame);
+                        if (a instanceof Double && b instanceof Double) {
+                            return (double)a - (double)b;
+                        }
+                        return BinaryNode.generic(operator, a, b);
+                    };
+                case STAR:
+                    return frame -> {
+                        Object a = left.evaluate(frame);
+                        Object b = right.evaluate(frame);
+                        if (a instanceof Double && b instanceof Double) {
+                            return (double)a * (double)b;
+                        }
+                        return BinaryNode.generic(operator, a, b);
+                    };
+                case SLASH:
+                    return frame -> {
+                        Object a = left.evaluate(frame);
+                        Object b = right.evaluate(frame);
+                        if (a instanceof Double && b instanceof Double) {
+                            return (double)a / (double)b;
+                        }
+                        return BinaryNode.generic(operator, a, b);
+                    };
+                default:
+                    return frame -> BinaryNode.generic(operator, left.evaluate(frame), right.evaluate(frame));
+            }
+        }
+
+        public Node visitVariableExpr(Expression.Variable expr) {
+            if (expr.depth >= 0) {
+                int local = local(expr.depth, expr.slot);
+                return frame -> frame.locals[local];
+            }
+
+            int slot = expr.slot;
+            Token name = expr.name;
+            return frame -> globals.get(slot, name);
+        }
+
+        public Node visitAssignExpr(Expression.Assign expr) {
+            Node value = compile(expr.value);
+
+            if (expr.depth >= 0) {
+                int local = local(expr.depth, expr.slot);
+                return frame -> frame.locals[local] = value.evaluate(frame);
+            }
+
+            int slot = expr.slot;
+            Token name = expr.name;
+            return frame -> {
+                Object result = value.evaluate(frame);
+                globals.assign(slot, name, result);
+                return result;
+            };
+        }
+
+        public Node visitLogicalExpr(Expression.Logical expr) {
+            Node left = compile(expr.left);
+            Node right = compile(expr.right);
+
+            if (expr.operator.type == TokenType.OR) {
+                return frame -> {
+                    Object value = left.evaluate(frame);
+                    return Interpreter.isTruthy(value) ? value : right.evaluate(frame);
+                };
+            }
+
+            return frame -> {
+                Object value = left.evaluate(frame);
+                return Interpreter.isTruthy(value) ? right.evaluate(frame) : value;
+            };
+        }
+
+        public Node visitCallExpr(Expression.Call expr) {
+            Node[] arguments = new Node[expr.arguments.size()];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = compile(expr.arguments.get(i));
+            }
+            if (expr.callee instanceof Expression.Get) {
+                Expression.Get get = (Expression.Get) expr.callee;
+                return new InvokeNode(compile(get.object), get.name, get.cache, arguments, expr.paren);
+            }
+
+            Node callee = compile(expr.callee);
+            CallNode call = new CallNode(callee, arguments, expr.paren);
+            return expr.intrinsic != null ? compileIntrinsic(expr, arguments, call) : call;
+        }
+
+        public Node visitIndexExpr(Expression.Index expr) {
+            Node object = compile(expr.object);
+            Node index = compile(expr.index);
+            Token bracket = expr.bracket;
+            return frame -> Array.get(object.evaluate(frame), index.evaluate(frame), bracket);
+        }
+
+        public Node visitSetIndexExpr(Expression.SetIndex expr) {
+            Node object = compile(expr.object);
+            Node index = compile(expr.index);
+            Node value = compile(expr.value);
+            Token bracket = expr.bracket;
+            return frame -> Array.set(object.evaluate(frame), index.evaluate(frame), value.evaluate(frame), bracket);
+        }
+
+        public Node visitGetExpr(Expression.Get expr) {
+            Node object = compile(expr.object);
+            Token name = expr.name;
+            PropertyCache cache = expr.cache;
+            return frame -> cache.get(object.evaluate(frame), name);
+        }
+
+        public Node visitSetExpr(Expression.Set expr) {
+            Node object = compile(expr.object);
+            Node value = compile(expr.value);
+            Token name = expr.name;
+            PropertyCache cache = expr.cache;
+            return frame -> cache.set(object.evaluate(frame), name, value.evaluate(frame));
+        }
+
+        public Node visitThisExpr(Expression.This expr) {
+            int local = local(expr.depth, expr.slot);
+            return frame -> frame.locals[local];
+        }
+
+        public Node visitSuperExpr(Expression.Super expr) {
+            int superclass = local(expr.depth, expr.slot);
+            int receiver = superclass - 1;
+            Token method = expr.method;
+            PropertyCache cache = expr.cache;
+            return frame -> new LoxClass.BoundMethod((Instance) frame.locals[receiver],
+                    cache.findSuper((LoxClass) frame.locals[superclass], method));
+        }
+
+        // While the global still holds the intrinsic's native, the call goes
+        // straight to its static method in Library; otherwise it is made
+        // like any other.
+        private Node compileIntrinsic(Expression.Call expr, Node[] arguments, CallNode call) {
+            int slot = ((Expression.Variable) expr.callee).slot;
+            Native function = expr.intrinsic.function;
+            Token paren = expr.paren;
+            Node a = arguments.length > 0 ? arguments[0] : null;
+            Node b = arguments.length > 1 ? arguments[1] : null;
+
+            switch (expr.intrinsic) {
+                case CLOCK:
+                    return frame -> globals.holds(slot, function) ? Library.clock() : call.evaluate(frame);
+                case SQRT:
+                    return frame -> globals.holds(slot, function) ?
+                            Library.sqrt(a.evaluate(frame), paren) : call.evaluate(frame);
+                case FLOOR:
+                    return frame -> globals.holds(slot, function) ?
+                            Library.floor(a.evaluate(frame), paren) : call.evaluate(frame);
+                case ABS:
+                    return frame -> globals.holds(slot, function) ?
+                            Library.abs(a.evaluate(frame), paren) : call.evaluate(frame);
+                case MIN:
+                    return frame -> globals.holds(slot, function) ?
+                            Library.min(a.evaluate(frame), b.evaluate(frame), paren) : call.evaluate(frame);
+                case MAX:
+                    return frame -> globals.holds(slot, function) ?
+                            Library.max(a.evaluate(frame), b.evaluate(frame), paren) : call.evaluate(frame);
+                case POW:
+                    return frame -> globals.holds(slot, function) ?
+                            Library.pow(a.evaluate(frame), b.evaluate(frame), paren) : call.evaluate(frame);
+                case LENGTH:
+                    return frame -> globals.holds(slot, function) ?
+                            Library.length(a.evaluate(frame), paren) : call.evaluate(frame);
+                case CHAR_AT:
+                    return frame -> globals.holds(slot, function) ?
+                            Library.charAt(a.evaluate(frame), b.evaluate(frame), paren) : call.evaluate(frame);
+                default:
+                    return call;
+            }
+        }
+
+        // Returns a test for the truthiness of the expression that doesn't
+        // box the comparisons and logical operators it is made of.
+        private Test compileCondition(Expression expr) {
+            if (expr instanceof Expression.Grouping) {
+                return compileCondition(((Expression.Grouping) expr).expression);
+            }
+
+            if (expr instanceof Expression.Unary && ((Expression.Unary) expr).operator.type == TokenType.BANG) {
+                Test operand = compileCondition(((Expression.Unary) expr).right);
+                return frame -> !operand.test(frame);
+            }
+
+            if (expr instanceof Expression.Binary && isComparison(((Expression.Binary) expr).operator.type)) {
+                Expression.Binary binary = (Expression.Binary) expr;
+                Node left = compile(binary.left);
+                Node right = compile(binary.right);
+                Token operator = binary.operator;
+
+                switch (operator.type) {
+                    case EQUAL_EQUAL:
+                        return frame -> Interpreter.isEqual(left.evaluate(frame), right.evaluate(frame));
+                    case BANG_EQUAL:
+                        return frame -> !Interpreter.isEqual(left.evaluate(frame), right.evaluate(frame));
+                    case GREATER:
+                        return frame -> {
+                            Object a = left.evaluate(frame);
+                            Object b = right.evaluate(frame);
+                            checkNumberOperands(operator, a, b);
+                            return (double)a > (double)b;
+                        };
+                    case GREATER_EQUAL:
+                        return frame -> {
+                            Object a = left.evaluate(frame);
+                            Object b = right.evaluate(frame);
+                            checkNumberOperands(operator, a, b);
+                            return (double)a >= (double)b;
+                        };
+                    case LESS:
+                        return frame -> {
+                            Object a = left.evaluate(frame);
+                            Object b = right.evaluate(frame);
+                            checkNumberOperands(operator, a, b);
+                            return (double)a < (double)b;
+                        };
+                    default:
+                        return frame -> {
+                            Object a = left.evaluate(frame);
+                            Object b = right.evaluate(frame);
+                            checkNumberOperands(operator, a, b);
+                            return (double)a <= (double)b;
+                        };
+                }
+            }
+
+            if (expr instanceof Expression.Logical) {
+                Expression.Logical logical = (Expression.Logical) expr;
+                Test left = compileCondition(logical.left);
+                Test right = compileCondition(logical.right);
+                if (logical.operator.type == TokenType.OR) {
+                    return frame -> left.test(frame) || right.test(frame);
+                }
+                return frame -> left.test(frame) && right.test(frame);
+            }
+
+            Node value = compile(expr);
+            return frame -> Interpreter.isTruthy(value.evaluate(frame));
+        }
+
+        private Action define(Token name, int slot, Node value) {
+            if (slot < 0) {
+                int global = globals.globalSlot(name.lexeme());
+                return frame -> {
+                    globals.define(global, name, value.evaluate(frame));
+                    return false;
+                };
+            }
+
+            int local = local(0, slot);
+            return frame -> {
+                frame.locals[local] = value.evaluate(frame);
+                return false;
+            };
+        }
+
+        private int local(int depth, int slot) {
+            return frames.get(frames.size() - 1 - depth) + slot;
+        }
+
+        private Node compile(Expression expr) {
+            if (expr instanceof Expression.Binary) {
+                return visitBinaryExpr((Expression.Binary) expr);
+            } else if (expr instanceof Expression.Unary) {
+                return visitUnaryExpr((Expression.Unary) expr);
+            } else if (expr instanceof Expression.Grouping) {
+                return visitGroupingExpr((Expression.Grouping) expr);
+            } else if (expr instanceof Expression.Literal) {
+                return visitLiteralExpr((Expression.Literal) expr);
+            } else if (expr instanceof Expression.Variable) {
+                return visitVariableExpr((Expression.Variable) expr);
+            } else if (expr instanceof Expression.Assign) {
+                return visitAssignExpr((Expression.Assign) expr);
+            } else if (expr instanceof Expression.Logical) {
+                return visitLogicalExpr((Expression.Logical) expr);
+            } else if (expr instanceof Expression.Call) {
+                return visitCallExpr((Expression.Call) expr);
+            } else if (expr instanceof Expression.Index) {
+                return visitIndexExpr((Expression.Index) expr);
+            } else if (expr instanceof Expression.SetIndex) {
+                return visitSetIndexExpr((Expression.SetIndex) expr);
+            } else if (expr instanceof Expression.Get) {
+                return visitGetExpr((Expression.Get) expr);
+            } else if (expr instanceof Expression.Set) {
+                return visitSetExpr((Expression.Set) expr);
+            } else if (expr instanceof Expression.This) {
+                return visitThisExpr((Expression.This) expr);
+            } else if (expr instanceof Expression.Super) {
+                return visitSuperExpr((Expression.Super) expr);
+            } else {
+                throw new IllegalStateException("Can't compile " + expr + ".");
+            }
+        }
+
+        private Action compile(Statement stmt) {
+            if (stmt instanceof Statement.Print) {
+                return visitPrintStatement((Statement.Print) stmt);
+            } else if (stmt instanceof Statement.Expr) {
+                return visitExprStatement((Statement.Expr) stmt);
+            } else if (stmt instanceof Statement.Var) {
+                return visitVarStatement((Statement.Var) stmt);
+            } else if (stmt instanceof Statement.Block) {
+                return visitBlockStatement((Statement.Block) stmt);
+            } else if (stmt instanceof Statement.If) {
+                return visitIfStatement((Statement.If) stmt);
+            } else if (stmt instanceof Statement.While) {
+                return visitWhileStatement((Statement.While) stmt);
+            } else if (stmt instanceof Statement.Function) {
+                return visitFunctionStatement((Statement.Function) stmt);
+            } else if (stmt instanceof Statement.Return) {
+                return visitReturnStatement((Statement.Return) stmt);
+            } else if (stmt instanceof Statement.Class) {
+                return visitClassStatement((Statement.Class) stmt);
+            } else {
+                throw new IllegalStateException("Can't compile " + stmt + ".");
+            }
+        }
+
+        private static boolean isComparison(TokenType type) {
+            switch (type) {
+                case GREATER: case GREATER_EQUAL: case LESS: case LESS_EQUAL:
+                case EQUAL_EQUAL: case BANG_EQUAL:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private static void checkNumberOperands(Token operator, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) return;
+            throw new Interpreter.RuntimeError(operator, "Operand must be a number.");
+        }
+    }
+
+    // A call site, with a monomorphic cache like the tree walker's. Nodes
+    // are compiled for each run, so the callee it holds can't outlive the run.
+    private static class CallNode implements Node {
+        private final Node callee;
+        final Node[] arguments;
+        final Token paren;
+
+        private Object cachedCallee;
+
+        CallNode(Node callee, Node[] arguments, Token paren) {
+            this.callee = callee;
+            this.arguments = arguments;
+            this.paren = paren;
+        }
+
+        @Override
+        public Object evaluate(Frame frame) {
+            Object function = callee.evaluate(frame);
+            Object[] values = evaluateArguments(frame, function);
+
+            if (function instanceof Function) {
+                return ((Function) function).invoke(values);
+            }
+            return callOther(function, values);
+        }
+
+        // The Action for 'return' with this call as its value.
+        boolean tailCall(Frame frame) {
+            Object function = callee.evaluate(frame);
+            Object[] values = evaluateArguments(frame, function);
+
+            if (function instanceof Function) {
+                frame.tailCallee = (Function) function;
+                frame.tailArguments = values;
+            } else {
+                frame.returnValue = callOther(function, values);
+            }
+            return true;
+        }
+
+        Object callOther(Object function, Object[] values) {
+            try {
+                return ((Callable) function).call(null, Arrays.asList(values));
+            } catch (Native.Error error) {
+                throw new Interpreter.RuntimeError(paren, error.getMessage());
+            }
+        }
+
+        Object[] evaluateArguments(Frame frame, Object function) {
+            Object[] values = new Object[arguments.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = arguments[i].evaluate(frame);
+            }
+
+            if (function != cachedCallee) {
+                check(function);
+                cachedCallee = function;
+            }
+            return values;
+        }
+
+        private void check(Object function) {
+            if (!(function instanceof Callable)) {
+                throw new Interpreter.RuntimeError(paren, "Can only call functions and classes.");
+            }
+
+            int arity = ((Callable) function).arity();
+            if (arity != arguments.length) {
+                throw new Interpreter.RuntimeError(paren, "Expected " + arity +
+                        " arguments but got " + arguments.length + ".");
+            }
+        }
+    }
+
+    // A call 'object.name(...)'. A method the site's inline cache finds gets
+    // the instance put straight into its arguments, with no BoundMethod.
+    private static final class InvokeNode extends CallNode {
+        private final Node object;
+        private final Token name;
+        private final PropertyCache cache;
+
+        InvokeNode(Node object, Token name, PropertyCache cache, Node[] arguments, Token paren) {
+            super(null, arguments, paren);
+            this.object = object;
+            this.name = name;
+            this.cache = cache;
+        }
+
+        @Override
+        public Object evaluate(Frame frame) {
+            Object receiver = object.evaluate(frame);
+            PropertyCache.Entry entry = cache.lookup(receiver, name);
+            if (entry.method instanceof Function) {
+                return ((Function) entry.method).invoke(methodArguments(frame, receiver, entry.method));
+            }
+
+            Object function = callee(receiver, entry);
+            Object[] values = evaluateArguments(frame, function);
+            if (function instanceof Function) {
+                return ((Function) function).invoke(values);
+            }
+            return callOther(function, values);
+        }
+
+        @Override
+        boolean tailCall(Frame frame) {
+            Object receiver = object.evaluate(frame);
+            PropertyCache.Entry entry = cache.lookup(receiver, name);
+            if (entry.method instanceof Function) {
+                frame.tailCallee = (Function) entry.method;
+                frame.tailArguments = methodArguments(frame, receiver, entry.method);
+                return true;
+            }
+
+            Object function = callee(receiver, entry);
+            Object[] values = evaluateArguments(frame, function);
+            if (function instanceof Function) {
+                frame.tailCallee = (Function) function;
+                frame.tailArguments = values;
+            } else {
+                frame.returnValue = callOther(function, values);
+            }
+            return true;
+        }
+
+        private Object[] methodArguments(Frame frame, Object receiver, LoxClass.Method method) {
+            Function function = (Function) method;
+            if (function.arity != arguments.length) {
+                throw new Interpreter.RuntimeError(paren, "Expected " + function.arity +
+                        " arguments but got " + arguments.length + ".");
+            }
+
+            Object[] values = function.methodArguments((Instance) receiver);
+            for (int i = 0; i < arguments.length; i++) {
+                values[i] = arguments[i].evaluate(frame);
+            }
+            return values;
+        }
+
+        // What the call calls otherwise: the value of a field.
+        private static Object callee(Object receiver, PropertyCache.Entry entry) {
+            Instance instance = (Instance) receiver;
+            if (entry.method != null) {
+                return new LoxClass.BoundMethod(instance, entry.method);
+            }
+            return instance.fields[entry.slot];
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.superestos;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A class declaration compiled for the VM. The CLASS instruction makes a
+ * LoxClass from it each time the declaration runs, with the superclass it
+ * finds on the stack.
+ */
+class CompiledClass {
+    // A method of a class the VM made. Only the VM calls it, with the
+    // instance and the superclass pushed after the arguments.
+    static final class Method implements LoxClass.Method {
+        final CompiledFunction function;
+        final LoxClass superclass;
+
+        Method(CompiledFunction function, LoxClass superclass) {
+            this.function = function;
+            this.superclass = superclass;
+        }
+
+        @Override
+        public int arity() {
+            return function.arity;
+        }
+
+        @Override
+        public String toString() {
+            return function.toString();
+        }
+    }
+
+    final Token name;
+    final boolean hasSuperclass;
+    final CompiledFunction[] methods;
+
+    CompiledClass(Token name, boolean hasSuperclass, CompiledFunction[] methods) {
+        this.name = name;
+        this.hasSuperclass = hasSuperclass;
+        this.methods = methods;
+    }
+
+    LoxClass instantiate(LoxClass superclass) {
+        Map<String, LoxClass.Method> methods = new HashMap<>();
+        for (CompiledFunction method: this.methods) {
+            methods.put(method.name.lexeme(), new Method(method, superclass));
+        }
+        return new LoxClass(name.lexeme(), superclass, methods);
+    }
+
+    @Override
+    public String toString() {
+        return "<class " + name.lexeme() + ">";
+    }
+}
@@ -0,0 +1,31 @@
+package com.superestos;
+
+/**
+ * A function compiled to bytecode for the VM. The top-level script is
+ * compiled into one of these too, with no name and no parameters.
+ */
+class CompiledFunction {
+    final Token name;
+    final int arity;
+    final Chunk chunk;
+    // Parameters plus every local of every nested block, flattened.
+    final int locals;
+    // Deepest the operand stack gets above the locals.
+    final int maxStack;
+
+    CompiledFunction(Token name, int arity, Chunk chunk, int locals, int maxStack) {
+        this.name = name;
+        this.arity = arity;
+        this.chunk = chunk;
+        this.locals = locals;
+        this.maxStack = maxStack;
+    }
+
+    @Override
+    public String toString() {
+        if (name == null) {
+            return "<script>";
+        }
+        return "<fn " + name.lexeme() + ">";
+    }
+}
@@ -0,0 +1,534 @@
+package com.superestos;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.superestos.OpCode.*;
+
+/**
+ * Compiles resolved statements into bytecode for the VM. Each function body
+ * gets its own Compiler. The per-block frames the Resolver handed out are
+ * flattened into a single run of local slots per function, so a local at
+ * (depth, slot) becomes the slot 'frame base + slot' on the VM stack.
+ *
+ * Jumps and literals take a full int, so a body of any size compiles.
+ * Whatever else doesn't fit its operand (more than 0xffff functions and
+ * property sites in a chunk, globals or locals, or arguments to one call)
+ * is reported, and then nothing is compiled: the VM can't run a chunk with
+ * a truncated operand in it.
+ */
+public class Compiler {
+
+    private final Chunk chunk = new Chunk();
+    private final GlobalSlots globalSlots;
+    private final Reporter reporter;
+
+    // Base slot of every block frame that is currently open, innermost last.
+    private final List<Integer> frames = new ArrayList<>();
+    private int localCount;
+    private int maxLocals;
+
+    private int stackDepth = 0;
+    private int maxStack = 0;
+
+    private Compiler(GlobalSlots globalSlots, Reporter reporter, int parameterFrameSize) {
+        this.globalSlots = globalSlots;
+        this.reporter = reporter;
+        frames.add(0);
+        localCount = parameterFrameSize;
+        maxLocals = parameterFrameSize;
+    }
+
+    static CompiledFunction compileScript(List<Statement> statements, GlobalSlots globalSlots,
+                                          Reporter reporter) {
+        Compiler compiler = new Compiler(globalSlots, reporter, 0);
+        try {
+            compiler.compile(statements);
+        } catch (CompileError error) {
+            return null;
+        }
+        compiler.emit(NIL, null);
+        compiler.emit(RETURN, null);
+        return compiler.finish(null, 0);
+    }
+
+    private void compile(List<Statement> statements) {
+        for (Statement statement: statements) {
+            compile(statement);
+        }
+    }
+
+    public void visitPrintStatement(Statement.Print stmt) {
+        compile(stmt.expression);
+        emit(PRINT, null);
+    }
+
+    public void visitBlockStatement(Statement.Block stmt) {
+        if (stmt.frameSize == 0) {
+            compile(stmt.statements);
+            return;
+        }
+
+        frames.add(localCount);
+        localCount += stmt.frameSize;
+        maxLocals = Math.max(maxLocals, localCount);
+
+        compile(stmt.statements);
+
+        localCount -= stmt.frameSize;
+        frames.remove(frames.size() - 1);
+    }
+
+    public void visitExprStatement(Statement.Expr stmt) {
+        if (stmt.expression instanceof Expression.Assign) {
+            Expression.Assign expr = (Expression.Assign) stmt.expression;
+            compile(expr.value);
+            if (expr.depth < 0) {
+                emitWithOperand(STORE_GLOBAL, global(expr.slot, expr.name), expr.name);
+            } else {
+                emitWithOperand(STORE_LOCAL, local(expr.depth, expr.slot, expr.name), expr.name);
+            }
+            return;
+        }
+
+        compile(stmt.expression);
+        emit(POP, null);
+    }
+
+    public void visitVarStatement(Statement.Var stmt) {
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emit(NIL, null);
+        }
+
+        define(stmt.name, stmt.slot);
+    }
+
+    public void visitIfStatement(Statement.If stmt) {
+        int thenJump = emitJumpIfFalse(stmt.condition);
+        compile(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            patchJump(thenJump);
+            return;
+        }
+
+        int elseJump = emitJump(JUMP, null);
+        patchJump(thenJump);
+        compile(stmt.elseBranch);
+        patchJump(elseJump);
+    }
+
+    public void visitWhileStatement(Statement.While stmt) {
+        int loopStart = chunk.count;
+        int exitJump = emitJumpIfFalse(stmt.condition);
+        compile(stmt.body);
+        emitLoop(loopStart);
+        patchJump(exitJump);
+    }
+
+    public void visitFunctionStatement(Statement.Function stmt) {
+        Compiler compiler = new Compiler(globalSlots, reporter, stmt.frameSize);
+        compiler.compile(stmt.body);
+        compiler.emit(NIL, null);
+        compiler.emit(RETURN, null);
+
+        CompiledFunction function = compiler.finish(stmt.name, stmt.parameters.size());
+        emitWithOperand(CONSTANT, constant(function, stmt.name), null);
+        define(stmt.name, stmt.slot);
+    }
+
+    public void visitClassStatement(Statement.Class stmt) {
+        if (stmt.superclass != null) {
+            visitVariableExpr(stmt.superclass);
+        } else {
+            emit(NIL, null);
+        }
+
+        CompiledFunction[] methods = new CompiledFunction[stmt.methods.size()];
+        for (int i = 0; i < methods.length; i++) {
+            Statement.Function method = stmt.methods.get(i);
+            Compiler compiler = new Compiler(globalSlots, reporter, method.frameSize);
+            compiler.compile(method.body);
+            compiler.emit(NIL, null);
+            compiler.emit(RETURN, null);
+            methods[i] = compiler.finish(method.name, method.parameters.size());
+        }
+
+        CompiledClass compiled = new CompiledClass(stmt.name, stmt.superclass != null, methods);
+        Token token = stmt.superclass != null ? stmt.superclass.name : stmt.name;
+        emitWithOperand(CLASS, constant(compiled, stmt.name), token);
+        define(stmt.name, stmt.slot);
+    }
+
+    public void visitReturnStatement(Statement.Return stmt) {
+        if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            emit(NIL, null);
+        }
+
+        emit(RETURN, null);
+    }
+
+    public void visitLiteralExpr(Expression.Literal expr) {
+        if (expr.value == null) {
+            emit(NIL, null);
+        } else if (expr.value == Boolean.TRUE) {
+            emit(TRUE, null);
+        } else if (expr.value == Boolean.FALSE) {
+            emit(FALSE, null);
+        } else {
+            // A generated script can have more distinct literals than a
+            // u16 reaches; nothing else comes close.
+            int index = chunk.addConstant(expr.value);
+            if (index > 0xffff) {
+                emit(CONSTANT_WIDE, null);
+                emitInt(index);
+            } else {
+                emitWithOperand(CONSTANT, index, null);
+            }
+        }
+    }
+
+    public void visitGroupingExpr(Expression.Grouping expr) {
+        compile(expr.expression);
+    }
+
+    public void visitUnaryExpr(Expression.Unary expr) {
+        compile(expr.right);
+
+        switch (expr.operator.type) {
+            case BANG:
+                emit(NOT, expr.operator);
+                break;
+            case MINUS:
+                emit(NEGATE, expr.operator);
+                break;
+        }
+    }
+
+    public void visitBinaryExpr(Expression.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+
+        switch (expr.operator.type) {
+            case PLUS: emit(ADD, expr.operator); break;
+            case MINUS: emit(SUBTRACT, expr.operator); break;
+            case SLASH: emit(DIVIDE, expr.operator); break;
+            case STAR: emit(MULTIPLY, expr.operator); break;
+            case GREATER: emit(GREATER, expr.operator); break;
+            case GREATER_EQUAL: emit(GREATER_EQUAL, expr.operator); break;
+            case LESS: emit(LESS, expr.operator); break;
+            case LESS_EQUAL: emit(LESS_EQUAL, expr.operator); break;
+            case BANG_EQUAL: emit(NOT_EQUAL, expr.operator); break;
+            case EQUAL_EQUAL: emit(EQUAL, expr.operator); break;
+        }
+    }
+
+    public void visitVariableExpr(Expression.Variable expr) {
+        if (expr.depth < 0) {
+            emitWithOperand(GET_GLOBAL, global(expr.slot, expr.name), expr.name);
+        } else {
+            emitWithOperand(GET_LOCAL, local(expr.depth, expr.slot, expr.name), expr.name);
+        }
+    }
+
+    public void visitAssignExpr(Expression.Assign expr) {
+        compile(expr.value);
+
+        if (expr.depth < 0) {
+            emitWithOperand(SET_GLOBAL, global(expr.slot, expr.name), expr.name);
+        } else {
+            emitWithOperand(SET_LOCAL, local(expr.depth, expr.slot, expr.name), expr.name);
+        }
+    }
+
+    public void visitLogicalExpr(Expression.Logical expr) {
+        compile(expr.left);
+
+        if (expr.operator.type == TokenType.OR) {
+            int elseJump = emitJump(JUMP_IF_FALSE, null);
+            int endJump = emitJump(JUMP, null);
+            patchJump(elseJump);
+            emit(POP, null);
+            compile(expr.right);
+            patchJump(endJump);
+        } else {
+            int endJump = emitJump(JUMP_IF_FALSE, null);
+            emit(POP, null);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+    }
+
+    public void visitCallExpr(Expression.Call expr) {
+        Expression.Get get = expr.callee instanceof Expression.Get ? (Expression.Get) expr.callee : null;
+        compile(get != null ? get.object : expr.callee);
+        for (Expression argument: expr.arguments) {
+            compile(argument);
+        }
+
+        if (expr.arguments.size() > 0xffff) {
+            error(expr.paren, "Can't have more than 65535 arguments.");
+        }
+
+        // A method's 'this' and 'super' are pushed after its arguments.
+        maxStack = Math.max(maxStack, stackDepth + 2);
+        if (get != null) {
+            // 'object.name(...)' looks the method up and calls it in one go,
+            // with the instance in the callee's place.
+            emitWithOperand(INVOKE, constant(get.cache, get.name), get.name);
+            chunk.write((byte) (expr.arguments.size() >> 8), expr.paren);
+            emitByte(expr.arguments.size());
+        } else {
+            emit(CALL, expr.paren);
+            emitShort(expr.arguments.size());
+        }
+        // The callee and its arguments are replaced by the result.
+        stackDepth -= expr.arguments.size();
+    }
+
+    public void visitIndexExpr(Expression.Index expr) {
+        compile(expr.object);
+        compile(expr.index);
+        emit(GET_INDEX, expr.bracket);
+    }
+
+    public void visitSetIndexExpr(Expression.SetIndex expr) {
+        compile(expr.object);
+        compile(expr.index);
+        compile(expr.value);
+        emit(SET_INDEX, expr.bracket);
+    }
+
+    public void visitGetExpr(Expression.Get expr) {
+        compile(expr.object);
+        emitWithOperand(GET_PROPERTY, constant(expr.cache, expr.name), expr.name);
+    }
+
+    public void visitSetExpr(Expression.Set expr) {
+        compile(expr.object);
+        compile(expr.value);
+        emitWithOperand(SET_PROPERTY, constant(expr.cache, expr.name), expr.name);
+    }
+
+    public void visitThisExpr(Expression.This expr) {
+        emitWithOperand(GET_LOCAL, local(expr.depth, expr.slot, expr.keyword), expr.keyword);
+    }
+
+    public void visitSuperExpr(Expression.Super expr) {
+        emitWithOperand(GET_LOCAL, local(expr.depth, expr.slot - 1, expr.keyword), expr.keyword);
+        emitWithOperand(GET_LOCAL, local(expr.depth, expr.slot, expr.keyword), expr.keyword);
+        emitWithOperand(GET_SUPER, constant(expr.cache, expr.method), expr.method);
+    }
+
+    private void compile(Expression expr) {
+        if (expr instanceof Expression.Binary) {
+            visitBinaryExpr((Expression.Binary) expr);
+        }
+        if (expr instanceof Expression.Unary) {
+            visitUnaryExpr((Expression.Unary) expr);
+        }
+        if (expr instanceof Expression.Grouping) {
+            visitGroupingExpr((Expression.Grouping) expr);
+        }
+        if (expr instanceof Expression.Literal) {
+            visitLiteralExpr((Expression.Literal) expr);
+        }
+        if (expr instanceof Expression.Variable) {
+            visitVariableExpr((Expression.Variable) expr);
+        }
+        if (expr instanceof Expression.Assign) {
+            visitAssignExpr((Expression.Assign) expr);
+        }
+        if (expr instanceof Expression.Logical) {
+            visitLogicalExpr((Expression.Logical) expr);
+        }
+        if (expr instanceof Expression.Call) {
+            visitCallExpr((Expression.Call) expr);
+        }
+        if (expr instanceof Expression.Index) {
+            visitIndexExpr((Expression.Index) expr);
+        }
+        if (expr instanceof Expression.SetIndex) {
+            visitSetIndexExpr((Expression.SetIndex) expr);
+        }
+        if (expr instanceof Expression.Get) {
+            visitGetExpr((Expression.Get) expr);
+        }
+        if (expr instanceof Expression.Set) {
+            visitSetExpr((Expression.Set) expr);
+        }
+        if (expr instanceof Expression.This) {
+            visitThisExpr((Expression.This) expr);
+        }
+        if (expr instanceof Expression.Super) {
+            visitSuperExpr((Expression.Super) expr);
+        }
+    }
+
+    private void compile(Statement stmt) {
+        if (stmt instanceof Statement.Print) {
+            visitPrintStatement((Statement.Print) stmt);
+        }
+        if (stmt instanceof Statement.Expr) {
+            visitExprStatement((Statement.Expr) stmt);
+        }
+        if (stmt instanceof Statement.Var) {
+            visitVarStatement((Statement.Var) stmt);
+        }
+        if (stmt instanceof Statement.Block) {
+            visitBlockStatement((Statement.Block) stmt);
+        }
+        if (stmt instanceof Statement.If) {
+            visitIfStatement((Statement.If) stmt);
+        }
+        if (stmt instanceof Statement.While) {
+            visitWhileStatement((Statement.While) stmt);
+        }
+        if (stmt instanceof Statement.Function) {
+            visitFunctionStatement((Statement.Function) stmt);
+        }
+        if (stmt instanceof Statement.Return) {
+            visitReturnStatement((Statement.Return) stmt);
+        }
+        if (stmt instanceof Statement.Class) {
+            visitClassStatement((Statement.Class) stmt);
+        }
+    }
+
+    private CompiledFunction finish(Token name, int arity) {
+        chunk.finish();
+        return new CompiledFunction(name, arity, chunk, maxLocals, maxStack);
+    }
+
+    private void define(Token name, int slot) {
+        if (slot < 0) {
+            emitWithOperand(DEFINE_GLOBAL, global(globalSlots.slot(name.lexeme()), name), name);
+        } else {
+            emitWithOperand(STORE_LOCAL, local(0, slot, name), name);
+        }
+    }
+
+    private int local(int depth, int slot, Token name) {
+        int local = frames.get(frames.size() - 1 - depth) + slot;
+        if (local > 0xffff) {
+            error(name, "Too many local variables in function.");
+        }
+        return local;
+    }
+
+    private int global(int slot, Token name) {
+        if (slot > 0xffff) {
+            error(name, "Too many global variables.");
+        }
+        return slot;
+    }
+
+    private int constant(Object value, Token token) {
+        int index = chunk.addConstant(value);
+        if (index > 0xffff) {
+            error(token, "Too many constants in one chunk.");
+        }
+        return index;
+    }
+
+    private void error(Token token, String message) {
+        reporter.error(token, message);
+        throw new CompileError();
+    }
+
+    private void emit(byte op, Token token) {
+        chunk.write(op, token);
+
+        stackDepth += stackEffect(op);
+        maxStack = Math.max(maxStack, stackDepth);
+    }
+
+    private void emitByte(int value) {
+        chunk.write((byte) value, null);
+    }
+
+    private void emitShort(int value) {
+        emitByte((value >> 8) & 0xff);
+        emitByte(value & 0xff);
+    }
+
+    private void emitWithOperand(byte op, int operand, Token token) {
+        emit(op, token);
+        emitShort(operand);
+    }
+
+    // Compiles the condition of an if or while, and a jump that is taken,
+    // with the condition popped, when it is false. A comparison jumps on
+    // its operands straight away, without making a Boolean first.
+    private int emitJumpIfFalse(Expression condition) {
+        if (condition instanceof Expression.Binary) {
+            Expression.Binary expr = (Expression.Binary) condition;
+            byte op;
+            switch (expr.operator.type) {
+                case LESS: op = JUMP_IF_NOT_LESS; break;
+                case LESS_EQUAL: op = JUMP_IF_NOT_LESS_EQUAL; break;
+                case GREATER: op = JUMP_IF_NOT_GREATER; break;
+                case GREATER_EQUAL: op = JUMP_IF_NOT_GREATER_EQUAL; break;
+                default: op = POP_JUMP_IF_FALSE; break;
+            }
+            if (op != POP_JUMP_IF_FALSE) {
+                compile(expr.left);
+                compile(expr.right);
+                return emitJump(op, expr.operator);
+            }
+        }
+
+        compile(condition);
+        return emitJump(POP_JUMP_IF_FALSE, null);
+    }
+
+    private void emitInt(int value) {
+        emitShort(value >>> 16);
+        emitShort(value & 0xffff);
+    }
+
+    private int emitJump(byte op, Token token) {
+        emit(op, token);
+        emitInt(-1);
+        return chunk.count - 4;
+    }
+
+    private void patchJump(int offset) {
+        int jump = chunk.count - offset - 4;
+        chunk.code[offset] = (byte) (jump >>> 24);
+        chunk.code[offset + 1] = (byte) (jump >>> 16);
+        chunk.code[offset + 2] = (byte) (jump >>> 8);
+        chunk.code[offset + 3] = (byte) jump;
+    }
+
+    private void emitLoop(int loopStart) {
+        emit(LOOP, null);
+        emitInt(chunk.count - loopStart + 4);
+    }
+
+    private static int stackEffect(byte op) {
+        switch (op) {
+            case CONSTANT: case CONSTANT_WIDE: case NIL: case TRUE: case FALSE:
+            case GET_LOCAL: case GET_GLOBAL:
+                return 1;
+            case POP: case DEFINE_GLOBAL: case PRINT: case RETURN:
+            case STORE_LOCAL: case STORE_GLOBAL: case POP_JUMP_IF_FALSE:
+            case EQUAL: case NOT_EQUAL: case GREATER: case GREATER_EQUAL:
+            case LESS: case LESS_EQUAL: case ADD: case SUBTRACT:
+            case MULTIPLY: case DIVIDE: case GET_INDEX:
+            case SET_PROPERTY: case GET_SUPER:
+                return -1;
+            case SET_INDEX:
+            case JUMP_IF_NOT_LESS: case JUMP_IF_NOT_LESS_EQUAL:
+            case JUMP_IF_NOT_GREATER: case JUMP_IF_NOT_GREATER_EQUAL:
+                return -2;
+            default:
+                return 0;
+        }
+    }
+
+    private static class CompileError extends RuntimeException {}
+}
@@ -0,0 +1,77 @@
+package com.superestos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs Programs for an embedder, from any number of threads at once.
+ *
+ * A run takes an idle execution context (an interpreter with its globals
+ * and output buffer) from the pool, or makes one if there is none, and
+ * hands it back when done. Taking and returning one doesn't lock, and
+ * during the run nothing is shared with other threads but the program.
+ * At most maxIdle contexts are kept between runs.
+ */
+public final class ContextPool {
+    private final Queue<Interpreter> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final int maxIdle;
+
+    public ContextPool() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ContextPool(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    // Runs the program with print writing to out, in the default charset.
+    public void run(Program program, OutputStream out) throws LoxException {
+        Interpreter interpreter = take(program);
+        try {
+            interpreter.out.redirect(out);
+            interpreter.runFresh(program);
+        } catch (Interpreter.RuntimeError error) {
+            Reporter reporter = new Reporter(null);
+            reporter.runtimeError(error);
+            throw new LoxException(reporter.errors());
+        } finally {
+            try {
+                interpreter.out.flush();
+            } finally {
+                interpreter.out.redirect(OutputStream.nullOutputStream());
+                release(interpreter);
+            }
+        }
+    }
+
+    // Runs the program and returns what it printed.
+    public String run(Program program) throws LoxException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        run(program, out);
+        return out.toString(Charset.defaultCharset());
+    }
+
+    private Interpreter take(Program program) {
+        Interpreter interpreter = idle.poll();
+        if (interpreter == null) {
+            return new Interpreter(program.globalSlots, new Output(OutputStream.nullOutputStream(),
+                    Charset.defaultCharset(), Output.FlushPolicy.SIZE));
+        }
+
+        idleCount.decrementAndGet();
+        return interpreter;
+    }
+
+    private void release(Interpreter interpreter) {
+        if (idleCount.incrementAndGet() <= maxIdle) {
+            idle.offer(interpreter);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+}
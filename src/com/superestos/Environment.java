@@ -1,54 +1,136 @@
 package com.superestos;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
 
 public class Environment {
+    private static final Object UNDEFINED = new Object();
+    private static final VarHandle GLOBAL = MethodHandles.arrayElementVarHandle(Object[].class);
+
     final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
 
-    Environment() {
+    // Locals live in a flat frame indexed by the slots the Resolver hands out.
+    // Globals live in a table indexed by their global slot.
+    final Object[] slots;
+    private Object[] globals;
+    // The slots of the globals of the program being run.
+    private GlobalSlots globalSlots;
+
+    Environment(GlobalSlots globalSlots) {
         enclosing = null;
+        slots = null;
+        this.globalSlots = globalSlots;
+        globals = new Object[globalSlots.size()];
+        Arrays.fill(globals, UNDEFINED);
+    }
+
+    Environment(Environment enclosing, int size) {
+        this(enclosing, new Object[size]);
     }
 
-    Environment(Environment enclosing) {
+    // A frame over slots that have already been filled in, such as a
+    // function's parameters.
+    Environment(Environment enclosing, Object[] slots) {
         this.enclosing = enclosing;
+        this.slots = slots;
+        this.globals = null;
+    }
+
+    int globalSlot(String name) {
+        return globalSlots.slot(name);
+    }
+
+    // Undefines every global and takes the slots of the program that runs
+    // next, so the environment can be used for another run.
+    void reset(GlobalSlots globalSlots) {
+        this.globalSlots = globalSlots;
+        if (globals.length != globalSlots.size()) {
+            globals = new Object[globalSlots.size()];
+        }
+        Arrays.fill(globals, UNDEFINED);
+    }
+
+    // Makes room for every global slot handed out so far, which the REPL
+    // adds to line by line. Engines call this before running a program, so
+    // the table is never replaced while tasks the program spawns use it: all
+    // they do is read and write its elements, and a global written by one
+    // task is visible to another once they have synchronized through a
+    // channel or await.
+    void reserveGlobals() {
+        int size = globalSlots.size();
+        if (size > globals.length) {
+            int length = globals.length;
+            globals = Arrays.copyOf(globals, Math.max(size, length * 2));
+            Arrays.fill(globals, length, globals.length, UNDEFINED);
+        }
     }
 
     void define(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
+        define(globalSlot(name.lexeme()), name, value);
+    }
+
+    // A program may define a global with the name of a native, which then
+    // replaces it.
+    void define(int slot, Token name, Object value) {
+        if (slot >= globals.length) {
+            reserveGlobals();
+        }
+
+        Object current = globals[slot];
+        if ((current != UNDEFINED && !(current instanceof Native)) ||
+                !GLOBAL.compareAndSet(globals, slot, current, value)) {
             throw new Interpreter.RuntimeError(name,
-                    "Variable '" + name.lexeme + "' already defined.");
+                    "Variable '" + name.lexeme() + "' already defined.");
         }
+    }
 
-        values.put(name.lexeme, value);
+    void defineNative(String name, Native function) {
+        globals[globalSlots.slot(name)] = function;
     }
 
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
+    // Whether the global in this slot is the value, such as a native a call
+    // site was compiled for.
+    boolean holds(int slot, Object value) {
+        return slot < globals.length && globals[slot] == value;
+    }
 
-        if (enclosing != null) {
-            return enclosing.get(name);
+    Object get(int slot, Token name) {
+        if (slot < globals.length) {
+            Object value = globals[slot];
+            if (value != UNDEFINED) {
+                return value;
+            }
         }
 
         throw new Interpreter.RuntimeError(name,
-            "Undefined variable '" + name.lexeme + "'.");
+            "Undefined variable '" + name.lexeme() + "'.");
     }
 
-    void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
+    void assign(int slot, Token name, Object value) {
+        if (slot < globals.length && globals[slot] != UNDEFINED) {
+            globals[slot] = value;
             return;
         }
 
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
+        throw new Interpreter.RuntimeError(name,
+                "Undefined variable '" + name.lexeme() + "'.");
+    }
+
+    Object getAt(int depth, int slot) {
+        return ancestor(depth).slots[slot];
+    }
+
+    void assignAt(int depth, int slot, Object value) {
+        ancestor(depth).slots[slot] = value;
+    }
+
+    private Environment ancestor(int depth) {
+        Environment environment = this;
+        for (int i = 0; i < depth; i++) {
+            environment = environment.enclosing;
         }
 
-        throw new Interpreter.RuntimeError(name,
-                "Undefined variable '" + name.lexeme + "'.");
+        return environment;
     }
 }
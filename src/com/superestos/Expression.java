@@ -14,6 +14,9 @@ abstract class Expression {
         final Expression left;
         final Token operator;
         final Expression right;
+
+        // Rewritten in place as the interpreter observes operand types.
+        BinaryNode node = BinaryNode.UNINITIALIZED;
     }
 
     static class Unary extends Expression {
@@ -48,6 +51,11 @@ abstract class Expression {
         }
 
         final Token name;
+
+        // Filled in by the Resolver. A depth of -1 means the name is global,
+        // and slot is then its slot in the global table.
+        int depth = -1;
+        int slot;
     }
 
     static class Assign extends Expression {
@@ -58,6 +66,11 @@ abstract class Expression {
 
         final Token name;
         final Expression value;
+
+        // Filled in by the Resolver. A depth of -1 means the name is global,
+        // and slot is then its slot in the global table.
+        int depth = -1;
+        int slot;
     }
 
     static class Logical extends Expression {
@@ -82,5 +95,99 @@ abstract class Expression {
         final Expression callee;
         final List<Expression> arguments;
         final Token paren;
+
+        // The declaration of the last Lox function this site called, which
+        // is known to take this many arguments. The tree is shared by every
+        // run of a Program, so the cache holds the declaration rather than
+        // the Function, which belongs to one run and keeps its globals alive.
+        Statement.Function cachedDeclaration;
+
+        // Set by the Resolver when the callee is a global named like an
+        // intrinsic that takes this many arguments.
+        Library.Intrinsic intrinsic;
+    }
+
+    static class Index extends Expression {
+        Index(Expression object, Expression index, Token bracket) {
+            this.object = object;
+            this.index = index;
+            this.bracket = bracket;
+        }
+
+        final Expression object;
+        final Expression index;
+        final Token bracket;
+    }
+
+    static class SetIndex extends Expression {
+        SetIndex(Expression object, Expression index, Expression value, Token bracket) {
+            this.object = object;
+            this.index = index;
+            this.value = value;
+            this.bracket = bracket;
+        }
+
+        final Expression object;
+        final Expression index;
+        final Expression value;
+        final Token bracket;
+    }
+
+    static class Get extends Expression {
+        Get(Expression object, Token name) {
+            this.object = object;
+            this.name = name;
+        }
+
+        final Expression object;
+        final Token name;
+
+        // Where the field or method is for the shapes this site has seen.
+        final PropertyCache cache = new PropertyCache();
+    }
+
+    static class Set extends Expression {
+        Set(Expression object, Token name, Expression value) {
+            this.object = object;
+            this.name = name;
+            this.value = value;
+        }
+
+        final Expression object;
+        final Token name;
+        final Expression value;
+
+        final PropertyCache cache = new PropertyCache();
+    }
+
+    // 'this' and 'super' are locals of every method, in the slots right
+    // after its parameters; see LoxClass.
+    static class This extends Expression {
+        This(Token keyword) {
+            this.keyword = keyword;
+        }
+
+        final Token keyword;
+
+        // Filled in by the Resolver.
+        int depth;
+        int slot;
+    }
+
+    static class Super extends Expression {
+        Super(Token keyword, Token method) {
+            this.keyword = keyword;
+            this.method = method;
+        }
+
+        final Token keyword;
+        final Token method;
+
+        // Filled in by the Resolver: where the superclass is. 'this' is in
+        // the slot before it.
+        int depth;
+        int slot;
+
+        final PropertyCache cache = new PropertyCache();
     }
 }
@@ -2,22 +2,117 @@ package com.superestos;
 
 import java.util.List;
 
-public class Function implements Callable {
-    private final Statement.Function declaration;
+public class Function implements Callable, LoxClass.CallableMethod {
+    final Statement.Function declaration;
+    final int arity;
+    // For a method of a class with a superclass, the superclass.
+    final LoxClass superclass;
+    // Results by arguments, for pure functions. Each function object has
+    // its own, so runs on different threads don't share one.
+    final Memo memo;
 
     Function(Statement.Function declaration) {
+        this(declaration, null);
+    }
+
+    Function(Statement.Function declaration, LoxClass superclass) {
         this.declaration = declaration;
+        this.arity = declaration.parameters.size();
+        this.superclass = superclass;
+        this.memo = declaration.pure ? new Memo() : null;
+    }
+
+    // A frame for a call, with room for the parameters in its first slots
+    // and for every local of the body after them.
+    Object[] newFrame() {
+        return new Object[declaration.frameSize];
+    }
+
+    // A frame for a call of a method, with 'this' and 'super' set.
+    Object[] newFrame(Instance receiver) {
+        Object[] frame = new Object[declaration.frameSize];
+        frame[arity] = receiver;
+        if (superclass != null) {
+            frame[arity + 1] = superclass;
+        }
+        return frame;
     }
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(interpreter.globals);
-        for (int i = 0; i < declaration.parameters.size(); i++) {
-            environment.define(declaration.parameters.get(i), arguments.get(i));
+        Object[] frame = newFrame();
+        for (int i = 0; i < arity; i++) {
+            frame[i] = arguments.get(i);
+        }
+        return call(interpreter, frame);
+    }
+
+    @Override
+    public Object callMethod(Interpreter interpreter, Instance receiver, List<Object> arguments) {
+        Object[] frame = newFrame(receiver);
+        for (int i = 0; i < arity; i++) {
+            frame[i] = arguments.get(i);
+        }
+        return call(interpreter, frame);
+    }
+
+    // The result of a memoized function is looked up first, and stored for
+    // the arguments it was called with once any tail calls have finished.
+    Object call(Interpreter interpreter, Object[] frame) {
+        Object key = memo != null ? memo.key(frame, arity) : null;
+        if (key == null) {
+            return run(interpreter, frame);
+        }
+
+        Object result = memo.get(key);
+        if (result == Memo.MISSING) {
+            result = run(interpreter, frame);
+            memo.put(key, result);
+        }
+        return result;
+    }
+
+    // A tail call in the body unwinds back to here as a TailCall, and the
+    // callee runs in this loop instead of one level deeper, so tail-recursive
+    // functions run in constant Java stack space.
+    private Object run(Interpreter interpreter, Object[] frame) {
+        Function function = this;
+        while (true) {
+            try {
+                return function.enter(interpreter, frame);
+            } catch (Interpreter.TailCall tailCall) {
+                function = tailCall.function;
+                frame = tailCall.frame;
+            }
+        }
+    }
+
+    private Object enter(Interpreter interpreter, Object[] frame) {
+        Profiler profiler = interpreter.profiler;
+        if (profiler == null) {
+            return invoke(interpreter, frame);
+        }
+
+        profiler.enter(this);
+        try {
+            return invoke(interpreter, frame);
+        } finally {
+            profiler.exit();
+        }
+    }
+
+    private Object invoke(Interpreter interpreter, Object[] frame) {
+        Jit.Tier tier = declaration.tier;
+        Jit.Compiled compiled = tier.compiled;
+        if (compiled == null && tier.hot()) {
+            compiled = tier.publish(Jit.compile(declaration));
+        }
+        if (compiled != null) {
+            return compiled.call(interpreter, frame);
         }
 
         try {
-            interpreter.executeBlock(declaration.body, environment);
+            interpreter.executeBlock(declaration.body, new Environment(interpreter.globals, frame));
         } catch (Interpreter.Return returnValue) {
             return returnValue.value;
         }
@@ -26,11 +121,16 @@ public class Function implements Callable {
 
     @Override
     public int arity() {
-        return declaration.parameters.size();
+        return arity;
+    }
+
+    @Override
+    public boolean isolated() {
+        return declaration.isolated;
     }
 
     @Override
     public String toString() {
-        return "<fn " + declaration.name.lexeme + ">";
+        return "<fn " + declaration.name.lexeme() + ">";
     }
 }
@@ -0,0 +1,43 @@
+package com.superestos;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The slot of every global name of one program. The Resolver hands them
+ * out, and the global environment the program runs in is a table with
+ * room for exactly these. A Program has its own; the command line has one
+ * for the whole session, since each REPL line sees the globals of the ones
+ * before.
+ *
+ * The natives take the first slots of every table, so an engine can define
+ * them before it knows which program it will run.
+ */
+final class GlobalSlots {
+    // Looking up a name that has a slot takes no lock.
+    private final Map<String, Integer> slots = new ConcurrentHashMap<>();
+
+    GlobalSlots() {
+        for (List<Native> natives: Native.all()) {
+            for (Native function: natives) {
+                slot(function.name);
+            }
+        }
+    }
+
+    int slot(String name) {
+        Integer slot = slots.get(name);
+        if (slot != null) {
+            return slot;
+        }
+
+        synchronized (slots) {
+            return slots.computeIfAbsent(name, key -> slots.size());
+        }
+    }
+
+    int size() {
+        return slots.size();
+    }
+}
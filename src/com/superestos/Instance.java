@@ -0,0 +1,38 @@
+package com.superestos;
+
+import java.util.Arrays;
+
+/**
+ * An instance of a Lox class. Its fields are a plain array laid out by its
+ * Shape, so reading one through a warm PropertyCache is an array load with
+ * no hashing. Like arrays and maps, instances aren't synchronized.
+ */
+final class Instance {
+    Shape shape;
+    Object[] fields;
+
+    Instance(LoxClass klass) {
+        shape = klass.shape;
+        fields = new Object[klass.fieldCapacity];
+    }
+
+    // Adds a field in the slot after the last, moving to the shape with it.
+    void add(Shape next, Object value) {
+        int slot = shape.size;
+        if (slot == fields.length) {
+            fields = Arrays.copyOf(fields, Math.max(4, slot * 2));
+            // Later instances of the class start out with this much room.
+            LoxClass klass = shape.klass;
+            if (klass.fieldCapacity < fields.length) {
+                klass.fieldCapacity = fields.length;
+            }
+        }
+        fields[slot] = value;
+        shape = next;
+    }
+
+    @Override
+    public String toString() {
+        return shape.klass.name + " instance";
+    }
+}
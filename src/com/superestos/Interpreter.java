@@ -1,30 +1,80 @@
 package com.superestos;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class Interpreter {
 
-    final Environment globals = new Environment();
-    private Environment environment = globals;
+    final Environment globals;
+    final Output out;
+    private Environment environment;
+
+    // Set when running with --profile.
+    Profiler profiler;
+
+    Interpreter(GlobalSlots globalSlots) {
+        this(globalSlots, Output.standard());
+    }
+
+    Interpreter(GlobalSlots globalSlots, Output out) {
+        this(new Environment(globalSlots), out);
+        Native.defineAll(globals);
+    }
+
+    private Interpreter(Environment globals, Output out) {
+        this.globals = globals;
+        this.out = out;
+        this.environment = globals;
+    }
+
+    // An interpreter for a task this one spawns, sharing its globals and output.
+    Interpreter forTask() {
+        return new Interpreter(globals, out);
+    }
 
     void interpret(List<Statement> statements) {
         try {
-            for (Statement statement: statements) {
-                execute(statement);
-            }
+            globals.reserveGlobals();
+            run(statements);
         } catch (RuntimeError error) {
+            out.flush();
             Main.runtimeError(error);
+        } finally {
+            out.flush();
+        }
+    }
+
+    // Runs a whole program and leaves reporting any runtime error to the
+    // caller. Globals from an earlier run are cleared first, and the table
+    // sized for this program's, so the same interpreter can run program
+    // after program.
+    void runFresh(Program program) {
+        globals.reset(program.globalSlots);
+        Native.defineAll(globals);
+        environment = globals;
+        run(program.statements);
+    }
+
+    private void run(List<Statement> statements) {
+        for (Statement statement: statements) {
+            execute(statement);
         }
     }
 
     public void visitPrintStatement(Statement.Print stmt) {
         Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        out.print(value);
     }
 
     public void visitBlockStatement(Statement.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
+        if (stmt.frameSize == 0) {
+            executeBlock(stmt.statements, environment);
+            return;
+        }
+
+        executeBlock(stmt.statements, new Environment(environment, stmt.frameSize));
     }
 
     public void visitExprStatement(Statement.Expr stmt) {
@@ -37,7 +87,7 @@ public class Interpreter {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name, value);
+        define(stmt.name, stmt.slot, value);
     }
 
     public void visitIfStatement(Statement.If stmt) {
@@ -49,17 +99,118 @@ public class Interpreter {
     }
 
     public void visitWhileStatement(Statement.While stmt) {
-        while (isTruthy(evaluate(stmt.condition))) {
+        Jit.Compiled compiled = stmt.tier.compiled;
+        while (compiled == null && isTruthy(evaluate(stmt.condition))) {
             execute(stmt.body);
+            compiled = backEdge(stmt);
+        }
+
+        if (compiled != null) {
+            runCompiled(stmt, compiled);
+        }
+    }
+
+    // Counts a back edge of a loop, and returns the loop's compiled code
+    // once there is some, for the rest of the loop to run in.
+    private static Jit.Compiled backEdge(Statement.While stmt) {
+        if (stmt.enclosingFrames == null) {
+            // A loop with a return makes its function hot instead, and
+            // the next call runs compiled.
+            Jit.Tier tier = stmt.function != null ? stmt.function.tier : null;
+            if (tier != null && tier.compiled == null && tier.hot()) {
+                tier.publish(Jit.compile(stmt.function));
+            }
+            return null;
+        }
+
+        Jit.Tier tier = stmt.tier;
+        Jit.Compiled compiled = tier.compiled;
+        if (compiled == null && tier.hot()) {
+            compiled = tier.publish(Jit.compile(stmt));
+        }
+        return compiled;
+    }
+
+    // The compiled loop gets the locals it can see in one array, outermost
+    // frame first, and leaves their new values there.
+    private void runCompiled(Statement.While stmt, Jit.Compiled compiled) {
+        int[] sizes = stmt.enclosingFrames;
+        int count = 0;
+        for (int size: sizes) {
+            count += size;
+        }
+
+        Object[] locals = new Object[count];
+        Environment frame = environment;
+        for (int i = sizes.length - 1; i >= 0; i--) {
+            count -= sizes[i];
+            System.arraycopy(frame.slots, 0, locals, count, sizes[i]);
+            frame = frame.enclosing;
+        }
+
+        compiled.call(this, locals);
+
+        frame = environment;
+        count = locals.length;
+        for (int i = sizes.length - 1; i >= 0; i--) {
+            count -= sizes[i];
+            System.arraycopy(locals, count, frame.slots, 0, sizes[i]);
+            frame = frame.enclosing;
         }
     }
 
     public void visitFunctionStatement(Statement.Function stmt) {
         Function function = new Function(stmt);
-        environment.define(stmt.name, function);
+        define(stmt.name, stmt.slot, function);
+    }
+
+    public void visitClassStatement(Statement.Class stmt) {
+        Object superclass = null;
+        if (stmt.superclass != null) {
+            superclass = evaluate(stmt.superclass);
+        }
+
+        define(stmt.name, stmt.slot, newClass(stmt, superclass));
+    }
+
+    // Also what the Jit's class statements call.
+    static LoxClass newClass(Statement.Class stmt, Object superclass) {
+        LoxClass parent = null;
+        if (stmt.superclass != null) {
+            parent = LoxClass.superclass(superclass, stmt.superclass.name);
+        }
+
+        Map<String, LoxClass.Method> methods = new HashMap<>();
+        for (Statement.Function method: stmt.methods) {
+            methods.put(method.name.lexeme(), new Function(method, parent));
+        }
+        return new LoxClass(stmt.name.lexeme(), parent, methods);
     }
 
     public void visitReturnStatement(Statement.Return stmt) {
+        if (stmt.tailCall) {
+            Expression.Call call = (Expression.Call) stmt.value;
+            if (isIntrinsic(call)) {
+                throw new Return(callIntrinsic(call));
+            }
+            Object callee = evaluate(call.callee);
+
+            // Unwinds to the Function.call that is running this function,
+            // which then runs the callee in its place.
+            if (isDirectCall(call, callee)) {
+                throw new TailCall((Function) callee, evaluateFrame(call, (Function) callee));
+            }
+            if (isDirectMethodCall(call, callee)) {
+                LoxClass.BoundMethod bound = (LoxClass.BoundMethod) callee;
+                Function method = (Function) bound.method;
+                throw new TailCall(method, evaluateFrame(call, method.newFrame(bound.receiver)));
+            }
+
+            List<Object> arguments = evaluateArguments(call);
+            checkCall(call, callee, arguments.size());
+            throw new Return(callOther(callee, arguments, call.paren));
+        }
+
         Object value = null;
         if (stmt.value != null) {
             value = evaluate(stmt.value);
@@ -96,54 +247,32 @@ public class Interpreter {
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
-        switch (expr.operator.type) {
-            case PLUS:
-                if (left instanceof Double && right instanceof Double) {
-                    return (double)left + (double)right;
-                }
-                if (left instanceof String && right instanceof String) {
-                    return (String)left + (String)right;
-                }
-                throw new RuntimeError(expr.operator,
-                        "Operands must be two numbers or two strings.");
-
-            case MINUS:
-                checkNumberOperand(expr.operator, left, right);
-                return (double)left - (double)right;
-            case SLASH:
-                checkNumberOperand(expr.operator, left, right);
-                return (double)left / (double)right;
-            case STAR:
-                checkNumberOperand(expr.operator, left, right);
-                return (double)left * (double)right;
-            case GREATER:
-                checkNumberOperand(expr.operator, left, right);
-                return (double)left > (double)right;
-            case GREATER_EQUAL:
-                checkNumberOperand(expr.operator, left, right);
-                return (double)left >= (double)right;
-            case LESS:
-                checkNumberOperand(expr.operator, left, right);
-                return (double)left < (double)right;
-            case LESS_EQUAL:
-                checkNumberOperand(expr.operator, left, right);
-                return (double)left <= (double)right;
-            case BANG_EQUAL:
-                return !isEqual(left, right);
-            case EQUAL_EQUAL:
-                return isEqual(left, right);
+        if (profiler != null) {
+            profiler.line(expr.operator.line);
         }
 
-        return null;
+        return expr.node.execute(expr, left, right);
     }
 
     public Object visitVariableExpr(Expression.Variable expr) {
-        return environment.get(expr.name);
+        if (expr.depth < 0) {
+            return globals.get(expr.slot, expr.name);
+        }
+
+        return environment.getAt(expr.depth, expr.slot);
     }
 
     public Object visitAssignExpr(Expression.Assign expr) {
         Object value = evaluate(expr.value);
-        environment.assign(expr.name, value);
+
+        if (profiler != null) {
+            profiler.line(expr.name.line);
+        }
+        if (expr.depth < 0) {
+            globals.assign(expr.slot, expr.name, value);
+        } else {
+            environment.assignAt(expr.depth, expr.slot, value);
+        }
         return value;
     }
 
@@ -163,23 +292,195 @@ public class Interpreter {
     }
 
     public Object visitCallExpr(Expression.Call expr) {
+        if (isIntrinsic(expr)) {
+            return callIntrinsic(expr);
+        }
+
+        if (expr.callee instanceof Expression.Get) {
+            return invoke(expr, (Expression.Get) expr.callee);
+        }
+
         Object callee = evaluate(expr.callee);
+        if (isDirectCall(expr, callee)) {
+            Function function = (Function) callee;
+            return function.call(this, evaluateFrame(expr, function));
+        }
+
+        List<Object> arguments = evaluateArguments(expr);
+        checkCall(expr, callee, arguments.size());
+
+        return callOther(callee, arguments, expr.paren);
+    }
+
+    // 'object.name(...)'. A method the site's inline cache finds is called
+    // with the instance put straight into its frame, with no BoundMethod.
+    private Object invoke(Expression.Call expr, Expression.Get get) {
+        Object object = evaluate(get.object);
+        PropertyCache.Entry entry = get.cache.lookup(object, get.name);
+        if (entry.method instanceof Function) {
+            Function method = (Function) entry.method;
+            if (method.arity != expr.arguments.size()) {
+                throw new RuntimeError(expr.paren, "Expected " + method.arity +
+                        " arguments but got " + expr.arguments.size() + ".");
+            }
+            return method.call(this, evaluateFrame(expr, method.newFrame((Instance) object)));
+        }
+
+        Object callee = entry.method != null ? new LoxClass.BoundMethod((Instance) object, entry.method) :
+                ((Instance) object).fields[entry.slot];
+        List<Object> arguments = evaluateArguments(expr);
+        checkCall(expr, callee, arguments.size());
+        return callOther(callee, arguments, expr.paren);
+    }
+
+    private boolean isIntrinsic(Expression.Call expr) {
+        return expr.intrinsic != null &&
+                globals.holds(((Expression.Variable) expr.callee).slot, expr.intrinsic.function);
+    }
+
+    // The arguments go straight to the intrinsic, with no list in between.
+    private Object callIntrinsic(Expression.Call expr) {
+        List<Expression> arguments = expr.arguments;
+        Object a = arguments.size() > 0 ? evaluate(arguments.get(0)) : null;
+        Object b = arguments.size() > 1 ? evaluate(arguments.get(1)) : null;
+
+        if (profiler != null) {
+            profiler.line(expr.paren.line);
+        }
+        return expr.intrinsic.call(a, b, expr.paren);
+    }
+
+    public Object visitIndexExpr(Expression.Index expr) {
+        Object array = evaluate(expr.object);
+        Object index = evaluate(expr.index);
+
+        if (profiler != null) {
+            profiler.line(expr.bracket.line);
+        }
+        return Array.get(array, index, expr.bracket);
+    }
+
+    public Object visitSetIndexExpr(Expression.SetIndex expr) {
+        Object array = evaluate(expr.object);
+        Object index = evaluate(expr.index);
+        Object value = evaluate(expr.value);
+
+        if (profiler != null) {
+            profiler.line(expr.bracket.line);
+        }
+        return Array.set(array, index, value, expr.bracket);
+    }
+
+    public Object visitGetExpr(Expression.Get expr) {
+        Object object = evaluate(expr.object);
+
+        if (profiler != null) {
+            profiler.line(expr.name.line);
+        }
+        return expr.cache.get(object, expr.name);
+    }
+
+    public Object visitSetExpr(Expression.Set expr) {
+        Object object = evaluate(expr.object);
+        Object value = evaluate(expr.value);
+
+        if (profiler != null) {
+            profiler.line(expr.name.line);
+        }
+        return expr.cache.set(object, expr.name, value);
+    }
+
+    public Object visitThisExpr(Expression.This expr) {
+        return environment.getAt(expr.depth, expr.slot);
+    }
+
+    public Object visitSuperExpr(Expression.Super expr) {
+        LoxClass superclass = (LoxClass) environment.getAt(expr.depth, expr.slot);
+        Instance receiver = (Instance) environment.getAt(expr.depth, expr.slot - 1);
+        return new LoxClass.BoundMethod(receiver, expr.cache.findSuper(superclass, expr.method));
+    }
+
+    // A call to a Lox function with the right number of arguments needs no
+    // checks, and its arguments can go straight into the callee's frame.
+    private boolean isDirectCall(Expression.Call expr, Object callee) {
+        return callee instanceof Function && ((Function) callee).arity == expr.arguments.size();
+    }
+
+    // The same for a method bound to its instance.
+    private boolean isDirectMethodCall(Expression.Call expr, Object callee) {
+        if (!(callee instanceof LoxClass.BoundMethod)) {
+            return false;
+        }
+        LoxClass.Method method = ((LoxClass.BoundMethod) callee).method;
+        return method instanceof Function && ((Function) method).arity == expr.arguments.size();
+    }
+
+    private Object[] evaluateFrame(Expression.Call expr, Function function) {
+        return evaluateFrame(expr, function.newFrame());
+    }
+
+    private Object[] evaluateFrame(Expression.Call expr, Object[] frame) {
+        List<Expression> arguments = expr.arguments;
+        for (int i = 0; i < arguments.size(); i++) {
+            frame[i] = evaluate(arguments.get(i));
+        }
+
+        if (profiler != null) {
+            profiler.line(expr.paren.line);
+        }
+        return frame;
+    }
+
+    private List<Object> evaluateArguments(Expression.Call expr) {
         List<Object> arguments = new ArrayList<>();
         for (Expression argument: expr.arguments) {
             arguments.add(evaluate(argument));
         }
+        return arguments;
+    }
+
+    private void checkCall(Expression.Call expr, Object callee, int argumentCount) {
+        if (profiler != null) {
+            profiler.line(expr.paren.line);
+        }
+
+        // Monomorphic inline cache: a function from a declaration this site
+        // has already called has passed the checks below for this number of
+        // arguments.
+        if (callee instanceof Function && ((Function) callee).declaration == expr.cachedDeclaration) {
+            return;
+        }
 
+        checkCall(callee, argumentCount, expr.paren);
+        if (callee instanceof Function) {
+            expr.cachedDeclaration = ((Function) callee).declaration;
+        }
+    }
+
+    Object call(Object callee, List<Object> arguments, Token paren) {
+        checkCall(callee, arguments.size(), paren);
+        return callOther(callee, arguments, paren);
+    }
+
+    // Calls a checked callee that may be a native, and reports its errors at the call site.
+    private Object callOther(Object callee, List<Object> arguments, Token paren) {
+        try {
+            return ((Callable)callee).call(this, arguments);
+        } catch (Native.Error error) {
+            throw new RuntimeError(paren, error.getMessage());
+        }
+    }
+
+    private void checkCall(Object callee, int argumentCount, Token paren) {
         if (!(callee instanceof Callable)) {
-            throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+            throw new RuntimeError(paren, "Can only call functions and classes.");
         }
 
         Callable function = (Callable)callee;
-        if (arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren, "Expected " + function.arity() +
-                    " arguments but got " + arguments.size() + ".");
+        if (argumentCount != function.arity()) {
+            throw new RuntimeError(paren, "Expected " + function.arity() +
+                    " arguments but got " + argumentCount + ".");
         }
-
-        return function.call(this, arguments);
     }
 
     private Object evaluate(Expression expr) {
@@ -207,6 +508,24 @@ public class Interpreter {
         if (expr instanceof Expression.Call) {
             return visitCallExpr((Expression.Call) expr);
         }
+        if (expr instanceof Expression.Index) {
+            return visitIndexExpr((Expression.Index) expr);
+        }
+        if (expr instanceof Expression.SetIndex) {
+            return visitSetIndexExpr((Expression.SetIndex) expr);
+        }
+        if (expr instanceof Expression.Get) {
+            return visitGetExpr((Expression.Get) expr);
+        }
+        if (expr instanceof Expression.Set) {
+            return visitSetExpr((Expression.Set) expr);
+        }
+        if (expr instanceof Expression.This) {
+            return visitThisExpr((Expression.This) expr);
+        }
+        if (expr instanceof Expression.Super) {
+            return visitSuperExpr((Expression.Super) expr);
+        }
         return null;
     }
 
@@ -235,6 +554,9 @@ public class Interpreter {
         if (stmt instanceof Statement.Return) {
             visitReturnStatement((Statement.Return) stmt);
         }
+        if (stmt instanceof Statement.Class) {
+            visitClassStatement((Statement.Class) stmt);
+        }
     }
 
     public void executeBlock(List<Statement> statements, Environment environment) {
@@ -250,18 +572,30 @@ public class Interpreter {
         }
     }
 
-    private boolean isEqual(Object a, Object b) {
+    private void define(Token name, int slot, Object value) {
+        if (slot < 0) {
+            globals.define(name, value);
+        } else {
+            environment.slots[slot] = value;
+        }
+    }
+
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null) {
             return true;
         }
         if (a == null || b == null) {
             return false;
         }
+        if (a instanceof Rope || b instanceof Rope) {
+            return Rope.isString(a) && Rope.isString(b) && Rope.length(a) == Rope.length(b) &&
+                    Rope.flatten(a).equals(Rope.flatten(b));
+        }
 
         return a.equals(b);
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) {
             return false;
         }
@@ -271,7 +605,7 @@ public class Interpreter {
         return true;
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
 
         if (object instanceof Double) {
@@ -290,11 +624,6 @@ public class Interpreter {
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private void checkNumberOperand(Token operator, Object left, Object right) {
-        if (left instanceof Double && right instanceof Double) return;
-        throw new RuntimeError(operator, "Operand must be a number.");
-    }
-
     static class RuntimeError extends RuntimeException {
         final Token token;
 
@@ -312,4 +641,15 @@ public class Interpreter {
             this.value = value;
         }
     }
+
+    static class TailCall extends RuntimeException {
+        final Function function;
+        final Object[] frame;
+
+        TailCall(Function function, Object[] frame) {
+            super(null, null, false, false);
+            this.function = function;
+            this.frame = frame;
+        }
+    }
 }
@@ -0,0 +1,805 @@
+package com.superestos;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static com.superestos.ClassBuilder.Code.*;
+
+/**
+ * Second execution tier for the tree-walking interpreter. Once a function
+ * has been called THRESHOLD times, or one of its loops has gone round that
+ * many times, its body is translated into a JVM method on a hidden class, so HotSpot can compile and inline Lox code like any
+ * other Java code. Lox locals become JVM locals and control flow becomes
+ * JVM branches; the dynamically typed operations call the static helpers at
+ * the bottom of this class, which keep the interpreter's semantics and
+ * error messages.
+ *
+ * If a function doesn't fit in a class file (too much code, too many
+ * constants, a jump too far), it just stays in the interpreter; run with
+ * -Dlox.jitDebug=true to see which. Anything else that goes wrong while
+ * compiling is a bug, and is thrown like one.
+ */
+class Jit {
+    static final int THRESHOLD = Integer.getInteger("lox.jitThreshold", 1000);
+    private static final boolean DEBUG = Boolean.getBoolean("lox.jitDebug");
+
+    interface Compiled {
+        // The arguments are in the first slots of frame, see Function.newFrame.
+        // A loop gets the locals it can see instead, and leaves their new
+        // values there.
+        Object call(Interpreter interpreter, Object[] frame);
+    }
+
+    /**
+     * When a function or loop moves to compiled code. Every thread running
+     * it counts calls or back edges in the same plain int: an increment
+     * lost to a race only delays compiling a little, and the >= test still
+     * fires once the count is past THRESHOLD. Only the thread that moves
+     * the state from INTERPRETED to COMPILING compiles; the others keep
+     * interpreting until compiled is published.
+     */
+    static final class Tier {
+        private static final int INTERPRETED = 0;
+        private static final int COMPILING = 1;
+        private static final int DONE = 2;
+
+        private int count;
+        private final AtomicInteger state = new AtomicInteger(INTERPRETED);
+        // Stays null if the code couldn't be compiled.
+        volatile Compiled compiled;
+
+        // Counts one call or back edge. True for the one caller that
+        // should compile now and publish the result.
+        boolean hot() {
+            return ++count >= THRESHOLD && state.get() == INTERPRETED &&
+                    state.compareAndSet(INTERPRETED, COMPILING);
+        }
+
+        Compiled publish(Compiled compiled) {
+            this.compiled = compiled;
+            state.set(DONE);
+            return compiled;
+        }
+    }
+
+    private static final String CLASS_NAME = "com/superestos/JitCompiled";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String OBJECT_DESCRIPTOR = "Ljava/lang/Object;";
+    private static final String JIT = "com/superestos/Jit";
+    private static final String INTERPRETER = "com/superestos/Interpreter";
+    private static final String TOKEN = "com/superestos/Token";
+    private static final String CACHE = "com/superestos/PropertyCache";
+    private static final String BINARY_DESCRIPTOR =
+            "(Ljava/lang/Object;Ljava/lang/Object;Lcom/superestos/Token;)Ljava/lang/Object;";
+    private static final String COMPARISON_DESCRIPTOR =
+            "(Ljava/lang/Object;Ljava/lang/Object;Lcom/superestos/Token;)Z";
+
+    // JVM locals 0-2 hold this, the interpreter and the frame holding the arguments.
+    private static final int INTERPRETER_LOCAL = 1;
+    private static final int FRAME_LOCAL = 2;
+    private static final int FIRST_LOCAL = 3;
+
+    private static final int IXOR = 0x82;
+
+    private final ClassBuilder builder = new ClassBuilder();
+    private final ClassBuilder.Code code;
+    private final List<Object> constants = new ArrayList<>();
+
+    // Base slot of every block frame that is currently open, innermost last.
+    private final List<Integer> frames = new ArrayList<>();
+    private int localCount;
+
+    // The sizes of the frames the code starts out in, outermost first.
+    private Jit(int[] frameSizes) {
+        for (int size: frameSizes) {
+            frames.add(localCount);
+            localCount += size;
+        }
+        code = new ClassBuilder.Code(FIRST_LOCAL + localCount);
+    }
+
+    static Compiled compile(Statement.Function declaration) {
+        Jit jit = new Jit(new int[] {declaration.frameSize});
+        return jit.load(declaration.name.lexeme(), () -> jit.compileClass(declaration));
+    }
+
+    // A loop on its own, for the rest of a run of it the interpreter started.
+    static Compiled compile(Statement.While loop) {
+        Jit jit = new Jit(loop.enclosingFrames);
+        String name = loop.function != null ? "loop in " + loop.function.name.lexeme() : "top-level loop";
+        return jit.load(name, () -> jit.compileClass(loop));
+    }
+
+    private Compiled load(String name, Supplier<byte[]> compileClass) {
+        MethodHandles.Lookup lookup;
+        try {
+            byte[] bytes = compileClass.get();
+            lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+        } catch (UnsupportedOperationException | ClassFormatError | VerifyError error) {
+            // The ClassBuilder's limits, or the JVM's on a method it did
+            // build: the interpreter keeps running the code.
+            if (DEBUG) {
+                System.err.println("[jit] " + name + " stays interpreted: " + error);
+            }
+            return null;
+        } catch (IllegalAccessException error) {
+            throw new IllegalStateException(error);
+        }
+
+        try {
+            return (Compiled) lookup.findConstructor(lookup.lookupClass(),
+                    MethodType.methodType(void.class, Object[].class))
+                    .invoke(constants.toArray());
+        } catch (RuntimeException | Error error) {
+            throw error;
+        } catch (Throwable error) {
+            throw new IllegalStateException(error);
+        }
+    }
+
+    private byte[] compileClass(Statement.Function declaration) {
+        addConstructor();
+
+        // Copy the arguments, and a method's 'this' and 'super', into their
+        // slots and clear the other locals.
+        int passed = declaration.parameters.size() + declaration.receiverSlots;
+        for (int i = 0; i < declaration.frameSize; i++) {
+            if (i < passed) {
+                code.load(FRAME_LOCAL);
+                code.pushInt(i);
+                code.op(AALOAD, -1);
+            } else {
+                code.op(ACONST_NULL, 1);
+            }
+            code.store(FIRST_LOCAL + i);
+        }
+
+        compile(declaration.body);
+        code.op(ACONST_NULL, 1);
+        code.op(ARETURN, -1);
+        return build();
+    }
+
+    // Nothing but the loop can see the locals of its enclosing frames
+    // while it runs, so they are copied in when it starts and back out
+    // when it finishes.
+    private byte[] compileClass(Statement.While loop) {
+        addConstructor();
+
+        int enclosing = localCount;
+        for (int i = 0; i < enclosing; i++) {
+            code.load(FRAME_LOCAL);
+            code.pushInt(i);
+            code.op(AALOAD, -1);
+            code.store(FIRST_LOCAL + i);
+        }
+
+        visitWhileStatement(loop);
+        for (int i = 0; i < enclosing; i++) {
+            code.load(FRAME_LOCAL);
+            code.pushInt(i);
+            code.load(FIRST_LOCAL + i);
+            code.op(AASTORE, -3);
+        }
+        code.op(ACONST_NULL, 1);
+        code.op(ARETURN, -1);
+        return build();
+    }
+
+    private void addConstructor() {
+        builder.addField(ClassBuilder.ACC_PRIVATE | ClassBuilder.ACC_FINAL,
+                "constants", "[Ljava/lang/Object;");
+
+        ClassBuilder.Code constructor = new ClassBuilder.Code(2);
+        constructor.load(0);
+        constructor.op(INVOKESPECIAL, builder.methodRef(OBJECT, "<init>", "()V"), -1);
+        constructor.load(0);
+        constructor.load(1);
+        constructor.op(PUTFIELD, builder.fieldRef(CLASS_NAME, "constants", "[Ljava/lang/Object;"), -2);
+        constructor.op(RETURN, 0);
+        builder.addMethod(ClassBuilder.ACC_PUBLIC, "<init>", "([Ljava/lang/Object;)V", constructor);
+    }
+
+    private byte[] build() {
+        builder.addMethod(ClassBuilder.ACC_PUBLIC, "call",
+                "(Lcom/superestos/Interpreter;[Ljava/lang/Object;)Ljava/lang/Object;", code);
+
+        return builder.build(ClassBuilder.ACC_PUBLIC | ClassBuilder.ACC_FINAL | ClassBuilder.ACC_SUPER,
+                CLASS_NAME, OBJECT, "com/superestos/Jit$Compiled");
+    }
+
+    private void compile(List<Statement> statements) {
+        for (Statement statement: statements) {
+            compile(statement);
+        }
+    }
+
+    public void visitPrintStatement(Statement.Print stmt) {
+        compile(stmt.expression);
+        code.load(INTERPRETER_LOCAL);
+        invokeHelper("print", "(Ljava/lang/Object;Lcom/superestos/Interpreter;)V", -2);
+    }
+
+    public void visitBlockStatement(Statement.Block stmt) {
+        if (stmt.frameSize == 0) {
+            compile(stmt.statements);
+            return;
+        }
+
+        frames.add(localCount);
+        localCount += stmt.frameSize;
+        compile(stmt.statements);
+        localCount -= stmt.frameSize;
+        frames.remove(frames.size() - 1);
+    }
+
+    public void visitExprStatement(Statement.Expr stmt) {
+        compile(stmt.expression);
+        code.op(POP, -1);
+    }
+
+    public void visitVarStatement(Statement.Var stmt) {
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            code.op(ACONST_NULL, 1);
+        }
+
+        code.store(local(0, stmt.slot));
+    }
+
+    public void visitIfStatement(Statement.If stmt) {
+        compileCondition(stmt.condition);
+        int elseJump = code.jump(IFEQ);
+        compile(stmt.thenBranch);
+
+        if (stmt.elseBranch == null) {
+            code.patch(elseJump);
+            return;
+        }
+
+        int endJump = code.jump(GOTO);
+        code.patch(elseJump);
+        compile(stmt.elseBranch);
+        code.patch(endJump);
+    }
+
+    public void visitWhileStatement(Statement.While stmt) {
+        int loopStart = code.position();
+        compileCondition(stmt.condition);
+        int exitJump = code.jump(IFEQ);
+        compile(stmt.body);
+        code.jumpTo(GOTO, loopStart);
+        code.patch(exitJump);
+    }
+
+    public void visitFunctionStatement(Statement.Function stmt) {
+        loadConstant(stmt, "com/superestos/Statement$Function");
+        invokeHelper("function", "(Lcom/superestos/Statement$Function;)Ljava/lang/Object;", 0);
+        code.store(local(0, stmt.slot));
+    }
+
+    public void visitClassStatement(Statement.Class stmt) {
+        loadConstant(stmt, "com/superestos/Statement$Class");
+        if (stmt.superclass != null) {
+            visitVariableExpr(stmt.superclass);
+        } else {
+            code.op(ACONST_NULL, 1);
+        }
+        code.op(INVOKESTATIC, builder.methodRef(INTERPRETER, "newClass",
+                "(Lcom/superestos/Statement$Class;Ljava/lang/Object;)Lcom/superestos/LoxClass;"), -1);
+        code.store(local(0, stmt.slot));
+    }
+
+    public void visitReturnStatement(Statement.Return stmt) {
+        if (stmt.tailCall) {
+            compileCall((Expression.Call) stmt.value, "tailCall");
+        } else if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            code.op(ACONST_NULL, 1);
+        }
+
+        code.op(ARETURN, -1);
+    }
+
+    public void visitLiteralExpr(Expression.Literal expr) {
+        if (expr.value == null) {
+            code.op(ACONST_NULL, 1);
+        } else if (expr.value instanceof Boolean) {
+            code.op(GETSTATIC, builder.fieldRef("java/lang/Boolean",
+                    expr.value == Boolean.TRUE ? "TRUE" : "FALSE", "Ljava/lang/Boolean;"), 1);
+        } else {
+            loadConstant(expr.value, null);
+        }
+    }
+
+    public void visitGroupingExpr(Expression.Grouping expr) {
+        compile(expr.expression);
+    }
+
+    public void visitUnaryExpr(Expression.Unary expr) {
+        if (expr.operator.type == TokenType.BANG) {
+            compileCondition(expr);
+            box();
+            return;
+        }
+
+        compile(expr.right);
+        loadConstant(expr.operator, TOKEN);
+        invokeHelper("negate", "(Ljava/lang/Object;Lcom/superestos/Token;)Ljava/lang/Object;", -1);
+    }
+
+    public void visitBinaryExpr(Expression.Binary expr) {
+        if (isComparison(expr.operator.type)) {
+            compileCondition(expr);
+            box();
+            return;
+        }
+
+        compile(expr.left);
+        compile(expr.right);
+        loadConstant(expr.operator, TOKEN);
+
+        switch (expr.operator.type) {
+            case PLUS: invokeHelper("add", BINARY_DESCRIPTOR, -2); break;
+            case MINUS: invokeHelper("subtract", BINARY_DESCRIPTOR, -2); break;
+            case STAR: invokeHelper("multiply", BINARY_DESCRIPTOR, -2); break;
+            case SLASH: invokeHelper("divide", BINARY_DESCRIPTOR, -2); break;
+            default: throw new IllegalStateException("Unknown operator.");
+        }
+    }
+
+    public void visitVariableExpr(Expression.Variable expr) {
+        if (expr.depth >= 0) {
+            code.load(local(expr.depth, expr.slot));
+            return;
+        }
+
+        code.load(INTERPRETER_LOCAL);
+        code.pushInt(expr.slot);
+        loadConstant(expr.name, TOKEN);
+        invokeHelper("getGlobal",
+                "(Lcom/superestos/Interpreter;ILcom/superestos/Token;)Ljava/lang/Object;", -2);
+    }
+
+    public void visitAssignExpr(Expression.Assign expr) {
+        compile(expr.value);
+
+        if (expr.depth >= 0) {
+            code.op(DUP, 1);
+            code.store(local(expr.depth, expr.slot));
+            return;
+        }
+
+        code.load(INTERPRETER_LOCAL);
+        code.pushInt(expr.slot);
+        loadConstant(expr.name, TOKEN);
+        invokeHelper("assignGlobal",
+                "(Ljava/lang/Object;Lcom/superestos/Interpreter;ILcom/superestos/Token;)Ljava/lang/Object;", -3);
+    }
+
+    public void visitLogicalExpr(Expression.Logical expr) {
+        compile(expr.left);
+        code.op(DUP, 1);
+        code.op(INVOKESTATIC, builder.methodRef(INTERPRETER, "isTruthy", "(Ljava/lang/Object;)Z"), 0);
+        int endJump = code.jump(expr.operator.type == TokenType.OR ? IFNE : IFEQ);
+        code.op(POP, -1);
+        compile(expr.right);
+        code.patch(endJump);
+    }
+
+    public void visitCallExpr(Expression.Call expr) {
+        compileCall(expr, "call");
+    }
+
+    private void compileCall(Expression.Call expr, String helper) {
+        int endJump = expr.intrinsic != null ? compileIntrinsic(expr) : -1;
+        compile(expr.callee);
+
+        // The arguments go straight into the callee's frame when it is a Lox function.
+        code.op(DUP, 1);
+        code.pushInt(expr.arguments.size());
+        invokeHelper("arguments", "(Ljava/lang/Object;I)[Ljava/lang/Object;", -1);
+        for (int i = 0; i < expr.arguments.size(); i++) {
+            code.op(DUP, 1);
+            code.pushInt(i);
+            compile(expr.arguments.get(i));
+            code.op(AASTORE, -3);
+        }
+
+        code.pushInt(expr.arguments.size());
+        code.load(INTERPRETER_LOCAL);
+        loadConstant(expr.paren, TOKEN);
+        invokeHelper(helper, "(Ljava/lang/Object;[Ljava/lang/Object;I" +
+                "Lcom/superestos/Interpreter;Lcom/superestos/Token;)Ljava/lang/Object;", -4);
+
+        if (endJump >= 0) {
+            code.patch(endJump);
+        }
+    }
+
+    public void visitIndexExpr(Expression.Index expr) {
+        compile(expr.object);
+        compile(expr.index);
+        loadConstant(expr.bracket, TOKEN);
+        code.op(INVOKESTATIC, builder.methodRef("com/superestos/Array", "get",
+                "(" + OBJECT_DESCRIPTOR + OBJECT_DESCRIPTOR + "Lcom/superestos/Token;)" + OBJECT_DESCRIPTOR), -2);
+    }
+
+    public void visitSetIndexExpr(Expression.SetIndex expr) {
+        compile(expr.object);
+        compile(expr.index);
+        compile(expr.value);
+        loadConstant(expr.bracket, TOKEN);
+        code.op(INVOKESTATIC, builder.methodRef("com/superestos/Array", "set",
+                "(" + OBJECT_DESCRIPTOR + OBJECT_DESCRIPTOR + OBJECT_DESCRIPTOR + "Lcom/superestos/Token;)" +
+                OBJECT_DESCRIPTOR), -3);
+    }
+
+    public void visitGetExpr(Expression.Get expr) {
+        compile(expr.object);
+        loadConstant(expr.cache, CACHE);
+        loadConstant(expr.name, TOKEN);
+        invokeHelper("getProperty",
+                "(Ljava/lang/Object;Lcom/superestos/PropertyCache;Lcom/superestos/Token;)Ljava/lang/Object;", -2);
+    }
+
+    public void visitSetExpr(Expression.Set expr) {
+        compile(expr.object);
+        compile(expr.value);
+        loadConstant(expr.cache, CACHE);
+        loadConstant(expr.name, TOKEN);
+        invokeHelper("setProperty", "(Ljava/lang/Object;Ljava/lang/Object;" +
+                "Lcom/superestos/PropertyCache;Lcom/superestos/Token;)Ljava/lang/Object;", -3);
+    }
+
+    public void visitThisExpr(Expression.This expr) {
+        code.load(local(expr.depth, expr.slot));
+    }
+
+    public void visitSuperExpr(Expression.Super expr) {
+        code.load(local(expr.depth, expr.slot));
+        code.load(local(expr.depth, expr.slot - 1));
+        loadConstant(expr.cache, CACHE);
+        loadConstant(expr.method, TOKEN);
+        invokeHelper("superMethod", "(Ljava/lang/Object;Ljava/lang/Object;" +
+                "Lcom/superestos/PropertyCache;Lcom/superestos/Token;)Ljava/lang/Object;", -3);
+    }
+
+    // While the global still holds the intrinsic's native, the call goes
+    // straight to its static method in Library; otherwise it falls through
+    // to the generic call. Returns the jump over the generic call.
+    private int compileIntrinsic(Expression.Call expr) {
+        Library.Intrinsic intrinsic = expr.intrinsic;
+        code.load(INTERPRETER_LOCAL);
+        code.pushInt(((Expression.Variable) expr.callee).slot);
+        loadConstant(intrinsic.function, null);
+        invokeHelper("holds", "(Lcom/superestos/Interpreter;ILjava/lang/Object;)Z", -2);
+        int genericJump = code.jump(IFEQ);
+        int depth = code.stackDepth();
+
+        StringBuilder descriptor = new StringBuilder("(");
+        for (Expression argument: expr.arguments) {
+            compile(argument);
+            descriptor.append(OBJECT_DESCRIPTOR);
+        }
+        if (intrinsic.arity > 0) {
+            loadConstant(expr.paren, TOKEN);
+            descriptor.append("Lcom/superestos/Token;");
+        }
+        descriptor.append(")").append(OBJECT_DESCRIPTOR);
+        code.op(INVOKESTATIC, builder.methodRef("com/superestos/Library", intrinsic.name, descriptor.toString()),
+                depth + 1 - code.stackDepth());
+
+        int endJump = code.jump(GOTO);
+        code.patch(genericJump);
+        code.setStackDepth(depth);
+        return endJump;
+    }
+
+    // Leaves an int on the stack: 1 if the expression is truthy, 0 if not.
+    private void compileCondition(Expression expr) {
+        if (expr instanceof Expression.Grouping) {
+            compileCondition(((Expression.Grouping) expr).expression);
+            return;
+        }
+
+        if (expr instanceof Expression.Unary && ((Expression.Unary) expr).operator.type == TokenType.BANG) {
+            compileCondition(((Expression.Unary) expr).right);
+            code.op(ICONST_1, 1);
+            code.op(IXOR, -1);
+            return;
+        }
+
+        if (expr instanceof Expression.Binary && isComparison(((Expression.Binary) expr).operator.type)) {
+            Expression.Binary binary = (Expression.Binary) expr;
+            compile(binary.left);
+            compile(binary.right);
+
+            switch (binary.operator.type) {
+                case EQUAL_EQUAL:
+                case BANG_EQUAL:
+                    code.op(INVOKESTATIC, builder.methodRef(INTERPRETER, "isEqual",
+                            "(Ljava/lang/Object;Ljava/lang/Object;)Z"), -1);
+                    if (binary.operator.type == TokenType.BANG_EQUAL) {
+                        code.op(ICONST_1, 1);
+                        code.op(IXOR, -1);
+                    }
+                    return;
+            }
+
+            loadConstant(binary.operator, TOKEN);
+            switch (binary.operator.type) {
+                case GREATER: invokeHelper("greater", COMPARISON_DESCRIPTOR, -2); break;
+                case GREATER_EQUAL: invokeHelper("greaterEqual", COMPARISON_DESCRIPTOR, -2); break;
+                case LESS: invokeHelper("less", COMPARISON_DESCRIPTOR, -2); break;
+                case LESS_EQUAL: invokeHelper("lessEqual", COMPARISON_DESCRIPTOR, -2); break;
+            }
+            return;
+        }
+
+        if (expr instanceof Expression.Logical) {
+            Expression.Logical logical = (Expression.Logical) expr;
+            compileCondition(logical.left);
+            int shortCircuit = code.jump(logical.operator.type == TokenType.OR ? IFNE : IFEQ);
+            compileCondition(logical.right);
+            int endJump = code.jump(GOTO);
+
+            code.patch(shortCircuit);
+            code.setStackDepth(code.stackDepth() - 1);
+            code.op(logical.operator.type == TokenType.OR ? ICONST_1 : ICONST_0, 1);
+            code.patch(endJump);
+            return;
+        }
+
+        compile(expr);
+        code.op(INVOKESTATIC, builder.methodRef(INTERPRETER, "isTruthy", "(Ljava/lang/Object;)Z"), 0);
+    }
+
+    private void compile(Expression expr) {
+        if (expr instanceof Expression.Binary) {
+            visitBinaryExpr((Expression.Binary) expr);
+        } else if (expr instanceof Expression.Unary) {
+            visitUnaryExpr((Expression.Unary) expr);
+        } else if (expr instanceof Expression.Grouping) {
+            visitGroupingExpr((Expression.Grouping) expr);
+        } else if (expr instanceof Expression.Literal) {
+            visitLiteralExpr((Expression.Literal) expr);
+        } else if (expr instanceof Expression.Variable) {
+            visitVariableExpr((Expression.Variable) expr);
+        } else if (expr instanceof Expression.Assign) {
+            visitAssignExpr((Expression.Assign) expr);
+        } else if (expr instanceof Expression.Logical) {
+            visitLogicalExpr((Expression.Logical) expr);
+        } else if (expr instanceof Expression.Call) {
+            visitCallExpr((Expression.Call) expr);
+        } else if (expr instanceof Expression.Index) {
+            visitIndexExpr((Expression.Index) expr);
+        } else if (expr instanceof Expression.SetIndex) {
+            visitSetIndexExpr((Expression.SetIndex) expr);
+        } else if (expr instanceof Expression.Get) {
+            visitGetExpr((Expression.Get) expr);
+        } else if (expr instanceof Expression.Set) {
+            visitSetExpr((Expression.Set) expr);
+        } else if (expr instanceof Expression.This) {
+            visitThisExpr((Expression.This) expr);
+        } else if (expr instanceof Expression.Super) {
+            visitSuperExpr((Expression.Super) expr);
+        } else {
+            throw new IllegalStateException("Can't compile " + expr + ".");
+        }
+    }
+
+    private void compile(Statement stmt) {
+        if (stmt instanceof Statement.Print) {
+            visitPrintStatement((Statement.Print) stmt);
+        } else if (stmt instanceof Statement.Expr) {
+            visitExprStatement((Statement.Expr) stmt);
+        } else if (stmt instanceof Statement.Var) {
+            visitVarStatement((Statement.Var) stmt);
+        } else if (stmt instanceof Statement.Block) {
+            visitBlockStatement((Statement.Block) stmt);
+        } else if (stmt instanceof Statement.If) {
+            visitIfStatement((Statement.If) stmt);
+        } else if (stmt instanceof Statement.While) {
+            visitWhileStatement((Statement.While) stmt);
+        } else if (stmt instanceof Statement.Function) {
+            visitFunctionStatement((Statement.Function) stmt);
+        } else if (stmt instanceof Statement.Return) {
+            visitReturnStatement((Statement.Return) stmt);
+        } else if (stmt instanceof Statement.Class) {
+            visitClassStatement((Statement.Class) stmt);
+        } else {
+            throw new IllegalStateException("Can't compile " + stmt + ".");
+        }
+    }
+
+    private static boolean isComparison(TokenType type) {
+        switch (type) {
+            case GREATER: case GREATER_EQUAL: case LESS: case LESS_EQUAL:
+            case EQUAL_EQUAL: case BANG_EQUAL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private int local(int depth, int slot) {
+        if (slot < 0) {
+            throw new IllegalStateException("Global declaration inside a function.");
+        }
+        return FIRST_LOCAL + frames.get(frames.size() - 1 - depth) + slot;
+    }
+
+    private void loadConstant(Object value, String type) {
+        int index = constants.size();
+        constants.add(value);
+
+        code.load(0);
+        code.op(GETFIELD, builder.fieldRef(CLASS_NAME, "constants", "[Ljava/lang/Object;"), 0);
+        code.pushInt(index);
+        code.op(AALOAD, -1);
+        if (type != null) {
+            code.op(CHECKCAST, builder.classRef(type), 0);
+        }
+    }
+
+    private void box() {
+        code.op(INVOKESTATIC, builder.methodRef("java/lang/Boolean", "valueOf",
+                "(Z)Ljava/lang/Boolean;"), 0);
+    }
+
+    private void invokeHelper(String name, String descriptor, int stackEffect) {
+        code.op(INVOKESTATIC, builder.methodRef(JIT, name, descriptor), stackEffect);
+    }
+
+    // Runtime support for compiled code.
+
+    static Object add(Object left, Object right, Token operator) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double)left + (double)right;
+        }
+        if (Rope.isString(left) && Rope.isString(right)) {
+            return Rope.concat(left, right);
+        }
+        throw new Interpreter.RuntimeError(operator,
+                "Operands must be two numbers or two strings.");
+    }
+
+    static Object subtract(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double)left - (double)right;
+    }
+
+    static Object multiply(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double)left * (double)right;
+    }
+
+    static Object divide(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double)left / (double)right;
+    }
+
+    static boolean greater(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double)left > (double)right;
+    }
+
+    static boolean greaterEqual(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double)left >= (double)right;
+    }
+
+    static boolean less(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double)left < (double)right;
+    }
+
+    static boolean lessEqual(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double)left <= (double)right;
+    }
+
+    static Object negate(Object operand, Token operator) {
+        if (operand instanceof Double) {
+            return -(double)operand;
+        }
+        throw new Interpreter.RuntimeError(operator, "Operand must be a number.");
+    }
+
+    static Object getGlobal(Interpreter interpreter, int slot, Token name) {
+        return interpreter.globals.get(slot, name);
+    }
+
+    static boolean holds(Interpreter interpreter, int slot, Object value) {
+        return interpreter.globals.holds(slot, value);
+    }
+
+    static Object assignGlobal(Object value, Interpreter interpreter, int slot, Token name) {
+        interpreter.globals.assign(slot, name, value);
+        return value;
+    }
+
+    static Object getProperty(Object object, PropertyCache cache, Token name) {
+        return cache.get(object, name);
+    }
+
+    static Object setProperty(Object object, Object value, PropertyCache cache, Token name) {
+        return cache.set(object, name, value);
+    }
+
+    static Object superMethod(Object superclass, Object receiver, PropertyCache cache, Token method) {
+        return new LoxClass.BoundMethod((Instance) receiver,
+                cache.findSuper((LoxClass) superclass, method));
+    }
+
+    // A new frame for the callee if it is a Lox function, or a method bound
+    // to an instance, that takes this many arguments, or else a plain array
+    // for them.
+    static Object[] arguments(Object callee, int count) {
+        if (callee instanceof Function && ((Function) callee).arity == count) {
+            return ((Function) callee).newFrame();
+        }
+        Function method = method(callee, count);
+        if (method != null) {
+            return method.newFrame(((LoxClass.BoundMethod) callee).receiver);
+        }
+        return new Object[count];
+    }
+
+    // The arguments are a frame if arguments() made one for this callee.
+    static Object call(Object callee, Object[] arguments, int count, Interpreter interpreter, Token paren) {
+        if (callee instanceof Function && ((Function) callee).arity == count) {
+            return ((Function) callee).call(interpreter, arguments);
+        }
+        Function method = method(callee, count);
+        if (method != null) {
+            return method.call(interpreter, arguments);
+        }
+        return interpreter.call(callee, Arrays.asList(arguments), paren);
+    }
+
+    // Like call, but a Lox function is handed back to the Function.call that
+    // is running the compiled code, as in Interpreter.visitReturnStatement.
+    static Object tailCall(Object callee, Object[] arguments, int count, Interpreter interpreter, Token paren) {
+        if (callee instanceof Function && ((Function) callee).arity == count) {
+            throw new Interpreter.TailCall((Function) callee, arguments);
+        }
+        Function method = method(callee, count);
+        if (method != null) {
+            throw new Interpreter.TailCall(method, arguments);
+        }
+        return interpreter.call(callee, Arrays.asList(arguments), paren);
+    }
+
+    // The Lox method a bound method calls, if it takes this many arguments.
+    private static Function method(Object callee, int count) {
+        if (callee instanceof LoxClass.BoundMethod) {
+            LoxClass.Method method = ((LoxClass.BoundMethod) callee).method;
+            if (method instanceof Function && ((Function) method).arity == count) {
+                return (Function) method;
+            }
+        }
+        return null;
+    }
+
+    static void print(Object value, Interpreter interpreter) {
+        interpreter.out.print(value);
+    }
+
+    static Object function(Statement.Function declaration) {
+        return new Function(declaration);
+    }
+
+    private static void checkNumberOperands(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+        throw new Interpreter.RuntimeError(operator, "Operand must be a number.");
+    }
+}
@@ -0,0 +1,186 @@
+package com.superestos;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Natives for numbers, strings and time:
+ *
+ *   clock()          seconds since the epoch,
+ *   sqrt(x), floor(x), abs(x),
+ *   min(a, b), max(a, b), pow(a, b),
+ *   length(s)        the number of characters in the string s, of
+ *                    elements in the array s or of entries in the map s,
+ *   charAt(s, i)     the character at index i of s, as a string.
+ *
+ * Each is an Intrinsic. The Resolver marks every call of a global with one
+ * of these names and the right number of arguments, and the engines run
+ * such a call straight through the static method of the same name below
+ * instead of through Callable: no argument list, no arity check, and errors
+ * are raised at the call site's token rather than caught and rethrown. The
+ * call site first checks that the global still holds the native, since a
+ * program may replace it.
+ *
+ * The VM has no Resolver marks to go by, so it checks every call of a
+ * native for one of these, and works on the numbers on its stack without
+ * boxing them.
+ *
+ * All but clock are pure, so Purity lets memoized functions call them as
+ * long as the program doesn't declare the name itself.
+ */
+final class Library {
+    enum Intrinsic {
+        CLOCK("clock", 0, false),
+        SQRT("sqrt", 1, true),
+        FLOOR("floor", 1, true),
+        ABS("abs", 1, true),
+        MIN("min", 2, true),
+        MAX("max", 2, true),
+        POW("pow", 2, true),
+        LENGTH("length", 1, true),
+        CHAR_AT("charAt", 2, true);
+
+        final String name;
+        final int arity;
+        final boolean pure;
+        final Native function;
+
+        Intrinsic(String name, int arity, boolean pure) {
+            this.name = name;
+            this.arity = arity;
+            this.pure = pure;
+            this.function = new Native(name, arity, (interpreter, arguments) -> call(
+                    arity > 0 ? arguments.get(0) : null, arity > 1 ? arguments.get(1) : null, null), this);
+        }
+
+        // Unused arguments are null. Errors are reported at paren, or
+        // thrown as a Native.Error without one.
+        Object call(Object a, Object b, Token paren) {
+            switch (this) {
+                case CLOCK: return clock();
+                case SQRT: return sqrt(a, paren);
+                case FLOOR: return floor(a, paren);
+                case ABS: return abs(a, paren);
+                case MIN: return min(a, b, paren);
+                case MAX: return max(a, b, paren);
+                case POW: return pow(a, b, paren);
+                case LENGTH: return length(a, paren);
+                case CHAR_AT: return charAt(a, b, paren);
+                default: throw new IllegalStateException("Unknown intrinsic.");
+            }
+        }
+    }
+
+    static final List<Native> NATIVES = natives();
+
+    private Library() {}
+
+    private static List<Native> natives() {
+        List<Native> natives = new ArrayList<>();
+        for (Intrinsic intrinsic: Intrinsic.values()) {
+            natives.add(intrinsic.function);
+        }
+        return List.copyOf(natives);
+    }
+
+    // The intrinsic a call of the global 'name' with this many arguments
+    // would be, or null.
+    static Intrinsic intrinsic(String name, int argumentCount) {
+        for (Intrinsic intrinsic: Intrinsic.values()) {
+            if (intrinsic.name.equals(name) && intrinsic.arity == argumentCount) {
+                return intrinsic;
+            }
+        }
+        return null;
+    }
+
+    // The intrinsic with this name, or null.
+    static Intrinsic intrinsic(String name) {
+        for (Intrinsic intrinsic: Intrinsic.values()) {
+            if (intrinsic.name.equals(name)) {
+                return intrinsic;
+            }
+        }
+        return null;
+    }
+
+    static Object clock() {
+        return System.currentTimeMillis() / 1000.0;
+    }
+
+    static Object sqrt(Object x, Token paren) {
+        return Math.sqrt(number(x, paren));
+    }
+
+    static Object floor(Object x, Token paren) {
+        return Math.floor(number(x, paren));
+    }
+
+    static Object abs(Object x, Token paren) {
+        return Math.abs(number(x, paren));
+    }
+
+    static Object min(Object a, Object b, Token paren) {
+        checkNumbers(a, b, paren);
+        return Math.min((double) a, (double) b);
+    }
+
+    static Object max(Object a, Object b, Token paren) {
+        checkNumbers(a, b, paren);
+        return Math.max((double) a, (double) b);
+    }
+
+    static Object pow(Object a, Object b, Token paren) {
+        checkNumbers(a, b, paren);
+        return Math.pow((double) a, (double) b);
+    }
+
+    static Object length(Object s, Token paren) {
+        if (s instanceof Array) {
+            return (double) ((Array) s).size();
+        }
+        if (s instanceof Table) {
+            return (double) ((Table) s).size();
+        }
+        if (!Rope.isString(s)) {
+            throw error(paren, "Argument must be a string, an array or a map.");
+        }
+        return (double) Rope.length(s);
+    }
+
+    static Object charAt(Object s, Object i, Token paren) {
+        if (!Rope.isString(s)) {
+            throw error(paren, "First argument must be a string.");
+        }
+        if (!(i instanceof Double) || (double) i != Math.floor((double) i)) {
+            throw error(paren, "String index must be an integer.");
+        }
+
+        String string = Rope.flatten(s);
+        double index = (double) i;
+        if (index < 0 || index >= string.length()) {
+            throw error(paren, "String index out of range.");
+        }
+        return String.valueOf(string.charAt((int) index));
+    }
+
+    private static double number(Object x, Token paren) {
+        if (!(x instanceof Double)) {
+            throw error(paren, "Argument must be a number.");
+        }
+        return (double) x;
+    }
+
+    private static void checkNumbers(Object a, Object b, Token paren) {
+        if (!(a instanceof Double) || !(b instanceof Double)) {
+            throw error(paren, "Arguments must be numbers.");
+        }
+    }
+
+    private static RuntimeException error(Token paren, String message) {
+        if (paren == null) {
+            return new Native.Error(message);
+        }
+        return new Interpreter.RuntimeError(paren, message);
+    }
+}
@@ -0,0 +1,121 @@
+package com.superestos;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Lox class. Calling it makes an Instance and runs its 'init' method, if
+ * it has one, with the arguments.
+ *
+ * A method is a function that takes two more values after its arguments:
+ * the instance it runs on, which its body reads as 'this', and, if its
+ * class has one, the superclass, which 'super' looks methods up on. The
+ * Resolver gives both slots in the method's frame right after the
+ * parameters, so every engine reads them like any other local. Each engine
+ * makes its own kind of Method. The tree-walking engines' methods can also
+ * be called through LoxClass and BoundMethod, as any Callable can; the
+ * VM's only run on the VM's own stack, which calls them itself.
+ *
+ * The methods of the superclass are copied in when the class is made, so
+ * finding a method is a single lookup however deep the class hierarchy is.
+ */
+final class LoxClass implements Callable {
+    interface Method {
+        int arity();
+    }
+
+    // A method that can be called from outside the engine that made it.
+    interface CallableMethod extends Method {
+        Object callMethod(Interpreter interpreter, Instance receiver, List<Object> arguments);
+    }
+
+    // A method looked up on an instance and not called straight away.
+    static final class BoundMethod implements Callable {
+        final Instance receiver;
+        final Method method;
+
+        BoundMethod(Instance receiver, Method method) {
+            this.receiver = receiver;
+            this.method = method;
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            return callMethod(method, interpreter, receiver, arguments);
+        }
+
+        @Override
+        public int arity() {
+            return method.arity();
+        }
+
+        @Override
+        public String toString() {
+            return method.toString();
+        }
+    }
+
+    final String name;
+    final LoxClass superclass;
+    // The shape of a new instance, with no fields.
+    final Shape shape = new Shape(this);
+    final Method initializer;
+
+    // How many fields a new instance has room for. Grows as instances do.
+    int fieldCapacity;
+
+    private final Map<String, Method> methods;
+
+    LoxClass(String name, LoxClass superclass, Map<String, Method> methods) {
+        this.name = name;
+        this.superclass = superclass;
+        this.methods = new HashMap<>();
+        if (superclass != null) {
+            this.methods.putAll(superclass.methods);
+        }
+        this.methods.putAll(methods);
+        this.initializer = this.methods.get("init");
+    }
+
+    // The superclass a class declaration names, checked.
+    static LoxClass superclass(Object value, Token name) {
+        if (!(value instanceof LoxClass)) {
+            throw new Interpreter.RuntimeError(name, "Superclass must be a class.");
+        }
+        return (LoxClass) value;
+    }
+
+    // Callers turn the error into a runtime error at the call site, as they
+    // do for natives.
+    private static Object callMethod(Method method, Interpreter interpreter, Instance receiver,
+                                     List<Object> arguments) {
+        if (!(method instanceof CallableMethod)) {
+            throw new Native.Error("Can only call methods of this class from the VM.");
+        }
+        return ((CallableMethod) method).callMethod(interpreter, receiver, arguments);
+    }
+
+    Method findMethod(String name) {
+        return methods.get(name);
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        Instance instance = new Instance(this);
+        if (initializer != null) {
+            callMethod(initializer, interpreter, instance, arguments);
+        }
+        return instance;
+    }
+
+    @Override
+    public int arity() {
+        return initializer != null ? initializer.arity() : 0;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
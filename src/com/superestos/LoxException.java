@@ -0,0 +1,21 @@
+package com.superestos;
+
+import java.util.List;
+
+/**
+ * Thrown to an embedder when a program doesn't compile, with every error
+ * the compiler found, or when it fails at runtime, with the runtime error.
+ * The messages are the ones the command line prints.
+ */
+public class LoxException extends Exception {
+    private final List<String> errors;
+
+    LoxException(List<String> errors) {
+        super(String.join("\n", errors));
+        this.errors = List.copyOf(errors);
+    }
+
+    public List<String> getErrors() {
+        return errors;
+    }
+}
@@ -3,22 +3,73 @@ package com.superestos;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.List;
 
 public class Main {
 
-    private static Interpreter interpreter = new Interpreter();
+    // The slots of the globals of every line or file run in this session.
+    private static final GlobalSlots globalSlots = new GlobalSlots();
+    private static Interpreter interpreter = new Interpreter(globalSlots);
+    private static VM vm = null;
+    private static Closures closures = null;
+    private static boolean optimize = false;
+    private static boolean memoize = true;
+    private static boolean scanThread = Boolean.getBoolean("lox.scanThread");
+    private static Profiler profiler = null;
+    private static ProgramCache cache = ProgramCache.inDefaultDirectory();
 
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
+    static final Reporter reporter = new Reporter(System.err);
 
     public static void main(String[] args) throws IOException {
+        int options = 0;
+        while (options < args.length && args[options].startsWith("--")) {
+            switch (args[options]) {
+                case "--vm":
+                    vm = new VM(globalSlots);
+                    break;
+                case "--closures":
+                    closures = new Closures(globalSlots);
+                    break;
+                case "--optimize":
+                    optimize = true;
+                    break;
+                case "--no-cache":
+                    cache = null;
+                    break;
+                case "--no-memo":
+                    memoize = false;
+                    break;
+                case "--profile":
+                    profiler = new Profiler(Paths.get("profile.collapsed"));
+                    break;
+                default:
+                    if (args[options].startsWith("--profile=")) {
+                        profiler = new Profiler(Paths.get(args[options].substring("--profile=".length())));
+                    } else {
+                        usage();
+                    }
+            }
+            options++;
+        }
+        // Only the tree walker keeps the stack the profiler samples.
+        if (profiler != null) {
+            if (vm != null || closures != null) {
+                usage();
+            }
+            interpreter.profiler = profiler;
+            profiler.start();
+        }
+        args = Arrays.copyOfRange(args, options, args.length);
+
 	    if (args.length > 1) {
-	        System.out.println("Usage: lox [script]");
-	        System.exit(64);
+	        usage();
         } else if (args.length == 1) {
 	        runFile(args[0]);
         } else {
@@ -26,19 +77,43 @@ public class Main {
         }
     }
 
+    private static void usage() {
+        System.out.println("Usage: lox [--vm | --closures] [--optimize] [--no-cache] [--no-memo] [--profile[=file]] [script]");
+        System.exit(64);
+    }
+
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        // The script is mapped rather than read, and scanned in place, so a
+        // large script isn't copied into a byte array and then a String.
+        Path script = Paths.get(path);
+        try (FileChannel channel = FileChannel.open(script)) {
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            byte[] key = cache != null ? cache.key(script, bytes) : null;
+            List<Statement> statements = cache != null ? cache.load(key) : null;
+            if (statements == null) {
+                statements = parse(source(bytes));
+                if (cache != null && !reporter.hadError) {
+                    cache.store(key, statements);
+                }
+            }
+            run(statements);
+        }
+        finishProfile();
 
-        if (hadError) {
+        if (reporter.hadError) {
             System.exit(65);
         }
-        if (hadRuntimeError) {
+        if (reporter.hadRuntimeError) {
             System.exit(70);
         }
     }
 
     private static void runPrompt() throws IOException {
+        // Each line is analyzed on its own, and a later line could reassign
+        // a function an earlier one was found to depend on.
+        memoize = false;
+
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
 
@@ -50,48 +125,55 @@ public class Main {
             try {
                 run(line);
             } catch (Parser.ParseError | Interpreter.RuntimeError e) {
-                hadError = false;
-                hadRuntimeError = false;
+                reporter.hadError = false;
+                reporter.hadRuntimeError = false;
             }
         }
+        finishProfile();
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-
-        Parser parser = new Parser(tokens);
-        List<Statement> statements = parser.parse();
+    private static void finishProfile() {
+        if (profiler != null) {
+            profiler.finish(System.err);
+        }
+    }
 
-        interpreter.interpret(statements);
+    private static void run(String source) {
+        run(parse(source));
+    }
 
-        /*
-        for (Token token: tokens) {
-            System.out.println(token);
+    private static CharSequence source(ByteBuffer bytes) {
+        Charset charset = Charset.defaultCharset();
+        if (charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII) ||
+                charset.equals(StandardCharsets.ISO_8859_1)) {
+            return new MappedSource(bytes, charset);
         }
-         */
+        return charset.decode(bytes);
     }
 
-    static void error(int line, String message) {
-        report(line, "", message);
+    // Tokens go straight from the scanner to the parser, and are never all
+    // in memory at once.
+    private static List<Statement> parse(CharSequence source) {
+        Scanner scanner = new Scanner(source, reporter);
+        TokenSource tokens = scanThread ? new ScannerThread(scanner) : scanner;
+
+        Parser parser = new Parser(tokens, reporter);
+        return parser.parse();
     }
 
-    static void error(Token token, String message) {
-        if (token.type == TokenType.EOF) {
-            report(token.line, " at end", message);
+    private static void run(List<Statement> statements) {
+        statements = Program.prepare(statements, reporter, globalSlots, optimize, memoize && vm == null);
+
+        if (vm != null) {
+            vm.interpret(statements, reporter);
+        } else if (closures != null) {
+            closures.interpret(statements);
         } else {
-            report(token.line, " at '" + token.lexeme + "'", message);
+            interpreter.interpret(statements);
         }
     }
 
     static void runtimeError(Interpreter.RuntimeError error) {
-        System.err.println(error.getMessage() +
-                "\n[line " + error.token.line + "]");
-        hadRuntimeError = true;
-    }
-
-    private static void report(int line, String where, String message) {
-        System.err.println("[line " + line + "] Error" + where + ": " + message);
-        hadError = true;
+        reporter.runtimeError(error);
     }
 }
@@ -0,0 +1,69 @@
+package com.superestos;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Source text read straight out of a (memory-mapped) buffer, without
+ * decoding the whole file into a String first. Lox syntax is plain ASCII, so
+ * for an ASCII-compatible charset like UTF-8 the Scanner can look at the
+ * text one byte at a time; only the text it keeps, lexemes and string
+ * literals, is decoded.
+ */
+class MappedSource implements CharSequence {
+    private final ByteBuffer bytes;
+    private final Charset charset;
+    private final int offset;
+    private final int length;
+
+    MappedSource(ByteBuffer bytes, Charset charset) {
+        this(bytes, charset, bytes.position(), bytes.remaining());
+    }
+
+    private MappedSource(ByteBuffer bytes, Charset charset, int offset, int length) {
+        this.bytes = bytes;
+        this.charset = charset;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (bytes.get(offset + index) & 0xff);
+    }
+
+    // The index just past the character that starts at index. In UTF-8 a
+    // character outside ASCII takes a lead byte and up to three more, which
+    // charAt returns one at a time.
+    int endOfCharacter(int index) {
+        int end = index + 1;
+        if (!charset.equals(StandardCharsets.UTF_8)) {
+            return end;
+        }
+
+        int lead = charAt(index);
+        int trailing = lead >= 0xf0 ? 3 : lead >= 0xe0 ? 2 : lead >= 0xc0 ? 1 : 0;
+        while (trailing-- > 0 && end < length && (charAt(end) & 0xc0) == 0x80) {
+            end++;
+        }
+        return end;
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new MappedSource(bytes, charset, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        byte[] text = new byte[length];
+        bytes.get(offset, text);
+        return new String(text, charset);
+    }
+}
@@ -0,0 +1,118 @@
+package com.superestos;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memo table for a function Purity found to be pure: results by arguments,
+ * keeping the 'lox.memoSize' (1024 by default) most recently used.
+ *
+ * Only numbers, strings, booleans and nil are used as keys, since they
+ * compare by value the same way Lox equality does. A call with any other
+ * argument just isn't memoized.
+ *
+ * A function that keeps being called with new arguments only pays for the
+ * table, so once a memo has missed 4 * 'lox.memoSize' times and hit fewer
+ * than a quarter as often, it is retired and the function is just called.
+ *
+ * A memo isn't synchronized. Only the thread that created the function
+ * uses it; calls from tasks on other threads aren't memoized.
+ */
+class Memo {
+    static final Object MISSING = new Object();
+
+    private static final int SIZE = Integer.getInteger("lox.memoSize", 1024);
+
+    // Stands in for nil, as a key and as a value.
+    private static final Object NIL = new Object();
+
+    private final Map<Object, Object> results = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+            return size() > SIZE;
+        }
+    };
+
+    private final Thread owner = Thread.currentThread();
+
+    long hits;
+    long misses;
+    boolean retired;
+
+    private static final class Key {
+        private final Object[] arguments;
+        private final int hash;
+
+        Key(Object[] arguments) {
+            this.arguments = arguments;
+            this.hash = Arrays.hashCode(arguments);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && Arrays.equals(arguments, ((Key) other).arguments);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    // The key for the arguments at the start of a frame, or null if they
+    // can't be memoized. Ropes are flattened, so they equal the same
+    // Strings.
+    Object key(Object[] frame, int arity) {
+        if (retired || Thread.currentThread() != owner) {
+            return null;
+        }
+
+        for (int i = 0; i < arity; i++) {
+            Object argument = frame[i];
+            if (argument != null && !(argument instanceof Double) &&
+                    !Rope.isString(argument) && !(argument instanceof Boolean)) {
+                return null;
+            }
+        }
+
+        if (arity == 1) {
+            return frame[0] == null ? NIL : key(frame[0]);
+        }
+
+        Object[] arguments = Arrays.copyOf(frame, arity);
+        for (int i = 0; i < arity; i++) {
+            arguments[i] = key(arguments[i]);
+        }
+        return new Key(arguments);
+    }
+
+    private static Object key(Object argument) {
+        return argument instanceof Rope ? argument.toString() : argument;
+    }
+
+    // The result for the key, or MISSING.
+    Object get(Object key) {
+        Object result = results.get(key);
+        if (result == null) {
+            misses++;
+            return MISSING;
+        }
+
+        hits++;
+        return result == NIL ? null : result;
+    }
+
+    void put(Object key, Object result) {
+        results.put(key, result == null ? NIL : result);
+
+        if (misses >= 4L * SIZE && hits < misses / 4) {
+            retired = true;
+            results.clear();
+        }
+    }
+
+    int size() {
+        return results.size();
+    }
+}
@@ -0,0 +1,73 @@
+package com.superestos;
+
+import java.util.List;
+
+/**
+ * A function written in Java that Lox code calls like any other. Every
+ * engine defines the natives as globals before running a program, though
+ * the VM only has the Library, Array and Table ones; a program can still
+ * declare a global of the same name, which then replaces the native.
+ *
+ * A native that is called wrongly throws a Native.Error, and the call site
+ * turns it into a runtime error at its own line.
+ */
+final class Native implements Callable {
+    interface Body {
+        Object call(Interpreter interpreter, List<Object> arguments);
+    }
+
+    final String name;
+    private final int arity;
+    private final Body body;
+    // The intrinsic this is the native of, if any.
+    final Library.Intrinsic intrinsic;
+
+    Native(String name, int arity, Body body) {
+        this(name, arity, body, null);
+    }
+
+    Native(String name, int arity, Body body, Library.Intrinsic intrinsic) {
+        this.name = name;
+        this.arity = arity;
+        this.body = body;
+        this.intrinsic = intrinsic;
+    }
+
+    // Every native there is, by where it comes from.
+    static List<List<Native>> all() {
+        return List.of(Tasks.NATIVES, Parallel.NATIVES, Library.NATIVES, Array.NATIVES, Table.NATIVES);
+    }
+
+    static void defineAll(Environment globals) {
+        for (List<Native> natives: all()) {
+            define(globals, natives);
+        }
+    }
+
+    static void define(Environment globals, List<Native> natives) {
+        for (Native function: natives) {
+            globals.defineNative(function.name, function);
+        }
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        return body.call(interpreter, arguments);
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn " + name + ">";
+    }
+
+    static final class Error extends RuntimeException {
+        Error(String message) {
+            super(message, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.superestos;
+
+/**
+ * Instruction set of the bytecode VM. Every instruction is one opcode byte
+ * followed by its operands; multi-byte operands are big-endian.
+ */
+final class OpCode {
+    // [u16 constant index]
+    static final byte CONSTANT = 0;
+    static final byte NIL = 1;
+    static final byte TRUE = 2;
+    static final byte FALSE = 3;
+    static final byte POP = 4;
+
+    // [u16 slot]
+    static final byte GET_LOCAL = 5;
+    static final byte SET_LOCAL = 6;
+    // [u16 global slot]
+    static final byte GET_GLOBAL = 7;
+    static final byte SET_GLOBAL = 8;
+    static final byte DEFINE_GLOBAL = 9;
+
+    static final byte EQUAL = 10;
+    static final byte NOT_EQUAL = 11;
+    static final byte GREATER = 12;
+    static final byte GREATER_EQUAL = 13;
+    static final byte LESS = 14;
+    static final byte LESS_EQUAL = 15;
+    static final byte ADD = 16;
+    static final byte SUBTRACT = 17;
+    static final byte MULTIPLY = 18;
+    static final byte DIVIDE = 19;
+    static final byte NOT = 20;
+    static final byte NEGATE = 21;
+
+    static final byte PRINT = 22;
+    // [i32 offset]
+    static final byte JUMP = 23;
+    static final byte JUMP_IF_FALSE = 24;
+    static final byte LOOP = 25;
+    // [u16 argument count]
+    static final byte CALL = 26;
+    static final byte RETURN = 27;
+    static final byte GET_INDEX = 28;
+    static final byte SET_INDEX = 29;
+    // [u16 CompiledClass constant]
+    static final byte CLASS = 30;
+    // [u16 PropertyCache constant]
+    static final byte GET_PROPERTY = 31;
+    static final byte SET_PROPERTY = 32;
+    static final byte GET_SUPER = 33;
+    // [u16 PropertyCache constant][u16 argument count]
+    static final byte INVOKE = 34;
+    // [i32 constant index], for the literals past the first 0xffff
+    static final byte CONSTANT_WIDE = 35;
+
+    // Fused forms of what statements compile to most, so a loop takes
+    // fewer dispatches per iteration.
+    // [u16 slot], [u16 global slot]: SET_LOCAL or SET_GLOBAL, then POP
+    static final byte STORE_LOCAL = 36;
+    static final byte STORE_GLOBAL = 37;
+    // [i32 offset]: JUMP_IF_FALSE, then POP on both paths
+    static final byte POP_JUMP_IF_FALSE = 38;
+    // [i32 offset]: a comparison, then POP_JUMP_IF_FALSE
+    static final byte JUMP_IF_NOT_LESS = 39;
+    static final byte JUMP_IF_NOT_LESS_EQUAL = 40;
+    static final byte JUMP_IF_NOT_GREATER = 41;
+    static final byte JUMP_IF_NOT_GREATER_EQUAL = 42;
+
+    private OpCode() {}
+}
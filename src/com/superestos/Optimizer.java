@@ -0,0 +1,655 @@
+package com.superestos;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Optional rewriting pass over a resolved program:
+ *
+ *  - folds operators whose operands are all literals,
+ *  - drops if/while branches whose condition is a literal,
+ *  - simplifies x * 1, 1 * x, x / 1 and x - 0 when x is known to be a number,
+ *  - hoists loop-invariant numeric expressions out of while loops.
+ *
+ * Nothing is rewritten if doing so could change what the program prints or
+ * which runtime error it reports. An operation that would fail is left for
+ * runtime. Only expressions that provably can't fail are hoisted, so
+ * evaluating them before the loop is never observable. (x + 0 is not an
+ * identity: -0 + 0 is 0.)
+ *
+ * A local is "numeric" when every value ever stored in it is a numeric
+ * expression. Since functions can only see globals and their own locals,
+ * nothing outside a function can change its locals, and this is true for
+ * the whole life of the variable. It is worked out per function, by name,
+ * which is conservative when names are shadowed.
+ *
+ * The rewritten tree is resolved again so the new temporaries get slots.
+ */
+public class Optimizer {
+    private final Reporter reporter;
+    private final GlobalSlots globalSlots;
+    private Set<String> numericLocals = Collections.emptySet();
+    private int temporaries = 0;
+
+    Optimizer(Reporter reporter, GlobalSlots globalSlots) {
+        this.reporter = reporter;
+        this.globalSlots = globalSlots;
+    }
+
+    List<Statement> optimize(List<Statement> statements) {
+        numericLocals = numericLocals(statements, Collections.emptyList());
+        List<Statement> optimized = optimizeAll(statements);
+
+        new Resolver(reporter, globalSlots).resolve(optimized);
+        return optimized;
+    }
+
+    private List<Statement> optimizeAll(List<Statement> statements) {
+        List<Statement> optimized = new ArrayList<>();
+        for (Statement statement: statements) {
+            Statement result = optimize(statement);
+            if (result != null) {
+                optimized.add(result);
+            }
+        }
+
+        return optimized;
+    }
+
+    public Statement visitPrintStatement(Statement.Print stmt) {
+        return new Statement.Print(optimize(stmt.expression));
+    }
+
+    public Statement visitBlockStatement(Statement.Block stmt) {
+        return new Statement.Block(optimizeAll(stmt.statements));
+    }
+
+    public Statement visitExprStatement(Statement.Expr stmt) {
+        return new Statement.Expr(optimize(stmt.expression));
+    }
+
+    public Statement visitVarStatement(Statement.Var stmt) {
+        Expression initializer = null;
+        if (stmt.initializer != null) {
+            initializer = optimize(stmt.initializer);
+        }
+
+        return new Statement.Var(stmt.name, initializer);
+    }
+
+    public Statement visitIfStatement(Statement.If stmt) {
+        Expression condition = optimize(stmt.condition);
+
+        if (condition instanceof Expression.Literal) {
+            if (Interpreter.isTruthy(((Expression.Literal) condition).value)) {
+                return optimize(stmt.thenBranch);
+            }
+            if (stmt.elseBranch != null) {
+                return optimize(stmt.elseBranch);
+            }
+            return null;
+        }
+
+        Statement elseBranch = null;
+        if (stmt.elseBranch != null) {
+            elseBranch = optimizeBranch(stmt.elseBranch);
+        }
+        return new Statement.If(condition, optimizeBranch(stmt.thenBranch), elseBranch);
+    }
+
+    public Statement visitWhileStatement(Statement.While stmt) {
+        Expression condition = optimize(stmt.condition);
+        if (condition instanceof Expression.Literal &&
+                !Interpreter.isTruthy(((Expression.Literal) condition).value)) {
+            return null;
+        }
+
+        return hoistInvariants(new Statement.While(condition, optimizeBranch(stmt.body)));
+    }
+
+    public Statement visitFunctionStatement(Statement.Function stmt) {
+        Set<String> enclosing = numericLocals;
+        numericLocals = numericLocals(stmt.body, stmt.parameters);
+        List<Statement> body = optimizeAll(stmt.body);
+        numericLocals = enclosing;
+
+        return new Statement.Function(stmt.name, stmt.parameters, body);
+    }
+
+    public Statement visitClassStatement(Statement.Class stmt) {
+        List<Statement.Function> methods = new ArrayList<>();
+        for (Statement.Function method: stmt.methods) {
+            methods.add((Statement.Function) visitFunctionStatement(method));
+        }
+
+        return new Statement.Class(stmt.name, stmt.superclass, methods);
+    }
+
+    public Statement visitReturnStatement(Statement.Return stmt) {
+        Expression value = null;
+        if (stmt.value != null) {
+            value = optimize(stmt.value);
+        }
+
+        return new Statement.Return(stmt.keyword, value);
+    }
+
+    public Expression visitLiteralExpr(Expression.Literal expr) {
+        return expr;
+    }
+
+    public Expression visitGroupingExpr(Expression.Grouping expr) {
+        Expression expression = optimize(expr.expression);
+        if (expression instanceof Expression.Literal) {
+            return expression;
+        }
+
+        return new Expression.Grouping(expression);
+    }
+
+    public Expression visitUnaryExpr(Expression.Unary expr) {
+        Expression right = optimize(expr.right);
+
+        if (right instanceof Expression.Literal) {
+            Object value = ((Expression.Literal) right).value;
+            switch (expr.operator.type) {
+                case BANG:
+                    return new Expression.Literal(!Interpreter.isTruthy(value));
+                case MINUS:
+                    if (value instanceof Double) {
+                        return new Expression.Literal(-(double)value);
+                    }
+                    break;
+            }
+        }
+
+        return new Expression.Unary(expr.operator, right);
+    }
+
+    public Expression visitBinaryExpr(Expression.Binary expr) {
+        Expression left = optimize(expr.left);
+        Expression right = optimize(expr.right);
+
+        if (left instanceof Expression.Literal && right instanceof Expression.Literal) {
+            try {
+                return new Expression.Literal(BinaryNode.generic(expr.operator,
+                        ((Expression.Literal) left).value, ((Expression.Literal) right).value));
+            } catch (Interpreter.RuntimeError error) {
+                // Leave it to fail at runtime.
+            }
+        }
+
+        switch (expr.operator.type) {
+            case STAR:
+                if (isLiteral(right, 1.0) && isNumeric(left, numericLocals)) return left;
+                if (isLiteral(left, 1.0) && isNumeric(right, numericLocals)) return right;
+                break;
+            case SLASH:
+                if (isLiteral(right, 1.0) && isNumeric(left, numericLocals)) return left;
+                break;
+            case MINUS:
+                if (isLiteral(right, 0.0) && isNumeric(left, numericLocals)) return left;
+                break;
+        }
+
+        return new Expression.Binary(left, expr.operator, right);
+    }
+
+    public Expression visitVariableExpr(Expression.Variable expr) {
+        return expr;
+    }
+
+    public Expression visitAssignExpr(Expression.Assign expr) {
+        Expression.Assign assign = new Expression.Assign(expr.name, optimize(expr.value));
+        assign.depth = expr.depth;
+        assign.slot = expr.slot;
+        return assign;
+    }
+
+    public Expression visitLogicalExpr(Expression.Logical expr) {
+        Expression left = optimize(expr.left);
+
+        if (left instanceof Expression.Literal) {
+            boolean truthy = Interpreter.isTruthy(((Expression.Literal) left).value);
+            boolean shortCircuits = expr.operator.type == TokenType.OR ? truthy : !truthy;
+            return shortCircuits ? left : optimize(expr.right);
+        }
+
+        return new Expression.Logical(left, expr.operator, optimize(expr.right));
+    }
+
+    public Expression visitCallExpr(Expression.Call expr) {
+        List<Expression> arguments = new ArrayList<>();
+        for (Expression argument: expr.arguments) {
+            arguments.add(optimize(argument));
+        }
+
+        return new Expression.Call(optimize(expr.callee), arguments, expr.paren);
+    }
+
+    public Expression visitIndexExpr(Expression.Index expr) {
+        return new Expression.Index(optimize(expr.object), optimize(expr.index), expr.bracket);
+    }
+
+    public Expression visitSetIndexExpr(Expression.SetIndex expr) {
+        return new Expression.SetIndex(optimize(expr.object), optimize(expr.index),
+                optimize(expr.value), expr.bracket);
+    }
+
+    public Expression visitGetExpr(Expression.Get expr) {
+        return new Expression.Get(optimize(expr.object), expr.name);
+    }
+
+    public Expression visitSetExpr(Expression.Set expr) {
+        return new Expression.Set(optimize(expr.object), expr.name, optimize(expr.value));
+    }
+
+    private Expression optimize(Expression expr) {
+        if (expr instanceof Expression.Binary) {
+            return visitBinaryExpr((Expression.Binary) expr);
+        }
+        if (expr instanceof Expression.Unary) {
+            return visitUnaryExpr((Expression.Unary) expr);
+        }
+        if (expr instanceof Expression.Grouping) {
+            return visitGroupingExpr((Expression.Grouping) expr);
+        }
+        if (expr instanceof Expression.Literal) {
+            return visitLiteralExpr((Expression.Literal) expr);
+        }
+        if (expr instanceof Expression.Variable) {
+            return visitVariableExpr((Expression.Variable) expr);
+        }
+        if (expr instanceof Expression.Assign) {
+            return visitAssignExpr((Expression.Assign) expr);
+        }
+        if (expr instanceof Expression.Logical) {
+            return visitLogicalExpr((Expression.Logical) expr);
+        }
+        if (expr instanceof Expression.Call) {
+            return visitCallExpr((Expression.Call) expr);
+        }
+        if (expr instanceof Expression.Index) {
+            return visitIndexExpr((Expression.Index) expr);
+        }
+        if (expr instanceof Expression.SetIndex) {
+            return visitSetIndexExpr((Expression.SetIndex) expr);
+        }
+        if (expr instanceof Expression.Get) {
+            return visitGetExpr((Expression.Get) expr);
+        }
+        if (expr instanceof Expression.Set) {
+            return visitSetExpr((Expression.Set) expr);
+        }
+        return expr;
+    }
+
+    private Statement optimize(Statement stmt) {
+        if (stmt instanceof Statement.Print) {
+            return visitPrintStatement((Statement.Print) stmt);
+        }
+        if (stmt instanceof Statement.Expr) {
+            return visitExprStatement((Statement.Expr) stmt);
+        }
+        if (stmt instanceof Statement.Var) {
+            return visitVarStatement((Statement.Var) stmt);
+        }
+        if (stmt instanceof Statement.Block) {
+            return visitBlockStatement((Statement.Block) stmt);
+        }
+        if (stmt instanceof Statement.If) {
+            return visitIfStatement((Statement.If) stmt);
+        }
+        if (stmt instanceof Statement.While) {
+            return visitWhileStatement((Statement.While) stmt);
+        }
+        if (stmt instanceof Statement.Function) {
+            return visitFunctionStatement((Statement.Function) stmt);
+        }
+        if (stmt instanceof Statement.Return) {
+            return visitReturnStatement((Statement.Return) stmt);
+        }
+        if (stmt instanceof Statement.Class) {
+            return visitClassStatement((Statement.Class) stmt);
+        }
+        return stmt;
+    }
+
+    // A branch must stay a statement even if everything in it was dropped.
+    private Statement optimizeBranch(Statement branch) {
+        Statement optimized = optimize(branch);
+        if (optimized == null) {
+            return new Statement.Block(new ArrayList<>());
+        }
+
+        return optimized;
+    }
+
+    private static boolean isLiteral(Expression expr, double value) {
+        if (!(expr instanceof Expression.Literal)) return false;
+
+        Object literal = ((Expression.Literal) expr).value;
+        return literal instanceof Double &&
+                Double.doubleToLongBits((double)literal) == Double.doubleToLongBits(value);
+    }
+
+    // True if the expression always evaluates to a number without failing.
+    private static boolean isNumeric(Expression expr, Set<String> numericLocals) {
+        if (expr instanceof Expression.Literal) {
+            return ((Expression.Literal) expr).value instanceof Double;
+        }
+        if (expr instanceof Expression.Grouping) {
+            return isNumeric(((Expression.Grouping) expr).expression, numericLocals);
+        }
+        if (expr instanceof Expression.Unary) {
+            Expression.Unary unary = (Expression.Unary) expr;
+            return unary.operator.type == TokenType.MINUS && isNumeric(unary.right, numericLocals);
+        }
+        if (expr instanceof Expression.Binary) {
+            Expression.Binary binary = (Expression.Binary) expr;
+            switch (binary.operator.type) {
+                case PLUS: case MINUS: case STAR: case SLASH:
+                    return isNumeric(binary.left, numericLocals) && isNumeric(binary.right, numericLocals);
+                default:
+                    return false;
+            }
+        }
+        if (expr instanceof Expression.Variable) {
+            Expression.Variable variable = (Expression.Variable) expr;
+            return variable.depth >= 0 && numericLocals.contains(variable.name.lexeme());
+        }
+        if (expr instanceof Expression.Assign) {
+            Expression.Assign assign = (Expression.Assign) expr;
+            return assign.depth >= 0 && isNumeric(assign.value, numericLocals);
+        }
+        return false;
+    }
+
+    private static Set<String> numericLocals(List<Statement> body, List<Token> parameters) {
+        Map<String, List<Expression>> writes = new HashMap<>();
+        Set<String> unknown = new HashSet<>();
+        for (Token parameter: parameters) {
+            unknown.add(parameter.lexeme());
+        }
+        for (Statement statement: body) {
+            collectWrites(statement, writes, unknown);
+        }
+
+        // Start from every candidate and drop those with a non-numeric
+        // write until nothing changes.
+        Set<String> numeric = new HashSet<>(writes.keySet());
+        numeric.removeAll(unknown);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Map.Entry<String, List<Expression>> entry: writes.entrySet()) {
+                if (!numeric.contains(entry.getKey())) continue;
+
+                for (Expression value: entry.getValue()) {
+                    if (!isNumeric(value, numeric)) {
+                        numeric.remove(entry.getKey());
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        return numeric;
+    }
+
+    private static void collectWrites(Statement stmt, Map<String, List<Expression>> writes,
+                                      Set<String> unknown) {
+        if (stmt instanceof Statement.Var) {
+            Statement.Var var = (Statement.Var) stmt;
+            if (var.slot < 0 || var.initializer == null) {
+                unknown.add(var.name.lexeme());
+                if (var.initializer != null) {
+                    collectWrites(var.initializer, writes, unknown);
+                }
+            } else {
+                writes.computeIfAbsent(var.name.lexeme(), name -> new ArrayList<>()).add(var.initializer);
+                collectWrites(var.initializer, writes, unknown);
+            }
+        } else if (stmt instanceof Statement.Function) {
+            unknown.add(((Statement.Function) stmt).name.lexeme());
+        } else if (stmt instanceof Statement.Class) {
+            unknown.add(((Statement.Class) stmt).name.lexeme());
+        } else if (stmt instanceof Statement.Block) {
+            for (Statement statement: ((Statement.Block) stmt).statements) {
+                collectWrites(statement, writes, unknown);
+            }
+        } else if (stmt instanceof Statement.If) {
+            Statement.If ifStmt = (Statement.If) stmt;
+            collectWrites(ifStmt.condition, writes, unknown);
+            collectWrites(ifStmt.thenBranch, writes, unknown);
+            if (ifStmt.elseBranch != null) {
+                collectWrites(ifStmt.elseBranch, writes, unknown);
+            }
+        } else if (stmt instanceof Statement.While) {
+            collectWrites(((Statement.While) stmt).condition, writes, unknown);
+            collectWrites(((Statement.While) stmt).body, writes, unknown);
+        } else if (stmt instanceof Statement.Print) {
+            collectWrites(((Statement.Print) stmt).expression, writes, unknown);
+        } else if (stmt instanceof Statement.Expr) {
+            collectWrites(((Statement.Expr) stmt).expression, writes, unknown);
+        } else if (stmt instanceof Statement.Return) {
+            collectWrites(((Statement.Return) stmt).value, writes, unknown);
+        }
+    }
+
+    private static void collectWrites(Expression expr, Map<String, List<Expression>> writes,
+                                      Set<String> unknown) {
+        if (expr instanceof Expression.Assign) {
+            Expression.Assign assign = (Expression.Assign) expr;
+            if (assign.depth >= 0) {
+                writes.computeIfAbsent(assign.name.lexeme(), name -> new ArrayList<>()).add(assign.value);
+            } else {
+                unknown.add(assign.name.lexeme());
+            }
+            collectWrites(assign.value, writes, unknown);
+        } else if (expr instanceof Expression.Binary) {
+            collectWrites(((Expression.Binary) expr).left, writes, unknown);
+            collectWrites(((Expression.Binary) expr).right, writes, unknown);
+        } else if (expr instanceof Expression.Logical) {
+            collectWrites(((Expression.Logical) expr).left, writes, unknown);
+            collectWrites(((Expression.Logical) expr).right, writes, unknown);
+        } else if (expr instanceof Expression.Unary) {
+            collectWrites(((Expression.Unary) expr).right, writes, unknown);
+        } else if (expr instanceof Expression.Grouping) {
+            collectWrites(((Expression.Grouping) expr).expression, writes, unknown);
+        } else if (expr instanceof Expression.Call) {
+            collectWrites(((Expression.Call) expr).callee, writes, unknown);
+            for (Expression argument: ((Expression.Call) expr).arguments) {
+                collectWrites(argument, writes, unknown);
+            }
+        } else if (expr instanceof Expression.Index) {
+            collectWrites(((Expression.Index) expr).object, writes, unknown);
+            collectWrites(((Expression.Index) expr).index, writes, unknown);
+        } else if (expr instanceof Expression.SetIndex) {
+            Expression.SetIndex setIndex = (Expression.SetIndex) expr;
+            collectWrites(setIndex.object, writes, unknown);
+            collectWrites(setIndex.index, writes, unknown);
+            collectWrites(setIndex.value, writes, unknown);
+        } else if (expr instanceof Expression.Get) {
+            collectWrites(((Expression.Get) expr).object, writes, unknown);
+        } else if (expr instanceof Expression.Set) {
+            collectWrites(((Expression.Set) expr).object, writes, unknown);
+            collectWrites(((Expression.Set) expr).value, writes, unknown);
+        }
+    }
+
+    // Loop-invariant code motion.
+
+    private Statement hoistInvariants(Statement.While loop) {
+        Set<String> written = new HashSet<>();
+        collectNames(loop, written);
+
+        Hoister hoister = new Hoister(written);
+        Expression condition = hoister.rewrite(loop.condition);
+        Statement body = hoister.rewrite(loop.body);
+        if (hoister.hoisted.isEmpty()) {
+            return loop;
+        }
+
+        List<Statement> statements = new ArrayList<>(hoister.hoisted);
+        statements.add(new Statement.While(condition, body));
+        return new Statement.Block(statements);
+    }
+
+    // Every name declared or assigned anywhere in the statement. Rewritten
+    // declarations haven't been resolved yet and count as unknown writes.
+    private static void collectNames(Statement stmt, Set<String> names) {
+        Map<String, List<Expression>> writes = new HashMap<>();
+        collectWrites(stmt, writes, names);
+        names.addAll(writes.keySet());
+    }
+
+    /**
+     * Replaces the largest invariant subexpressions of one loop with
+     * temporaries that are computed once before it.
+     */
+    private class Hoister {
+        private final Set<String> written;
+        final List<Statement> hoisted = new ArrayList<>();
+
+        Hoister(Set<String> written) {
+            this.written = written;
+        }
+
+        private boolean isInvariant(Expression expr) {
+            if (expr instanceof Expression.Variable) {
+                return !written.contains(((Expression.Variable) expr).name.lexeme());
+            }
+            if (expr instanceof Expression.Literal) {
+                return true;
+            }
+            if (expr instanceof Expression.Grouping) {
+                return isInvariant(((Expression.Grouping) expr).expression);
+            }
+            if (expr instanceof Expression.Unary) {
+                return isInvariant(((Expression.Unary) expr).right);
+            }
+            if (expr instanceof Expression.Binary) {
+                return isInvariant(((Expression.Binary) expr).left) &&
+                        isInvariant(((Expression.Binary) expr).right);
+            }
+            return false;
+        }
+
+        private boolean isHoistable(Expression expr) {
+            if (expr instanceof Expression.Unary || expr instanceof Expression.Grouping) {
+                return isNumeric(expr, numericLocals) && isInvariant(expr);
+            }
+            if (expr instanceof Expression.Binary) {
+                Expression.Binary binary = (Expression.Binary) expr;
+                switch (binary.operator.type) {
+                    case PLUS: case MINUS: case STAR: case SLASH:
+                        return isNumeric(binary, numericLocals) && isInvariant(binary);
+                    default:
+                        return isNumeric(binary.left, numericLocals) &&
+                                isNumeric(binary.right, numericLocals) && isInvariant(binary);
+                }
+            }
+            return false;
+        }
+
+        Expression rewrite(Expression expr) {
+            if (isHoistable(expr)) {
+                Token name = new Token(TokenType.IDENTIFIER, "$hoisted" + temporaries++, null, 0);
+                hoisted.add(new Statement.Var(name, expr));
+                return new Expression.Variable(name);
+            }
+
+            if (expr instanceof Expression.Binary) {
+                Expression.Binary binary = (Expression.Binary) expr;
+                return new Expression.Binary(rewrite(binary.left), binary.operator, rewrite(binary.right));
+            }
+            if (expr instanceof Expression.Unary) {
+                Expression.Unary unary = (Expression.Unary) expr;
+                return new Expression.Unary(unary.operator, rewrite(unary.right));
+            }
+            if (expr instanceof Expression.Grouping) {
+                return new Expression.Grouping(rewrite(((Expression.Grouping) expr).expression));
+            }
+            if (expr instanceof Expression.Logical) {
+                Expression.Logical logical = (Expression.Logical) expr;
+                return new Expression.Logical(rewrite(logical.left), logical.operator, rewrite(logical.right));
+            }
+            if (expr instanceof Expression.Assign) {
+                Expression.Assign assign = (Expression.Assign) expr;
+                Expression.Assign rewritten = new Expression.Assign(assign.name, rewrite(assign.value));
+                rewritten.depth = assign.depth;
+                rewritten.slot = assign.slot;
+                return rewritten;
+            }
+            if (expr instanceof Expression.Call) {
+                Expression.Call call = (Expression.Call) expr;
+                List<Expression> arguments = new ArrayList<>();
+                for (Expression argument: call.arguments) {
+                    arguments.add(rewrite(argument));
+                }
+                return new Expression.Call(rewrite(call.callee), arguments, call.paren);
+            }
+            if (expr instanceof Expression.Index) {
+                Expression.Index index = (Expression.Index) expr;
+                return new Expression.Index(rewrite(index.object), rewrite(index.index), index.bracket);
+            }
+            if (expr instanceof Expression.SetIndex) {
+                Expression.SetIndex setIndex = (Expression.SetIndex) expr;
+                return new Expression.SetIndex(rewrite(setIndex.object), rewrite(setIndex.index),
+                        rewrite(setIndex.value), setIndex.bracket);
+            }
+            if (expr instanceof Expression.Get) {
+                Expression.Get get = (Expression.Get) expr;
+                return new Expression.Get(rewrite(get.object), get.name);
+            }
+            if (expr instanceof Expression.Set) {
+                Expression.Set set = (Expression.Set) expr;
+                return new Expression.Set(rewrite(set.object), set.name, rewrite(set.value));
+            }
+            return expr;
+        }
+
+        Statement rewrite(Statement stmt) {
+            if (stmt instanceof Statement.Print) {
+                return new Statement.Print(rewrite(((Statement.Print) stmt).expression));
+            }
+            if (stmt instanceof Statement.Expr) {
+                return new Statement.Expr(rewrite(((Statement.Expr) stmt).expression));
+            }
+            if (stmt instanceof Statement.Var) {
+                Statement.Var var = (Statement.Var) stmt;
+                return new Statement.Var(var.name, var.initializer == null ? null : rewrite(var.initializer));
+            }
+            if (stmt instanceof Statement.Block) {
+                List<Statement> statements = new ArrayList<>();
+                for (Statement statement: ((Statement.Block) stmt).statements) {
+                    statements.add(rewrite(statement));
+                }
+                return new Statement.Block(statements);
+            }
+            if (stmt instanceof Statement.If) {
+                Statement.If ifStmt = (Statement.If) stmt;
+                return new Statement.If(rewrite(ifStmt.condition), rewrite(ifStmt.thenBranch),
+                        ifStmt.elseBranch == null ? null : rewrite(ifStmt.elseBranch));
+            }
+            if (stmt instanceof Statement.While) {
+                Statement.While loop = (Statement.While) stmt;
+                return new Statement.While(rewrite(loop.condition), rewrite(loop.body));
+            }
+            if (stmt instanceof Statement.Return) {
+                Statement.Return returnStmt = (Statement.Return) stmt;
+                return new Statement.Return(returnStmt.keyword,
+                        returnStmt.value == null ? null : rewrite(returnStmt.value));
+            }
+            // Function and method bodies have locals of their own.
+            return stmt;
+        }
+    }
+}
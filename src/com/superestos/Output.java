@@ -0,0 +1,241 @@
+package com.superestos;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered sink for the output of print statements. Values are formatted
+ * straight into a byte buffer, numbers included, and the buffer goes to the
+ * underlying stream in one write whenever the flush policy says so:
+ *
+ * - SIZE flushes only when the buffer is full,
+ * - TIME also flushes on a print once 'lox.flushMillis' (100 by default)
+ *   have passed since the last flush,
+ * - LINE flushes after every print, for interactive use.
+ *
+ * The policy comes from '-Dlox.flush=size|time|line'. Without it, output to
+ * a terminal is flushed by line and anything else by size. Each engine
+ * flushes at the end of a run and before reporting a runtime error, so
+ * output and errors still come out in order.
+ *
+ * Tasks a program spawns share its output, so every method that touches
+ * the buffer is synchronized.
+ */
+class Output {
+    enum FlushPolicy { SIZE, TIME, LINE }
+
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    private static final long[] POWERS_OF_TEN = {
+        1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+    };
+
+    // Largest long below which every integer is exactly a double.
+    private static final double MAX_EXACT = 1L << 53;
+
+    private OutputStream stream;
+    private final Charset charset;
+    private final FlushPolicy policy;
+    private final long flushNanos;
+
+    private final byte[] buffer = new byte[8192];
+    private int count = 0;
+    private long lastFlush = System.nanoTime();
+
+    Output(OutputStream stream, Charset charset, FlushPolicy policy) {
+        this.stream = stream;
+        this.charset = charset;
+        this.policy = policy;
+        this.flushNanos = Long.getLong("lox.flushMillis", 100) * 1_000_000;
+    }
+
+    static Output standard() {
+        String policy = System.getProperty("lox.flush");
+        FlushPolicy flushPolicy;
+        if (policy != null) {
+            flushPolicy = FlushPolicy.valueOf(policy.toUpperCase());
+        } else {
+            flushPolicy = System.console() != null ? FlushPolicy.LINE : FlushPolicy.SIZE;
+        }
+
+        return new Output(System.out, Charset.defaultCharset(), flushPolicy);
+    }
+
+    // Prints a value the way Interpreter.stringify would, followed by a newline.
+    synchronized void print(Object value) {
+        if (value instanceof Double) {
+            writeNumber((double) value);
+        } else if (value == null) {
+            writeAscii("nil");
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof Rope) {
+            writeString(value.toString());
+        } else {
+            writeString(value.toString());
+        }
+        endLine();
+    }
+
+    synchronized void print(double value) {
+        writeNumber(value);
+        endLine();
+    }
+
+    // Sends further output to another stream. Anything still buffered is
+    // dropped, so flush first.
+    synchronized void redirect(OutputStream stream) {
+        this.stream = stream;
+        count = 0;
+        lastFlush = System.nanoTime();
+    }
+
+    synchronized void flush() {
+        try {
+            if (count > 0) {
+                stream.write(buffer, 0, count);
+                count = 0;
+            }
+            stream.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        lastFlush = System.nanoTime();
+    }
+
+    private void endLine() {
+        for (byte b: LINE_SEPARATOR) {
+            write(b);
+        }
+
+        switch (policy) {
+            case LINE:
+                flush();
+                break;
+            case TIME:
+                if (System.nanoTime() - lastFlush >= flushNanos) {
+                    flush();
+                }
+                break;
+            case SIZE:
+                break;
+        }
+    }
+
+    // Same text as Double.toString without a trailing ".0". Integers and
+    // short decimals in the range Double.toString writes without an
+    // exponent are written digit by digit; anything else goes through
+    // Double.toString.
+    private void writeNumber(double value) {
+        double magnitude = Math.abs(value);
+        if (magnitude < 1e7) {
+            if (value == (long) value) {
+                if (value == 0 && 1 / value < 0) {
+                    write((byte) '-');
+                }
+                writeLong((long) value);
+                return;
+            }
+
+            if (magnitude >= 1e-3) {
+                // The fewest decimals that read back as the same double.
+                for (int decimals = 1; decimals < POWERS_OF_TEN.length; decimals++) {
+                    double scaled = value * POWERS_OF_TEN[decimals];
+                    if (Math.abs(scaled) > MAX_EXACT) {
+                        break;
+                    }
+                    long digits = Math.round(scaled);
+                    if (digits / (double) POWERS_OF_TEN[decimals] == value) {
+                        writeDecimal(digits, decimals);
+                        return;
+                    }
+                }
+            }
+        }
+
+        String text = Double.toString(value);
+        if (text.endsWith(".0")) {
+            text = text.substring(0, text.length() - 2);
+        }
+        writeAscii(text);
+    }
+
+    private void writeDecimal(long digits, int decimals) {
+        if (digits < 0) {
+            write((byte) '-');
+            digits = -digits;
+        }
+
+        long power = POWERS_OF_TEN[decimals];
+        writeLong(digits / power);
+        write((byte) '.');
+
+        long fraction = digits % power;
+        for (int i = decimals - 1; i >= 0; i--) {
+            write((byte) ('0' + fraction / POWERS_OF_TEN[i] % 10));
+        }
+    }
+
+    private void writeLong(long value) {
+        if (value < 0) {
+            write((byte) '-');
+            value = -value;
+        }
+
+        if (count + 20 > buffer.length) {
+            flushBuffer();
+        }
+
+        int digits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+
+        int position = count + digits;
+        do {
+            buffer[--position] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        count += digits;
+    }
+
+    private void writeString(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                writeBytes(text.getBytes(charset));
+                return;
+            }
+        }
+        writeAscii(text);
+    }
+
+    private void writeAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            write((byte) text.charAt(i));
+        }
+    }
+
+    private void writeBytes(byte[] bytes) {
+        for (byte b: bytes) {
+            write(b);
+        }
+    }
+
+    private void write(byte b) {
+        if (count == buffer.length) {
+            flushBuffer();
+        }
+        buffer[count++] = b;
+    }
+
+    private void flushBuffer() {
+        try {
+            stream.write(buffer, 0, count);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        count = 0;
+    }
+}
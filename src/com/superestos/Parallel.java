@@ -0,0 +1,137 @@
+package com.superestos;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Natives for running independent loop iterations on every core:
+ *
+ *   range(start, end)               the integers from start up to but not
+ *                                   including end,
+ *   parallelMap(range, fn, combine) calls fn with each integer in range and
+ *                                   folds the results with combine(a, b);
+ *                                   nil for an empty range.
+ *
+ * The range is split in halves until the pieces are small enough, and the
+ * pieces run on the common ForkJoinPool. Each piece folds its own results
+ * from left to right, then neighbouring pieces are combined left with
+ * right. How the range is split depends only on its length, never on the
+ * number of cores or on timing, so a combine that isn't associative still
+ * gets the same answer every run. If several calls fail, the error from
+ * the leftmost one is reported.
+ *
+ * Both fn and combine have to be isolated (see Purity): they can't print,
+ * assign globals or call anything that might, so they can only communicate
+ * through their results. They may read globals, which don't change while
+ * the main script waits for parallelMap to return.
+ */
+final class Parallel {
+    static final List<Native> NATIVES = List.of(
+            new Native("range", 2, Parallel::range),
+            new Native("parallelMap", 3, Parallel::parallelMap));
+
+    // Most pieces the range is split into.
+    private static final int PIECES = 256;
+
+    private Parallel() {}
+
+    static final class Range {
+        final long start;
+        final long end;
+
+        Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public String toString() {
+            return "<range>";
+        }
+    }
+
+    private static Object range(Interpreter interpreter, List<Object> arguments) {
+        long start = integer(arguments.get(0));
+        long end = integer(arguments.get(1));
+        return new Range(start, Math.max(start, end));
+    }
+
+    private static long integer(Object value) {
+        if (!(value instanceof Double) || (double) value != Math.floor((double) value) ||
+                Math.abs((double) value) > 1e15) {
+            throw new Native.Error("Range bounds must be integers.");
+        }
+        return (long) (double) value;
+    }
+
+    private static Object parallelMap(Interpreter interpreter, List<Object> arguments) {
+        if (!(arguments.get(0) instanceof Range)) {
+            throw new Native.Error("Can only map over ranges.");
+        }
+        Range range = (Range) arguments.get(0);
+        Callable function = isolated(arguments.get(1), 1, "Map function");
+        Callable combine = isolated(arguments.get(2), 2, "Combine function");
+
+        if (range.start == range.end) {
+            return null;
+        }
+
+        long grain = Math.max(1, (range.end - range.start + PIECES - 1) / PIECES);
+        return ForkJoinPool.commonPool().invoke(
+                new Piece(interpreter, function, combine, range.start, range.end, grain));
+    }
+
+    private static Callable isolated(Object value, int arity, String what) {
+        if (!(value instanceof Callable) || ((Callable) value).arity() != arity) {
+            throw new Native.Error(what + " must take " + (arity == 1 ? "one argument." : "two arguments."));
+        }
+        if (!((Callable) value).isolated()) {
+            throw new Native.Error(what + " must not print, assign globals or call functions that might.");
+        }
+        return (Callable) value;
+    }
+
+    private static final class Piece extends RecursiveTask<Object> {
+        private final Interpreter interpreter;
+        private final Callable function;
+        private final Callable combine;
+        private final long start;
+        private final long end;
+        private final long grain;
+
+        Piece(Interpreter interpreter, Callable function, Callable combine, long start, long end, long grain) {
+            this.interpreter = interpreter;
+            this.function = function;
+            this.combine = combine;
+            this.start = start;
+            this.end = end;
+            this.grain = grain;
+        }
+
+        @Override
+        protected Object compute() {
+            if (end - start > grain) {
+                long middle = start + (end - start) / 2;
+                Piece right = new Piece(interpreter, function, combine, middle, end, grain);
+                right.fork();
+                Object left = new Piece(interpreter, function, combine, start, middle, grain).compute();
+                return combine.call(worker(), Arrays.asList(left, right.join()));
+            }
+
+            // The closures engine calls natives without an interpreter, and
+            // its functions don't need one.
+            Interpreter worker = worker();
+            Object result = function.call(worker, List.of((double) start));
+            for (long i = start + 1; i < end; i++) {
+                result = combine.call(worker, Arrays.asList(result, function.call(worker, List.of((double) i))));
+            }
+            return result;
+        }
+
+        private Interpreter worker() {
+            return interpreter != null ? interpreter.forTask() : null;
+        }
+    }
+}
@@ -7,11 +7,32 @@ import java.util.List;
 import static com.superestos.TokenType.*;
 
 public class Parser {
-    private final List<Token> tokens;
-    private int current = 0;
+    // Tokens are pulled from the source as the parser goes, and only the
+    // last one consumed and the next one are kept.
+    private final TokenSource tokens;
+    private final Reporter reporter;
+    private Token previous;
+    private Token next;
 
-    Parser(List<Token> tokens) {
+    // Set while parsing the body of an 'init' method, whose returns all
+    // return 'this'.
+    private boolean inInitializer = false;
+
+    // 'this' and 'super' are locals of methods, so they can only be used in
+    // one, and not in a function declared inside it. A statement that uses
+    // them anywhere else is dropped, like any other that fails to parse.
+    private enum ClassType { NONE, CLASS, SUBCLASS }
+    private ClassType currentClass = ClassType.NONE;
+    private boolean inMethod = false;
+
+    Parser(List<Token> tokens, Reporter reporter) {
+        this(tokens.iterator()::next, reporter);
+    }
+
+    Parser(TokenSource tokens, Reporter reporter) {
         this.tokens = tokens;
+        this.reporter = reporter;
+        this.next = tokens.nextToken();
     }
 
     List<Statement> parse() {
@@ -28,6 +49,9 @@ public class Parser {
             if (match(VAR)) {
                 return varDeclaration();
             }
+            if (match(CLASS)) {
+                return classDeclaration();
+            }
             if (match(FUN)) {
                 return function("function");
             }
@@ -51,6 +75,31 @@ public class Parser {
         return new Statement.Var(name, initializer);
     }
 
+    private Statement classDeclaration() {
+        Token name = consume(IDENTIFIER, "Expect class name.");
+
+        Expression.Variable superclass = null;
+        if (match(LESS)) {
+            consume(IDENTIFIER, "Expect superclass name.");
+            superclass = new Expression.Variable(previous());
+        }
+
+        consume(LEFT_BRACE, "Expect '{' before class body.");
+        ClassType enclosingClass = currentClass;
+        currentClass = superclass != null ? ClassType.SUBCLASS : ClassType.CLASS;
+        try {
+            List<Statement.Function> methods = new ArrayList<>();
+            while (!check(RIGHT_BRACE) && !isAtEnd()) {
+                methods.add(function("method"));
+            }
+            consume(RIGHT_BRACE, "Expect '}' after class body.");
+
+            return new Statement.Class(name, superclass, methods);
+        } finally {
+            currentClass = enclosingClass;
+        }
+    }
+
     private Statement.Function function(String kind) {
         Token name = consume(IDENTIFIER, "Expect " + kind + " name.");
         consume(LEFT_PAREN, "Expect '(' after " + kind + " name.");
@@ -64,8 +113,21 @@ public class Parser {
         consume(RIGHT_PAREN, "Expect ')' after parameters.");
 
         consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
-        List<Statement> body = block();
-        return new Statement.Function(name, parameters, body);
+        boolean enclosingInInitializer = inInitializer;
+        boolean enclosingInMethod = inMethod;
+        inMethod = kind.equals("method");
+        inInitializer = inMethod && name.lexeme().equals("init");
+        try {
+            List<Statement> body = block();
+            if (inInitializer) {
+                // Running off the end of an initializer returns 'this' too.
+                body.add(new Statement.Return(previous(), thisExpression(previous())));
+            }
+            return new Statement.Function(name, parameters, body);
+        } finally {
+            inInitializer = enclosingInInitializer;
+            inMethod = enclosingInMethod;
+        }
     }
 
     private Statement statement() {
@@ -179,9 +241,33 @@ public class Parser {
         }
 
         consume(SEMICOLON, "Expect ';' after return value.");
+        if (inInitializer) {
+            if (value != null) {
+                error(keyword, "Can't return a value from an initializer.");
+            }
+            value = thisExpression(keyword);
+        }
         return new Statement.Return(keyword, value);
     }
 
+    private void checkReceiver(Token keyword) {
+        String word = keyword.lexeme();
+        if (currentClass == ClassType.NONE) {
+            throw error(keyword, "Can't use '" + word + "' outside of a class.");
+        }
+        if (keyword.type == SUPER && currentClass == ClassType.CLASS) {
+            throw error(keyword, "Can't use 'super' in a class with no superclass.");
+        }
+        if (!inMethod) {
+            throw error(keyword, "Can't use '" + word + "' in a function inside a method.");
+        }
+    }
+
+    // A 'this' the parser adds itself, reported at the line of token.
+    private static Expression thisExpression(Token token) {
+        return new Expression.This(new Token(THIS, token.line));
+    }
+
     private Statement expressionStatement() {
         Expression expr = expression();
         consume(SEMICOLON, "Expect ';' after expression.");
@@ -203,6 +289,14 @@ public class Parser {
                 Token name = ((Expression.Variable)expr).name;
                 return new Expression.Assign(name, value);
             }
+            if (expr instanceof Expression.Index) {
+                Expression.Index index = (Expression.Index)expr;
+                return new Expression.SetIndex(index.object, index.index, value, index.bracket);
+            }
+            if (expr instanceof Expression.Get) {
+                Expression.Get get = (Expression.Get)expr;
+                return new Expression.Set(get.object, get.name, value);
+            }
 
             error(equals, "Invalid assignment target.");
         }
@@ -298,6 +392,13 @@ public class Parser {
         while (true) {
             if (match(LEFT_PAREN)) {
                 expr = finishCall(expr);
+            } else if (match(LEFT_BRACKET)) {
+                Expression index = expression();
+                Token bracket = consume(RIGHT_BRACKET, "Expect ']' after index.");
+                expr = new Expression.Index(expr, index, bracket);
+            } else if (match(DOT)) {
+                Token name = consume(IDENTIFIER, "Expect property name after '.'.");
+                expr = new Expression.Get(expr, name);
             } else {
                 break;
             }
@@ -339,6 +440,18 @@ public class Parser {
             return new Expression.Grouping(expr);
         }
 
+        if (match(THIS)) {
+            checkReceiver(previous());
+            return new Expression.This(previous());
+        }
+        if (match(SUPER)) {
+            Token keyword = previous();
+            checkReceiver(keyword);
+            consume(DOT, "Expect '.' after 'super'.");
+            Token method = consume(IDENTIFIER, "Expect superclass method name.");
+            return new Expression.Super(keyword, method);
+        }
+
         if (match(IDENTIFIER)) {
             return new Expression.Variable(previous());
         }
@@ -366,7 +479,10 @@ public class Parser {
     }
 
     private Token advance() {
-        if (!isAtEnd()) current++;
+        if (!isAtEnd()) {
+            previous = next;
+            next = tokens.nextToken();
+        }
         return previous();
     }
 
@@ -375,11 +491,11 @@ public class Parser {
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return next;
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return previous;
     }
 
     private Token consume(TokenType type, String message) {
@@ -405,7 +521,7 @@ public class Parser {
     }
 
     private ParseError error(Token token, String message) {
-        Main.error(token, message);
+        reporter.error(token, message);
         return new ParseError();
     }
 
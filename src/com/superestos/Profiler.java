@@ -0,0 +1,239 @@
+package com.superestos;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sampling profiler for Lox code run by the tree-walking interpreter.
+ *
+ * The interpreter keeps a shadow stack of the Lox functions it is in and of
+ * the line each of them is at, which costs a couple of stores per call. A
+ * daemon thread looks at that stack every 'lox.profileInterval' microseconds
+ * (1000 by default) and charges the wall and CPU time since the previous
+ * sample to it. The stack is read without locking, so a sample taken right
+ * as a call starts or ends can be off by a frame; over many samples that
+ * doesn't matter.
+ *
+ * Lines are only tracked while the interpreter runs the code. Inside a
+ * function the Jit has compiled, time stays on the line the function was
+ * entered at.
+ *
+ * At the end it prints call counts, self and total time per function, the
+ * hit rates of memoized functions, the hottest lines and the hottest call
+ * paths, and writes the samples as collapsed stacks ('frame;frame;frame
+ * count' per line) that flame graph tools read.
+ */
+class Profiler {
+    private static final int TOP = 10;
+
+    private final Path collapsedFile;
+    private final long intervalNanos = Long.getLong("lox.profileInterval", 1000) * 1000;
+
+    // Written by the interpreter thread only. Frame 0 is the script itself.
+    private Statement.Function[] functions = new Statement.Function[64];
+    private int[] lines = new int[64];
+    private volatile int depth = 0;
+
+    private final Map<Statement.Function, long[]> calls = new IdentityHashMap<>();
+    private final Map<Statement.Function, Memo> memos = new IdentityHashMap<>();
+
+    // Written by the sampler thread only, and read once it has stopped.
+    private final Map<String, Sample> stacks = new HashMap<>();
+    private final Map<Statement.Function, Sample> selfTimes = new IdentityHashMap<>();
+    private final Map<Statement.Function, Sample> totalTimes = new IdentityHashMap<>();
+    private final Map<Integer, Sample> lineTimes = new HashMap<>();
+    private final Sample overall = new Sample();
+
+    private Thread sampler;
+    private volatile boolean running;
+
+    private static final class Sample {
+        long count;
+        long wallNanos;
+        long cpuNanos;
+
+        void add(long wall, long cpu) {
+            count++;
+            wallNanos += wall;
+            cpuNanos += cpu;
+        }
+    }
+
+    Profiler(Path collapsedFile) {
+        this.collapsedFile = collapsedFile;
+    }
+
+    void enter(Function called) {
+        Statement.Function function = called.declaration;
+        if (called.memo != null) {
+            memos.put(function, called.memo);
+        }
+
+        int next = depth + 1;
+        if (next == functions.length) {
+            functions = Arrays.copyOf(functions, next * 2);
+            lines = Arrays.copyOf(lines, next * 2);
+        }
+
+        functions[next] = function;
+        lines[next] = function.name.line;
+        depth = next;
+
+        long[] count = calls.get(function);
+        if (count == null) {
+            calls.put(function, new long[] { 1 });
+        } else {
+            count[0]++;
+        }
+    }
+
+    void exit() {
+        depth--;
+    }
+
+    void line(int line) {
+        lines[depth] = line;
+    }
+
+    void start() {
+        Thread target = Thread.currentThread();
+        running = true;
+        sampler = new Thread(() -> sample(target), "lox-profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    private void sample(Thread target) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        boolean measureCpu = threads.isThreadCpuTimeSupported();
+        if (measureCpu && !threads.isThreadCpuTimeEnabled()) {
+            threads.setThreadCpuTimeEnabled(true);
+        }
+
+        long lastWall = System.nanoTime();
+        long lastCpu = measureCpu ? threads.getThreadCpuTime(target.getId()) : 0;
+        while (running) {
+            LockSupport.parkNanos(intervalNanos);
+
+            long wall = System.nanoTime();
+            long cpu = measureCpu ? Math.max(threads.getThreadCpuTime(target.getId()), lastCpu) : 0;
+            record(wall - lastWall, cpu - lastCpu);
+            lastWall = wall;
+            lastCpu = cpu;
+        }
+    }
+
+    private void record(long wall, long cpu) {
+        Statement.Function[] functions = this.functions;
+        int[] lines = this.lines;
+        int depth = Math.min(this.depth, Math.min(functions.length, lines.length) - 1);
+        if (depth < 0) return;
+
+        overall.add(wall, cpu);
+
+        StringBuilder stack = new StringBuilder("<script>:").append(lines[0]);
+        Set<Statement.Function> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 1; i <= depth; i++) {
+            Statement.Function function = functions[i];
+            if (function == null) return;
+
+            stack.append(';').append(function.name.lexeme()).append(':').append(lines[i]);
+            if (seen.add(function)) {
+                totalTimes.computeIfAbsent(function, key -> new Sample()).add(wall, cpu);
+            }
+        }
+
+        stacks.computeIfAbsent(stack.toString(), key -> new Sample()).add(wall, cpu);
+        lineTimes.computeIfAbsent(lines[depth], key -> new Sample()).add(wall, cpu);
+        if (depth > 0) {
+            selfTimes.computeIfAbsent(functions[depth], key -> new Sample()).add(wall, cpu);
+        }
+    }
+
+    // Stops sampling, prints the report and writes the collapsed stacks.
+    void finish(PrintStream report) {
+        running = false;
+        try {
+            sampler.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        report.printf("%nProfile: %d samples, %.1f ms wall, %.1f ms cpu%n",
+                overall.count, millis(overall.wallNanos), millis(overall.cpuNanos));
+
+        report.printf("%n%-24s %10s %12s %12s %12s %12s%n",
+                "Function", "Calls", "Self ms", "Total ms", "Self cpu", "Total cpu");
+        List<Statement.Function> functions = new ArrayList<>(calls.keySet());
+        functions.sort((a, b) -> Long.compare(wallOf(selfTimes.get(b)), wallOf(selfTimes.get(a))));
+        for (Statement.Function function: functions) {
+            Sample self = selfTimes.getOrDefault(function, new Sample());
+            Sample total = totalTimes.getOrDefault(function, new Sample());
+            report.printf("%-24s %10d %12.1f %12.1f %12.1f %12.1f%n",
+                    function.name.lexeme() + ":" + function.name.line, calls.get(function)[0],
+                    millis(self.wallNanos), millis(total.wallNanos),
+                    millis(self.cpuNanos), millis(total.cpuNanos));
+        }
+
+        boolean memoized = false;
+        for (Statement.Function function: functions) {
+            Memo memo = memos.get(function);
+            if (memo == null) continue;
+
+            if (!memoized) {
+                report.printf("%n%-24s %10s %10s %10s%n", "Memoized", "Hits", "Misses", "Entries");
+                memoized = true;
+            }
+            report.printf("%-24s %10d %10d %10s%n", function.name.lexeme() + ":" + function.name.line,
+                    memo.hits, memo.misses, memo.retired ? "retired" : memo.size());
+        }
+
+        report.printf("%n%-24s %12s %12s%n", "Line", "Self ms", "Self cpu");
+        List<Map.Entry<Integer, Sample>> hotLines = new ArrayList<>(lineTimes.entrySet());
+        hotLines.sort((a, b) -> Long.compare(b.getValue().wallNanos, a.getValue().wallNanos));
+        for (Map.Entry<Integer, Sample> line: hotLines.subList(0, Math.min(TOP, hotLines.size()))) {
+            report.printf("%-24s %12.1f %12.1f%n", "line " + line.getKey(),
+                    millis(line.getValue().wallNanos), millis(line.getValue().cpuNanos));
+        }
+
+        report.printf("%nHottest call paths:%n");
+        List<Map.Entry<String, Sample>> paths = new ArrayList<>(stacks.entrySet());
+        paths.sort((a, b) -> Long.compare(b.getValue().wallNanos, a.getValue().wallNanos));
+        for (Map.Entry<String, Sample> path: paths.subList(0, Math.min(TOP, paths.size()))) {
+            report.printf("%6.1f%%  %s%n",
+                    100.0 * path.getValue().wallNanos / Math.max(overall.wallNanos, 1), path.getKey());
+        }
+
+        try (Writer out = Files.newBufferedWriter(collapsedFile, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Sample> path: stacks.entrySet()) {
+                out.write(path.getKey() + " " + path.getValue().count + "\n");
+            }
+            report.printf("%nCollapsed stacks written to %s%n", collapsedFile);
+        } catch (IOException e) {
+            report.printf("%nCould not write %s: %s%n", collapsedFile, e.getMessage());
+        }
+    }
+
+    private static long wallOf(Sample sample) {
+        return sample == null ? 0 : sample.wallNanos;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,55 @@
+package com.superestos;
+
+import java.util.List;
+
+/**
+ * A script compiled for embedding: scanned, parsed, resolved and analyzed
+ * once, and then run as many times as needed, on any number of threads at
+ * once, through a ContextPool.
+ *
+ * Everything a run changes lives in the interpreter running it. The tree
+ * itself only holds caches that any run may fill in (inline caches, node
+ * specializations, Jit code), each of which is valid for every run, so
+ * losing a race to fill one in costs a little time and nothing else.
+ */
+public final class Program {
+    final List<Statement> statements;
+    // The slots of this program's globals, which a context running it sizes
+    // its global table by.
+    final GlobalSlots globalSlots;
+
+    private Program(List<Statement> statements, GlobalSlots globalSlots) {
+        this.statements = statements;
+        this.globalSlots = globalSlots;
+    }
+
+    public static Program compile(CharSequence source) throws LoxException {
+        return compile(source, false);
+    }
+
+    public static Program compile(CharSequence source, boolean optimize) throws LoxException {
+        Reporter reporter = new Reporter(null);
+        GlobalSlots globalSlots = new GlobalSlots();
+        List<Statement> statements = new Parser(new Scanner(source, reporter), reporter).parse();
+        statements = prepare(statements, reporter, globalSlots, optimize, true);
+        if (reporter.hadError) {
+            throw new LoxException(reporter.errors());
+        }
+
+        return new Program(statements, globalSlots);
+    }
+
+    // Everything between parsing and running, shared with the command line.
+    // Global names get their slots in globalSlots.
+    static List<Statement> prepare(List<Statement> statements, Reporter reporter, GlobalSlots globalSlots,
+                                   boolean optimize, boolean memoize) {
+        new Resolver(reporter, globalSlots).resolve(statements);
+
+        if (optimize && !reporter.hadError) {
+            statements = new Optimizer(reporter, globalSlots).optimize(statements);
+        }
+        new Purity(memoize).analyze(statements);
+
+        return statements;
+    }
+}
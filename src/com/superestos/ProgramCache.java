@@ -0,0 +1,696 @@
+package com.superestos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk cache of parsed programs, so a script that hasn't changed since
+ * its last run doesn't have to be scanned and parsed again. Entries live in
+ * a cache directory and are named after the SHA-256 of the source.
+ *
+ * Next to them, a stamp per script path records the script's size and
+ * modification time along with that hash. While both are unchanged the
+ * recorded hash is the key and the source isn't read at all; otherwise it
+ * is hashed again, which also tells an edited script from a touched one.
+ *
+ * An entry is a flat encoding read back through a memory-mapped buffer: a
+ * header (magic, format version, source hash), a table of all the strings in
+ * the program, each written once with its length in front, and then the
+ * statements in prefix order, one tag byte per node. Tokens refer to their
+ * lexeme by its index in the string table. Counts, indexes and line numbers
+ * are written as base-128 varints, most of them fit in a single byte.
+ *
+ * Only the parsed tree is stored. Resolving is cheap and the global slots it
+ * hands out are only valid within one process, so loaded programs are
+ * resolved like freshly parsed ones.
+ *
+ * Anything wrong with an entry (wrong version, other hash, truncated file)
+ * just makes it a miss; the source is parsed and the entry written again.
+ * Bump FORMAT_VERSION whenever the tree or this encoding changes.
+ *
+ * Loading an entry touches its modification time, and after each store the
+ * entries used longest ago are deleted until the directory is back under
+ * 'lox.cacheMegabytes' (64 by default). A cache that can't be read or
+ * written only costs a parse, so failures are not errors; run with
+ * -Dlox.cacheDebug=true to see them.
+ */
+class ProgramCache {
+    private static final int MAGIC = 0x4c4f5843;
+    private static final int FORMAT_VERSION = 3;
+
+    // Tag 0 stands for a missing child, like an absent else branch.
+    private static final byte NONE = 0;
+
+    private static final byte BINARY = 1;
+    private static final byte UNARY = 2;
+    private static final byte LITERAL = 3;
+    private static final byte GROUPING = 4;
+    private static final byte VARIABLE = 5;
+    private static final byte ASSIGN = 6;
+    private static final byte LOGICAL = 7;
+    private static final byte CALL = 8;
+    private static final byte INDEX = 9;
+    private static final byte SET_INDEX = 10;
+    private static final byte GET = 11;
+    private static final byte SET = 12;
+    private static final byte THIS = 13;
+    private static final byte SUPER = 14;
+
+    private static final byte PRINT = 20;
+    private static final byte EXPR = 21;
+    private static final byte VAR = 22;
+    private static final byte BLOCK = 23;
+    private static final byte IF = 24;
+    private static final byte WHILE = 25;
+    private static final byte FUNCTION = 26;
+    private static final byte RETURN = 27;
+    private static final byte CLASS = 28;
+
+    private static final byte NIL_VALUE = 1;
+    private static final byte TRUE_VALUE = 2;
+    private static final byte FALSE_VALUE = 3;
+    private static final byte NUMBER_VALUE = 4;
+    private static final byte STRING_VALUE = 5;
+
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+    private static final String ENTRY_SUFFIX = ".loxc";
+    private static final String STAMP_SUFFIX = ".stamp";
+    private static final int HASH_BYTES = 32;
+    private static final boolean DEBUG = Boolean.getBoolean("lox.cacheDebug");
+
+    private final Path directory;
+    private final long maxBytes;
+
+    ProgramCache(Path directory) {
+        this(directory, Long.getLong("lox.cacheMegabytes", 64) * 1024 * 1024);
+    }
+
+    ProgramCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    static ProgramCache inDefaultDirectory() {
+        String directory = System.getProperty("lox.cacheDir");
+        if (directory == null) {
+            return new ProgramCache(Paths.get(System.getProperty("user.home"), ".cache", "lox"));
+        }
+        return new ProgramCache(Paths.get(directory));
+    }
+
+    // The key of the source of the script at path, which is the hash of
+    // the source, checked again on load.
+    byte[] key(Path script, ByteBuffer source) {
+        Path stamp;
+        long modified;
+        try {
+            stamp = directory.resolve(hex(hash(ByteBuffer.wrap(
+                    script.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8)))) + STAMP_SUFFIX);
+            modified = Files.getLastModifiedTime(script).toMillis();
+        } catch (IOException | RuntimeException e) {
+            debug("can't stat " + script, e);
+            return hash(source);
+        }
+        long size = source.remaining();
+
+        try {
+            if (Files.size(stamp) == 16 + HASH_BYTES) {
+                ByteBuffer recorded = ByteBuffer.wrap(Files.readAllBytes(stamp));
+                if (recorded.getLong() == size && recorded.getLong() == modified) {
+                    byte[] hash = new byte[HASH_BYTES];
+                    recorded.get(hash);
+                    touch(stamp);
+                    return hash;
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // Not run from this path before.
+        } catch (IOException | RuntimeException e) {
+            debug("can't read " + stamp, e);
+        }
+
+        byte[] hash = hash(source);
+        ByteBuffer record = ByteBuffer.allocate(16 + HASH_BYTES);
+        record.putLong(size).putLong(modified).put(hash);
+        write(stamp, record.array());
+        return hash;
+    }
+
+    static byte[] hash(ByteBuffer source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(source.duplicate());
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Returns the cached program for this key, or null on a miss.
+    List<Statement> load(byte[] hash) {
+        Path entry = entry(hash);
+        if (!Files.isRegularFile(entry)) {
+            return null;
+        }
+
+        List<Statement> statements;
+        try (FileChannel channel = FileChannel.open(entry)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            statements = new Reader(buffer).readProgram(hash);
+        } catch (IOException | RuntimeException e) {
+            debug("can't load " + entry, e);
+            return null;
+        }
+
+        touch(entry);
+        return statements;
+    }
+
+    // The modification time of an entry or stamp is when it was last used.
+    private static void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            debug("can't touch " + file, e);
+        }
+    }
+
+    void store(byte[] hash, List<Statement> statements) {
+        byte[] bytes;
+        try {
+            bytes = new Writer().writeProgram(hash, statements);
+        } catch (IOException | RuntimeException e) {
+            debug("can't encode " + entry(hash), e);
+            return;
+        }
+
+        if (write(entry(hash), bytes)) {
+            evict();
+        }
+    }
+
+    // Writes the whole file or, if that fails, leaves any old one in place.
+    private boolean write(Path file, byte[] bytes) {
+        try {
+            Files.createDirectories(directory);
+            Path temporary = Files.createTempFile(directory, "entry", ".tmp");
+            try {
+                Files.write(temporary, bytes);
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            debug("can't store " + file, e);
+            return false;
+        }
+    }
+
+    // Deletes the entries and stamps used longest ago until the rest fit in maxBytes.
+    private void evict() {
+        Map<Path, BasicFileAttributes> entries = new HashMap<>();
+        long total = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                "*{" + ENTRY_SUFFIX + "," + STAMP_SUFFIX + "}")) {
+            for (Path file: files) {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                entries.put(file, attributes);
+                total += attributes.size();
+            }
+        } catch (IOException | RuntimeException e) {
+            debug("can't list " + directory, e);
+            return;
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+
+        List<Path> oldestFirst = new ArrayList<>(entries.keySet());
+        oldestFirst.sort(Comparator.comparing(file -> entries.get(file).lastModifiedTime()));
+        for (Path file: oldestFirst) {
+            if (total <= maxBytes) {
+                break;
+            }
+            try {
+                Files.deleteIfExists(file);
+                total -= entries.get(file).size();
+            } catch (IOException e) {
+                debug("can't evict " + file, e);
+            }
+        }
+    }
+
+    private static void debug(String message, Exception e) {
+        if (DEBUG) {
+            System.err.println("[cache] " + message + ": " + e);
+        }
+    }
+
+    private Path entry(byte[] hash) {
+        return directory.resolve(hex(hash) + ENTRY_SUFFIX);
+    }
+
+    private static String hex(byte[] hash) {
+        StringBuilder name = new StringBuilder();
+        for (byte b: hash) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16));
+            name.append(Character.forDigit(b & 0xf, 16));
+        }
+        return name.toString();
+    }
+
+    private static final class Writer {
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final List<String> stringTable = new ArrayList<>();
+
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(body);
+
+        byte[] writeProgram(byte[] hash, List<Statement> statements) throws IOException {
+            writeStatements(statements);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(bytes);
+            header.writeInt(MAGIC);
+            header.writeInt(FORMAT_VERSION);
+            header.write(hash);
+
+            writeVarInt(header, stringTable.size());
+            for (String string: stringTable) {
+                byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+                writeVarInt(header, utf8.length);
+                header.write(utf8);
+            }
+
+            header.write(body.toByteArray());
+            return bytes.toByteArray();
+        }
+
+        private void writeStatements(List<Statement> statements) throws IOException {
+            writeVarInt(out, statements.size());
+            for (Statement statement: statements) {
+                write(statement);
+            }
+        }
+
+        private void write(Statement stmt) throws IOException {
+            if (stmt instanceof Statement.Print) {
+                out.writeByte(PRINT);
+                write(((Statement.Print) stmt).expression);
+            } else if (stmt instanceof Statement.Expr) {
+                out.writeByte(EXPR);
+                write(((Statement.Expr) stmt).expression);
+            } else if (stmt instanceof Statement.Var) {
+                Statement.Var var = (Statement.Var) stmt;
+                out.writeByte(VAR);
+                write(var.name);
+                write(var.initializer);
+            } else if (stmt instanceof Statement.Block) {
+                out.writeByte(BLOCK);
+                writeStatements(((Statement.Block) stmt).statements);
+            } else if (stmt instanceof Statement.If) {
+                Statement.If ifStmt = (Statement.If) stmt;
+                out.writeByte(IF);
+                write(ifStmt.condition);
+                write(ifStmt.thenBranch);
+                write(ifStmt.elseBranch);
+            } else if (stmt instanceof Statement.While) {
+                Statement.While whileStmt = (Statement.While) stmt;
+                out.writeByte(WHILE);
+                write(whileStmt.condition);
+                write(whileStmt.body);
+            } else if (stmt instanceof Statement.Function) {
+                Statement.Function function = (Statement.Function) stmt;
+                out.writeByte(FUNCTION);
+                write(function.name);
+                writeVarInt(out, function.parameters.size());
+                for (Token parameter: function.parameters) {
+                    write(parameter);
+                }
+                writeStatements(function.body);
+            } else if (stmt instanceof Statement.Return) {
+                Statement.Return returnStmt = (Statement.Return) stmt;
+                out.writeByte(RETURN);
+                write(returnStmt.keyword);
+                write(returnStmt.value);
+            } else if (stmt instanceof Statement.Class) {
+                Statement.Class klass = (Statement.Class) stmt;
+                out.writeByte(CLASS);
+                write(klass.name);
+                write(klass.superclass);
+                writeVarInt(out, klass.methods.size());
+                for (Statement.Function method: klass.methods) {
+                    write(method);
+                }
+            } else if (stmt == null) {
+                out.writeByte(NONE);
+            } else {
+                throw new IllegalStateException("Can't store " + stmt + ".");
+            }
+        }
+
+        private void write(Expression expr) throws IOException {
+            if (expr instanceof Expression.Binary) {
+                Expression.Binary binary = (Expression.Binary) expr;
+                out.writeByte(BINARY);
+                write(binary.left);
+                write(binary.operator);
+                write(binary.right);
+            } else if (expr instanceof Expression.Unary) {
+                Expression.Unary unary = (Expression.Unary) expr;
+                out.writeByte(UNARY);
+                write(unary.operator);
+                write(unary.right);
+            } else if (expr instanceof Expression.Literal) {
+                out.writeByte(LITERAL);
+                writeValue(((Expression.Literal) expr).value);
+            } else if (expr instanceof Expression.Grouping) {
+                out.writeByte(GROUPING);
+                write(((Expression.Grouping) expr).expression);
+            } else if (expr instanceof Expression.Variable) {
+                out.writeByte(VARIABLE);
+                write(((Expression.Variable) expr).name);
+            } else if (expr instanceof Expression.Assign) {
+                Expression.Assign assign = (Expression.Assign) expr;
+                out.writeByte(ASSIGN);
+                write(assign.name);
+                write(assign.value);
+            } else if (expr instanceof Expression.Logical) {
+                Expression.Logical logical = (Expression.Logical) expr;
+                out.writeByte(LOGICAL);
+                write(logical.left);
+                write(logical.operator);
+                write(logical.right);
+            } else if (expr instanceof Expression.Call) {
+                Expression.Call call = (Expression.Call) expr;
+                out.writeByte(CALL);
+                write(call.callee);
+                writeVarInt(out, call.arguments.size());
+                for (Expression argument: call.arguments) {
+                    write(argument);
+                }
+                write(call.paren);
+            } else if (expr instanceof Expression.Index) {
+                Expression.Index index = (Expression.Index) expr;
+                out.writeByte(INDEX);
+                write(index.object);
+                write(index.index);
+                write(index.bracket);
+            } else if (expr instanceof Expression.SetIndex) {
+                Expression.SetIndex setIndex = (Expression.SetIndex) expr;
+                out.writeByte(SET_INDEX);
+                write(setIndex.object);
+                write(setIndex.index);
+                write(setIndex.value);
+                write(setIndex.bracket);
+            } else if (expr instanceof Expression.Get) {
+                Expression.Get get = (Expression.Get) expr;
+                out.writeByte(GET);
+                write(get.object);
+                write(get.name);
+            } else if (expr instanceof Expression.Set) {
+                Expression.Set set = (Expression.Set) expr;
+                out.writeByte(SET);
+                write(set.object);
+                write(set.name);
+                write(set.value);
+            } else if (expr instanceof Expression.This) {
+                out.writeByte(THIS);
+                write(((Expression.This) expr).keyword);
+            } else if (expr instanceof Expression.Super) {
+                Expression.Super superExpr = (Expression.Super) expr;
+                out.writeByte(SUPER);
+                write(superExpr.keyword);
+                write(superExpr.method);
+            } else if (expr == null) {
+                out.writeByte(NONE);
+            } else {
+                throw new IllegalStateException("Can't store " + expr + ".");
+            }
+        }
+
+        private void writeValue(Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(NIL_VALUE);
+            } else if (value instanceof Boolean) {
+                out.writeByte((Boolean) value ? TRUE_VALUE : FALSE_VALUE);
+            } else if (value instanceof Double) {
+                out.writeByte(NUMBER_VALUE);
+                out.writeDouble((Double) value);
+            } else if (value instanceof String) {
+                out.writeByte(STRING_VALUE);
+                writeVarInt(out, string((String) value));
+            } else {
+                throw new IllegalStateException("Can't store " + value + ".");
+            }
+        }
+
+        // Tokens in the tree never carry a literal; literals are in their own nodes.
+        private void write(Token token) throws IOException {
+            out.writeByte(token.type.ordinal());
+            writeVarInt(out, string(token.lexeme()));
+            writeVarInt(out, token.line);
+        }
+
+        private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+            while ((value & ~0x7f) != 0) {
+                out.writeByte((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+
+        private int string(String string) {
+            Integer index = strings.get(string);
+            if (index == null) {
+                index = stringTable.size();
+                strings.put(string, index);
+                stringTable.add(string);
+            }
+            return index;
+        }
+    }
+
+    private static final class Reader {
+        private final ByteBuffer in;
+        private String[] strings;
+
+        Reader(ByteBuffer in) {
+            this.in = in;
+        }
+
+        List<Statement> readProgram(byte[] hash) {
+            if (in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+
+            byte[] storedHash = new byte[hash.length];
+            in.get(storedHash);
+            if (!Arrays.equals(hash, storedHash)) {
+                return null;
+            }
+
+            strings = new String[readVarInt()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] utf8 = new byte[readVarInt()];
+                in.get(utf8);
+                strings[i] = new String(utf8, StandardCharsets.UTF_8);
+            }
+
+            List<Statement> statements = readStatements();
+            if (in.hasRemaining()) {
+                throw new IllegalStateException("Trailing bytes in cache entry.");
+            }
+            return statements;
+        }
+
+        private List<Statement> readStatements() {
+            int count = readVarInt();
+            if (count < 0 || count > in.remaining()) {
+                throw new BufferUnderflowException();
+            }
+
+            List<Statement> statements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                statements.add(readStatement());
+            }
+            return statements;
+        }
+
+        private Statement readStatement() {
+            byte tag = in.get();
+            switch (tag) {
+                case NONE:
+                    return null;
+                case PRINT:
+                    return new Statement.Print(readExpression());
+                case EXPR:
+                    return new Statement.Expr(readExpression());
+                case VAR: {
+                    Token name = readToken();
+                    return new Statement.Var(name, readExpression());
+                }
+                case BLOCK:
+                    return new Statement.Block(readStatements());
+                case IF: {
+                    Expression condition = readExpression();
+                    Statement thenBranch = readStatement();
+                    return new Statement.If(condition, thenBranch, readStatement());
+                }
+                case WHILE: {
+                    Expression condition = readExpression();
+                    return new Statement.While(condition, readStatement());
+                }
+                case FUNCTION: {
+                    Token name = readToken();
+                    int arity = readVarInt();
+                    List<Token> parameters = new ArrayList<>();
+                    for (int i = 0; i < arity; i++) {
+                        parameters.add(readToken());
+                    }
+                    return new Statement.Function(name, parameters, readStatements());
+                }
+                case RETURN: {
+                    Token keyword = readToken();
+                    return new Statement.Return(keyword, readExpression());
+                }
+                case CLASS: {
+                    Token name = readToken();
+                    Expression.Variable superclass = (Expression.Variable) readExpression();
+                    int count = readVarInt();
+                    List<Statement.Function> methods = new ArrayList<>();
+                    for (int i = 0; i < count; i++) {
+                        methods.add((Statement.Function) readStatement());
+                    }
+                    return new Statement.Class(name, superclass, methods);
+                }
+                default:
+                    throw new IllegalStateException("Unknown statement tag " + tag + ".");
+            }
+        }
+
+        private Expression readExpression() {
+            byte tag = in.get();
+            switch (tag) {
+                case NONE:
+                    return null;
+                case BINARY: {
+                    Expression left = readExpression();
+                    Token operator = readToken();
+                    return new Expression.Binary(left, operator, readExpression());
+                }
+                case UNARY: {
+                    Token operator = readToken();
+                    return new Expression.Unary(operator, readExpression());
+                }
+                case LITERAL:
+                    return new Expression.Literal(readValue());
+                case GROUPING:
+                    return new Expression.Grouping(readExpression());
+                case VARIABLE:
+                    return new Expression.Variable(readToken());
+                case ASSIGN: {
+                    Token name = readToken();
+                    return new Expression.Assign(name, readExpression());
+                }
+                case LOGICAL: {
+                    Expression left = readExpression();
+                    Token operator = readToken();
+                    return new Expression.Logical(left, operator, readExpression());
+                }
+                case CALL: {
+                    Expression callee = readExpression();
+                    int count = readVarInt();
+                    List<Expression> arguments = new ArrayList<>();
+                    for (int i = 0; i < count; i++) {
+                        arguments.add(readExpression());
+                    }
+                    return new Expression.Call(callee, arguments, readToken());
+                }
+                case INDEX: {
+                    Expression object = readExpression();
+                    Expression index = readExpression();
+                    return new Expression.Index(object, index, readToken());
+                }
+                case SET_INDEX: {
+                    Expression object = readExpression();
+                    Expression index = readExpression();
+                    Expression value = readExpression();
+                    return new Expression.SetIndex(object, index, value, readToken());
+                }
+                case GET: {
+                    Expression object = readExpression();
+                    return new Expression.Get(object, readToken());
+                }
+                case SET: {
+                    Expression object = readExpression();
+                    Token name = readToken();
+                    return new Expression.Set(object, name, readExpression());
+                }
+                case THIS:
+                    return new Expression.This(readToken());
+                case SUPER: {
+                    Token keyword = readToken();
+                    return new Expression.Super(keyword, readToken());
+                }
+                default:
+                    throw new IllegalStateException("Unknown expression tag " + tag + ".");
+            }
+        }
+
+        private Object readValue() {
+            byte tag = in.get();
+            switch (tag) {
+                case NIL_VALUE: return null;
+                case TRUE_VALUE: return true;
+                case FALSE_VALUE: return false;
+                case NUMBER_VALUE: return in.getDouble();
+                case STRING_VALUE: return strings[readVarInt()];
+                default:
+                    throw new IllegalStateException("Unknown value tag " + tag + ".");
+            }
+        }
+
+        private int readVarInt() {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                byte b = in.get();
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalStateException("Malformed number in cache entry.");
+        }
+
+        private Token readToken() {
+            TokenType type = TOKEN_TYPES[in.get()];
+            String lexeme = strings[readVarInt()];
+            return new Token(type, lexeme, null, readVarInt());
+        }
+    }
+}
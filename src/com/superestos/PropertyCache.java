@@ -0,0 +1,136 @@
+package com.superestos;
+
+/**
+ * Inline cache for one property access in the program: a get, set or
+ * method call on 'object.name', or a 'super.name'. It remembers, for up to
+ * LIMIT shapes it has seen, what the name meant for instances of that
+ * shape: the slot of a field, a method of the class, or, for a set that
+ * adds the field, the shape the instance moves to. A site that only ever
+ * sees one shape, the usual case, finds its answer in the first entry.
+ * When a new shape comes along and the cache is full, it starts over with
+ * just that one, as the call-site caches do. Each run of a class
+ * declaration makes a new class with new shapes, so a site in a program
+ * that is run many times, or in a loop that declares a class, keeps seeing
+ * shapes it will never see again; starting over lets it cache the live
+ * ones, and lets go of the dead classes.
+ *
+ * Entries are never changed once made, and the array of them is replaced
+ * whole, so tasks sharing a cache can only miss each other's updates.
+ */
+final class PropertyCache {
+    private static final int LIMIT = 4;
+    private static final Entry[] EMPTY = new Entry[0];
+
+    static final class Entry {
+        final Shape shape;
+        // The slot of the field, or -1 for a method.
+        final int slot;
+        final LoxClass.Method method;
+        // For a set that adds the field, the instance's new shape.
+        final Shape next;
+
+        private Entry(Shape shape, int slot, LoxClass.Method method, Shape next) {
+            this.shape = shape;
+            this.slot = slot;
+            this.method = method;
+            this.next = next;
+        }
+    }
+
+    private Entry[] entries = EMPTY;
+
+    // 'object.name': a field, or a method bound to the instance.
+    Object get(Object object, Token name) {
+        Entry entry = lookup(object, name);
+        Instance instance = (Instance) object;
+        if (entry.method != null) {
+            return new LoxClass.BoundMethod(instance, entry.method);
+        }
+        return instance.fields[entry.slot];
+    }
+
+    // What 'name' means on the instance: a field or a method.
+    Entry lookup(Object object, Token name) {
+        Instance instance = instance(object, name, "Only instances have properties.");
+        Shape shape = instance.shape;
+        for (Entry entry: entries) {
+            if (entry.shape == shape) {
+                return entry;
+            }
+        }
+
+        String field = name.lexeme();
+        int slot = shape.slot(field);
+        if (slot >= 0) {
+            return remember(new Entry(shape, slot, null, null));
+        }
+        LoxClass.Method method = shape.klass.findMethod(field);
+        if (method != null) {
+            return remember(new Entry(shape, -1, method, null));
+        }
+        throw new Interpreter.RuntimeError(name, "Undefined property '" + field + "'.");
+    }
+
+    // 'object.name = value', which adds the field if the instance doesn't
+    // have it yet.
+    Object set(Object object, Token name, Object value) {
+        Instance instance = instance(object, name, "Only instances have fields.");
+        Shape shape = instance.shape;
+        Entry found = null;
+        for (Entry entry: entries) {
+            if (entry.shape == shape) {
+                found = entry;
+                break;
+            }
+        }
+        if (found == null) {
+            int slot = shape.slot(name.lexeme());
+            found = remember(slot >= 0 ? new Entry(shape, slot, null, null) :
+                    new Entry(shape, shape.size, null, shape.with(name.lexeme())));
+        }
+
+        if (found.next != null) {
+            instance.add(found.next, value);
+        } else {
+            instance.fields[found.slot] = value;
+        }
+        return value;
+    }
+
+    // The method 'super.name' finds on the superclass.
+    LoxClass.Method findSuper(LoxClass superclass, Token name) {
+        Shape shape = superclass.shape;
+        for (Entry entry: entries) {
+            if (entry.shape == shape) {
+                return entry.method;
+            }
+        }
+
+        LoxClass.Method method = superclass.findMethod(name.lexeme());
+        if (method == null) {
+            throw new Interpreter.RuntimeError(name, "Undefined property '" + name.lexeme() + "'.");
+        }
+        remember(new Entry(shape, -1, method, null));
+        return method;
+    }
+
+    private Entry remember(Entry entry) {
+        Entry[] current = entries;
+        if (current.length == LIMIT) {
+            entries = new Entry[] {entry};
+            return entry;
+        }
+        Entry[] grown = new Entry[current.length + 1];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        grown[current.length] = entry;
+        entries = grown;
+        return entry;
+    }
+
+    private static Instance instance(Object object, Token name, String message) {
+        if (!(object instanceof Instance)) {
+            throw new Interpreter.RuntimeError(name, message);
+        }
+        return (Instance) object;
+    }
+}
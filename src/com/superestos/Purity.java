@@ -0,0 +1,302 @@
+package com.superestos;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the global functions whose result depends on nothing but their
+ * arguments, and marks them pure so each Function made from them gets a
+ * Memo.
+ *
+ * A function is pure when its body
+ *
+ *  - doesn't print, store into arrays or set fields,
+ *  - doesn't assign or declare globals, or declare nested functions or
+ *    classes,
+ *  - reads no globals except ones bound to pure functions, and
+ *  - calls nothing but those.
+ *
+ * A global counts as bound to a function when the program declares it
+ * exactly once, with 'fun', and never assigns it. Since functions can only
+ * see globals and their own locals, such a function can only ever compute
+ * the same result from the same arguments, or fail. The pure natives of
+ * Library count as pure functions too, unless the program declares or
+ * assigns a global of the same name.
+ *
+ * Functions named in '-Dlox.noMemo=name,name' are never memoized.
+ *
+ * Along the way it marks isolated the functions that only break the third
+ * rule: they may read any global or array, but write nothing another
+ * thread could see, so parallelMap can run them on several threads at
+ * once. Unlike purity, isolation is worked out even when memoizing is off.
+ *
+ * Runs on a resolved tree.
+ */
+class Purity {
+    private static final Set<String> excluded = new HashSet<>(
+            List.of(System.getProperty("lox.noMemo", "").split(",")));
+
+    // Global names declared with 'fun', and how many times.
+    private final Map<String, List<Statement.Function>> functions = new HashMap<>();
+    // Global names that are declared with 'var' or 'class', or assigned
+    // anywhere.
+    private final Set<String> variables = new HashSet<>();
+
+    private final boolean memoize;
+
+    Purity(boolean memoize) {
+        this.memoize = memoize;
+    }
+
+    // Returns the functions that were marked pure.
+    List<Statement.Function> analyze(List<Statement> statements) {
+        for (Statement statement: statements) {
+            collectGlobals(statement);
+        }
+
+        // Every global name a candidate calls, and every one it reads
+        // otherwise, by candidate.
+        Map<Statement.Function, Set<String>> calls = new HashMap<>();
+        Map<Statement.Function, Set<String>> reads = new HashMap<>();
+        for (List<Statement.Function> declarations: functions.values()) {
+            Statement.Function function = declarations.get(0);
+            Set<String> called = new HashSet<>();
+            Set<String> read = new HashSet<>();
+            if (isConstant(function.name.lexeme()) && isIsolated(function.body, called, read)) {
+                calls.put(function, called);
+                reads.put(function, read);
+            }
+        }
+
+        // Isolated functions may read anything, but only call each other.
+        Map<Statement.Function, Set<String>> isolated = new HashMap<>(calls);
+        dropUntilClosed(isolated, false);
+        for (Statement.Function function: isolated.keySet()) {
+            function.isolated = true;
+        }
+
+        if (!memoize) {
+            return List.of();
+        }
+
+        // Pure functions may neither call nor read anything but each other.
+        Map<Statement.Function, Set<String>> pure = new HashMap<>();
+        for (Statement.Function function: isolated.keySet()) {
+            if (!excluded.contains(function.name.lexeme())) {
+                Set<String> names = new HashSet<>(calls.get(function));
+                names.addAll(reads.get(function));
+                pure.put(function, names);
+            }
+        }
+        dropUntilClosed(pure, true);
+        for (Statement.Function function: pure.keySet()) {
+            function.pure = true;
+        }
+        return new ArrayList<>(pure.keySet());
+    }
+
+    // Starts from every candidate and drops those that use a global that
+    // isn't a remaining candidate or a native they may use until nothing
+    // changes.
+    private void dropUntilClosed(Map<Statement.Function, Set<String>> candidates, boolean pure) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Map.Entry<Statement.Function, Set<String>> entry: new ArrayList<>(candidates.entrySet())) {
+                for (String name: entry.getValue()) {
+                    if (isNative(name, pure)) {
+                        continue;
+                    }
+                    if (!isConstant(name) || !candidates.containsKey(functions.get(name).get(0))) {
+                        candidates.remove(entry.getKey());
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    // Every Library native writes nothing shared; all but clock are pure.
+    private boolean isNative(String name, boolean pure) {
+        Library.Intrinsic intrinsic = Library.intrinsic(name);
+        return intrinsic != null && (intrinsic.pure || !pure) &&
+                !functions.containsKey(name) && !variables.contains(name);
+    }
+
+    private boolean isConstant(String name) {
+        List<Statement.Function> declarations = functions.get(name);
+        return declarations != null && declarations.size() == 1 && !variables.contains(name);
+    }
+
+    private void collectGlobals(Statement stmt) {
+        if (stmt instanceof Statement.Function) {
+            Statement.Function function = (Statement.Function) stmt;
+            if (function.slot < 0) {
+                functions.computeIfAbsent(function.name.lexeme(), name -> new ArrayList<>()).add(function);
+            }
+            for (Statement statement: function.body) {
+                collectGlobals(statement);
+            }
+        } else if (stmt instanceof Statement.Var) {
+            Statement.Var var = (Statement.Var) stmt;
+            if (var.slot < 0) {
+                variables.add(var.name.lexeme());
+            }
+            collectGlobals(var.initializer);
+        } else if (stmt instanceof Statement.Class) {
+            Statement.Class klass = (Statement.Class) stmt;
+            if (klass.slot < 0) {
+                variables.add(klass.name.lexeme());
+            }
+            // Methods are never candidates, but may assign globals.
+            for (Statement.Function method: klass.methods) {
+                for (Statement statement: method.body) {
+                    collectGlobals(statement);
+                }
+            }
+        } else if (stmt instanceof Statement.Block) {
+            for (Statement statement: ((Statement.Block) stmt).statements) {
+                collectGlobals(statement);
+            }
+        } else if (stmt instanceof Statement.If) {
+            Statement.If ifStmt = (Statement.If) stmt;
+            collectGlobals(ifStmt.condition);
+            collectGlobals(ifStmt.thenBranch);
+            collectGlobals(ifStmt.elseBranch);
+        } else if (stmt instanceof Statement.While) {
+            collectGlobals(((Statement.While) stmt).condition);
+            collectGlobals(((Statement.While) stmt).body);
+        } else if (stmt instanceof Statement.Print) {
+            collectGlobals(((Statement.Print) stmt).expression);
+        } else if (stmt instanceof Statement.Expr) {
+            collectGlobals(((Statement.Expr) stmt).expression);
+        } else if (stmt instanceof Statement.Return) {
+            collectGlobals(((Statement.Return) stmt).value);
+        }
+    }
+
+    private void collectGlobals(Expression expr) {
+        if (expr instanceof Expression.Assign) {
+            Expression.Assign assign = (Expression.Assign) expr;
+            if (assign.depth < 0) {
+                variables.add(assign.name.lexeme());
+            }
+            collectGlobals(assign.value);
+        } else if (expr instanceof Expression.Binary) {
+            collectGlobals(((Expression.Binary) expr).left);
+            collectGlobals(((Expression.Binary) expr).right);
+        } else if (expr instanceof Expression.Logical) {
+            collectGlobals(((Expression.Logical) expr).left);
+            collectGlobals(((Expression.Logical) expr).right);
+        } else if (expr instanceof Expression.Unary) {
+            collectGlobals(((Expression.Unary) expr).right);
+        } else if (expr instanceof Expression.Grouping) {
+            collectGlobals(((Expression.Grouping) expr).expression);
+        } else if (expr instanceof Expression.Call) {
+            collectGlobals(((Expression.Call) expr).callee);
+            for (Expression argument: ((Expression.Call) expr).arguments) {
+                collectGlobals(argument);
+            }
+        } else if (expr instanceof Expression.Index) {
+            collectGlobals(((Expression.Index) expr).object);
+            collectGlobals(((Expression.Index) expr).index);
+        } else if (expr instanceof Expression.SetIndex) {
+            collectGlobals(((Expression.SetIndex) expr).object);
+            collectGlobals(((Expression.SetIndex) expr).index);
+            collectGlobals(((Expression.SetIndex) expr).value);
+        } else if (expr instanceof Expression.Get) {
+            collectGlobals(((Expression.Get) expr).object);
+        } else if (expr instanceof Expression.Set) {
+            collectGlobals(((Expression.Set) expr).object);
+            collectGlobals(((Expression.Set) expr).value);
+        }
+    }
+
+    // Checks everything but the globals used: the ones called go into calls,
+    // the ones read otherwise into reads.
+    private static boolean isIsolated(List<Statement> statements, Set<String> calls, Set<String> reads) {
+        for (Statement statement: statements) {
+            if (!isIsolated(statement, calls, reads)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isIsolated(Statement stmt, Set<String> calls, Set<String> reads) {
+        if (stmt instanceof Statement.Var) {
+            Statement.Var var = (Statement.Var) stmt;
+            return var.slot >= 0 && (var.initializer == null || isIsolated(var.initializer, calls, reads));
+        } else if (stmt instanceof Statement.Block) {
+            return isIsolated(((Statement.Block) stmt).statements, calls, reads);
+        } else if (stmt instanceof Statement.If) {
+            Statement.If ifStmt = (Statement.If) stmt;
+            return isIsolated(ifStmt.condition, calls, reads) && isIsolated(ifStmt.thenBranch, calls, reads) &&
+                    (ifStmt.elseBranch == null || isIsolated(ifStmt.elseBranch, calls, reads));
+        } else if (stmt instanceof Statement.While) {
+            Statement.While loop = (Statement.While) stmt;
+            return isIsolated(loop.condition, calls, reads) && isIsolated(loop.body, calls, reads);
+        } else if (stmt instanceof Statement.Expr) {
+            return isIsolated(((Statement.Expr) stmt).expression, calls, reads);
+        } else if (stmt instanceof Statement.Return) {
+            Statement.Return returnStmt = (Statement.Return) stmt;
+            return returnStmt.value == null || isIsolated(returnStmt.value, calls, reads);
+        }
+
+        // Print and Function statements, and statements that failed to parse.
+        return false;
+    }
+
+    private static boolean isIsolated(Expression expr, Set<String> calls, Set<String> reads) {
+        if (expr instanceof Expression.Literal) {
+            return true;
+        } else if (expr instanceof Expression.Variable) {
+            Expression.Variable variable = (Expression.Variable) expr;
+            if (variable.depth < 0) {
+                reads.add(variable.name.lexeme());
+            }
+            return true;
+        } else if (expr instanceof Expression.Assign) {
+            Expression.Assign assign = (Expression.Assign) expr;
+            return assign.depth >= 0 && isIsolated(assign.value, calls, reads);
+        } else if (expr instanceof Expression.Binary) {
+            Expression.Binary binary = (Expression.Binary) expr;
+            return isIsolated(binary.left, calls, reads) && isIsolated(binary.right, calls, reads);
+        } else if (expr instanceof Expression.Logical) {
+            Expression.Logical logical = (Expression.Logical) expr;
+            return isIsolated(logical.left, calls, reads) && isIsolated(logical.right, calls, reads);
+        } else if (expr instanceof Expression.Unary) {
+            return isIsolated(((Expression.Unary) expr).right, calls, reads);
+        } else if (expr instanceof Expression.Grouping) {
+            return isIsolated(((Expression.Grouping) expr).expression, calls, reads);
+        } else if (expr instanceof Expression.Call) {
+            Expression.Call call = (Expression.Call) expr;
+            // Calling a local could call anything.
+            if (!(call.callee instanceof Expression.Variable) || ((Expression.Variable) call.callee).depth >= 0) {
+                return false;
+            }
+            for (Expression argument: call.arguments) {
+                if (!isIsolated(argument, calls, reads)) {
+                    return false;
+                }
+            }
+            calls.add(((Expression.Variable) call.callee).name.lexeme());
+            return true;
+        } else if (expr instanceof Expression.Index) {
+            Expression.Index index = (Expression.Index) expr;
+            return isIsolated(index.object, calls, reads) && isIsolated(index.index, calls, reads);
+        } else if (expr instanceof Expression.Get) {
+            return isIsolated(((Expression.Get) expr).object, calls, reads);
+        }
+
+        // Stores into arrays and fields, which another thread may be
+        // reading, and expressions that failed to parse. 'this' and 'super'
+        // only appear in methods, which are never candidates.
+        return false;
+    }
+}
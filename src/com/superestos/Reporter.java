@@ -0,0 +1,57 @@
+package com.superestos;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the errors found while compiling and running one program. The
+ * command line has one that prints to stderr; a Program gets one of its own
+ * for each compile, so programs can be compiled on several threads at once.
+ */
+class Reporter {
+    // Where errors are printed as they come, if anywhere.
+    private final PrintStream stream;
+    private final List<String> errors = new ArrayList<>();
+
+    boolean hadError = false;
+    boolean hadRuntimeError = false;
+
+    Reporter(PrintStream stream) {
+        this.stream = stream;
+    }
+
+    void error(int line, String message) {
+        report(line, "", message);
+    }
+
+    void error(Token token, String message) {
+        if (token.type == TokenType.EOF) {
+            report(token.line, " at end", message);
+        } else {
+            report(token.line, " at '" + token.lexeme() + "'", message);
+        }
+    }
+
+    void runtimeError(Interpreter.RuntimeError error) {
+        add(error.getMessage() + "\n[line " + error.token.line + "]");
+        hadRuntimeError = true;
+    }
+
+    List<String> errors() {
+        return errors;
+    }
+
+    private void report(int line, String where, String message) {
+        add("[line " + line + "] Error" + where + ": " + message);
+        hadError = true;
+    }
+
+    private void add(String error) {
+        if (stream != null) {
+            stream.println(error);
+        } else {
+            errors.add(error);
+        }
+    }
+}
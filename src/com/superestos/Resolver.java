@@ -0,0 +1,375 @@
+package com.superestos;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Walks the tree once before it is executed and works out, for every local
+ * variable, how many frames up it lives and at which slot of that frame.
+ * Anything that isn't declared in an enclosing local scope is global and
+ * gets the slot of its name in the global table instead.
+ *
+ * Function bodies only see globals and their own locals, so each function
+ * starts out with an empty stack of scopes.
+ *
+ * A method gets 'this', and 'super' in a subclass, as locals right after
+ * its parameters.
+ *
+ * A 'return f(...)' inside a function is marked as a tail call.
+ *
+ * A loop learns which function it is in and the sizes of the frames it can
+ * see, so the Jit can compile it on its own.
+ *
+ * Resolving a tree again, after it has been rewritten, is fine.
+ */
+public class Resolver {
+    // Innermost scope is last. Each scope maps a name to its slot. Names are
+    // interned, so the maps compare them by identity.
+    private final Reporter reporter;
+    private final GlobalSlots globalSlots;
+    private List<Map<String, Integer>> scopes = new ArrayList<>();
+    // The function being resolved, or null at top level, and the loops
+    // around the statement being resolved inside it, innermost last.
+    private Statement.Function function = null;
+    private List<Statement.While> loops = new ArrayList<>();
+
+    // Names of the locals a method keeps its receiver and superclass in.
+    // No identifier can be a keyword, so they can't clash with real ones.
+    private static final String THIS = Symbols.intern("this");
+    private static final String SUPER = Symbols.intern("super");
+
+    Resolver(Reporter reporter, GlobalSlots globalSlots) {
+        this.reporter = reporter;
+        this.globalSlots = globalSlots;
+    }
+
+    void resolve(List<Statement> statements) {
+        for (Statement statement: statements) {
+            resolve(statement);
+        }
+    }
+
+    public void visitPrintStatement(Statement.Print stmt) {
+        resolve(stmt.expression);
+    }
+
+    public void visitBlockStatement(Statement.Block stmt) {
+        // A block that declares nothing runs in its enclosing frame.
+        if (!declaresLocals(stmt.statements)) {
+            stmt.frameSize = 0;
+            resolve(stmt.statements);
+            return;
+        }
+
+        beginScope();
+        resolve(stmt.statements);
+        stmt.frameSize = endScope();
+    }
+
+    public void visitExprStatement(Statement.Expr stmt) {
+        resolve(stmt.expression);
+    }
+
+    public void visitVarStatement(Statement.Var stmt) {
+        // The initializer is resolved first, so 'var a = a;' refers to an outer 'a'.
+        if (stmt.initializer != null) {
+            resolve(stmt.initializer);
+        }
+
+        stmt.slot = declare(stmt.name);
+    }
+
+    public void visitIfStatement(Statement.If stmt) {
+        resolve(stmt.condition);
+        resolve(stmt.thenBranch);
+        if (stmt.elseBranch != null) {
+            resolve(stmt.elseBranch);
+        }
+    }
+
+    public void visitWhileStatement(Statement.While stmt) {
+        stmt.function = function;
+        stmt.enclosingFrames = new int[scopes.size()];
+        for (int i = 0; i < scopes.size(); i++) {
+            stmt.enclosingFrames[i] = scopes.get(i).size();
+        }
+
+        loops.add(stmt);
+        resolve(stmt.condition);
+        resolve(stmt.body);
+        loops.remove(loops.size() - 1);
+    }
+
+    public void visitFunctionStatement(Statement.Function stmt) {
+        stmt.slot = declare(stmt.name);
+        resolveFunction(stmt, 0);
+    }
+
+    public void visitClassStatement(Statement.Class stmt) {
+        stmt.slot = declare(stmt.name);
+
+        if (stmt.superclass != null) {
+            if (stmt.superclass.name.lexeme().equals(stmt.name.lexeme())) {
+                reporter.error(stmt.superclass.name, "A class can't inherit from itself.");
+            }
+            visitVariableExpr(stmt.superclass);
+        }
+
+        for (Statement.Function method: stmt.methods) {
+            resolveFunction(method, stmt.superclass != null ? 2 : 1);
+        }
+    }
+
+    private void resolveFunction(Statement.Function stmt, int receiverSlots) {
+        List<Map<String, Integer>> enclosing = scopes;
+        Statement.Function enclosingFunction = function;
+        List<Statement.While> enclosingLoops = loops;
+        scopes = new ArrayList<>();
+        function = stmt;
+        loops = new ArrayList<>();
+        beginScope();
+        for (Token parameter: stmt.parameters) {
+            declare(parameter);
+        }
+        Map<String, Integer> scope = scopes.get(0);
+        if (receiverSlots > 0) {
+            scope.put(THIS, scope.size());
+        }
+        if (receiverSlots > 1) {
+            scope.put(SUPER, scope.size());
+        }
+        stmt.receiverSlots = receiverSlots;
+        resolve(stmt.body);
+        stmt.frameSize = endScope();
+        scopes = enclosing;
+        function = enclosingFunction;
+        loops = enclosingLoops;
+    }
+
+    public void visitReturnStatement(Statement.Return stmt) {
+        if (stmt.value != null) {
+            resolve(stmt.value);
+        }
+
+        stmt.tailCall = function != null && stmt.value instanceof Expression.Call;
+        for (Statement.While loop: loops) {
+            loop.enclosingFrames = null;
+        }
+    }
+
+    public void visitBinaryExpr(Expression.Binary expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+    }
+
+    public void visitUnaryExpr(Expression.Unary expr) {
+        resolve(expr.right);
+    }
+
+    public void visitGroupingExpr(Expression.Grouping expr) {
+        resolve(expr.expression);
+    }
+
+    public void visitVariableExpr(Expression.Variable expr) {
+        expr.depth = -1;
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Integer slot = scopes.get(i).get(expr.name.lexeme());
+            if (slot != null) {
+                expr.depth = scopes.size() - 1 - i;
+                expr.slot = slot;
+                return;
+            }
+        }
+
+        expr.slot = globalSlots.slot(expr.name.lexeme());
+    }
+
+    public void visitAssignExpr(Expression.Assign expr) {
+        resolve(expr.value);
+
+        expr.depth = -1;
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Integer slot = scopes.get(i).get(expr.name.lexeme());
+            if (slot != null) {
+                expr.depth = scopes.size() - 1 - i;
+                expr.slot = slot;
+                return;
+            }
+        }
+
+        expr.slot = globalSlots.slot(expr.name.lexeme());
+    }
+
+    public void visitLogicalExpr(Expression.Logical expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+    }
+
+    public void visitCallExpr(Expression.Call expr) {
+        resolve(expr.callee);
+        for (Expression argument: expr.arguments) {
+            resolve(argument);
+        }
+
+        if (expr.callee instanceof Expression.Variable && ((Expression.Variable) expr.callee).depth < 0) {
+            String name = ((Expression.Variable) expr.callee).name.lexeme();
+            expr.intrinsic = Library.intrinsic(name, expr.arguments.size());
+        }
+    }
+
+    public void visitIndexExpr(Expression.Index expr) {
+        resolve(expr.object);
+        resolve(expr.index);
+    }
+
+    public void visitSetIndexExpr(Expression.SetIndex expr) {
+        resolve(expr.object);
+        resolve(expr.index);
+        resolve(expr.value);
+    }
+
+    public void visitGetExpr(Expression.Get expr) {
+        resolve(expr.object);
+    }
+
+    public void visitSetExpr(Expression.Set expr) {
+        resolve(expr.value);
+        resolve(expr.object);
+    }
+
+    // The Parser only lets 'this' and 'super' appear where a method's
+    // scope declares them.
+    public void visitThisExpr(Expression.This expr) {
+        int scope = find(THIS);
+        expr.depth = scopes.size() - 1 - scope;
+        expr.slot = scopes.get(scope).get(THIS);
+    }
+
+    public void visitSuperExpr(Expression.Super expr) {
+        int scope = find(SUPER);
+        expr.depth = scopes.size() - 1 - scope;
+        expr.slot = scopes.get(scope).get(SUPER);
+    }
+
+    // The index of the innermost scope that declares name, or -1.
+    private int find(String name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            if (scopes.get(i).containsKey(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void resolve(Expression expr) {
+        if (expr instanceof Expression.Binary) {
+            visitBinaryExpr((Expression.Binary) expr);
+        }
+        if (expr instanceof Expression.Unary) {
+            visitUnaryExpr((Expression.Unary) expr);
+        }
+        if (expr instanceof Expression.Grouping) {
+            visitGroupingExpr((Expression.Grouping) expr);
+        }
+        if (expr instanceof Expression.Variable) {
+            visitVariableExpr((Expression.Variable) expr);
+        }
+        if (expr instanceof Expression.Assign) {
+            visitAssignExpr((Expression.Assign) expr);
+        }
+        if (expr instanceof Expression.Logical) {
+            visitLogicalExpr((Expression.Logical) expr);
+        }
+        if (expr instanceof Expression.Call) {
+            visitCallExpr((Expression.Call) expr);
+        }
+        if (expr instanceof Expression.Index) {
+            visitIndexExpr((Expression.Index) expr);
+        }
+        if (expr instanceof Expression.SetIndex) {
+            visitSetIndexExpr((Expression.SetIndex) expr);
+        }
+        if (expr instanceof Expression.Get) {
+            visitGetExpr((Expression.Get) expr);
+        }
+        if (expr instanceof Expression.Set) {
+            visitSetExpr((Expression.Set) expr);
+        }
+        if (expr instanceof Expression.This) {
+            visitThisExpr((Expression.This) expr);
+        }
+        if (expr instanceof Expression.Super) {
+            visitSuperExpr((Expression.Super) expr);
+        }
+    }
+
+    private void resolve(Statement stmt) {
+        if (stmt instanceof Statement.Print) {
+            visitPrintStatement((Statement.Print) stmt);
+        }
+        if (stmt instanceof Statement.Expr) {
+            visitExprStatement((Statement.Expr) stmt);
+        }
+        if (stmt instanceof Statement.Var) {
+            visitVarStatement((Statement.Var) stmt);
+        }
+        if (stmt instanceof Statement.Block) {
+            visitBlockStatement((Statement.Block) stmt);
+        }
+        if (stmt instanceof Statement.If) {
+            visitIfStatement((Statement.If) stmt);
+        }
+        if (stmt instanceof Statement.While) {
+            visitWhileStatement((Statement.While) stmt);
+        }
+        if (stmt instanceof Statement.Function) {
+            visitFunctionStatement((Statement.Function) stmt);
+        }
+        if (stmt instanceof Statement.Return) {
+            visitReturnStatement((Statement.Return) stmt);
+        }
+        if (stmt instanceof Statement.Class) {
+            visitClassStatement((Statement.Class) stmt);
+        }
+    }
+
+    private void beginScope() {
+        scopes.add(new IdentityHashMap<>());
+    }
+
+    private int endScope() {
+        return scopes.remove(scopes.size() - 1).size();
+    }
+
+    private int declare(Token name) {
+        if (scopes.isEmpty()) {
+            // Globals are defined by name, but get their slot now, so the
+            // table is complete before the program runs.
+            globalSlots.slot(name.lexeme());
+            return -1;
+        }
+
+        Map<String, Integer> scope = scopes.get(scopes.size() - 1);
+        if (scope.containsKey(name.lexeme())) {
+            reporter.error(name, "Variable '" + name.lexeme() + "' already defined.");
+            return scope.get(name.lexeme());
+        }
+
+        int slot = scope.size();
+        scope.put(name.lexeme(), slot);
+        return slot;
+    }
+
+    private boolean declaresLocals(List<Statement> statements) {
+        for (Statement statement: statements) {
+            if (statement instanceof Statement.Var || statement instanceof Statement.Function ||
+                    statement instanceof Statement.Class) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,126 @@
+package com.superestos;
+
+import java.util.ArrayDeque;
+
+/**
+ * A Lox string made by '+' that hasn't been copied into one String yet.
+ * Concatenating two strings whose lengths add up to at least MIN_LENGTH
+ * makes a Rope over the two instead of copying them, so a loop that keeps
+ * appending to a string copies each piece once rather than the whole
+ * string every time.
+ *
+ * Lox strings are therefore either Strings or Ropes. A Rope is turned into
+ * a String the first time something needs its characters: printing it,
+ * comparing it with a string of the same length, passing it to a native or
+ * using it as a memo key. The String is kept, so that only happens once.
+ *
+ * A short piece appended to a Rope that ends in a short piece is merged
+ * into it, so appending one character at a time doesn't make a node per
+ * character.
+ */
+final class Rope {
+    static final int MIN_LENGTH = 64;
+
+    private final Object left;
+    private final Object right;
+    private final int length;
+
+    // Set once flattened. A String is safe to share between threads even
+    // without a happens-before edge, so a task that doesn't see another's
+    // write just flattens again.
+    private String flat;
+
+    private Rope(Object left, Object right, int length) {
+        this.left = left;
+        this.right = right;
+        this.length = length;
+    }
+
+    static boolean isString(Object value) {
+        return value instanceof String || value instanceof Rope;
+    }
+
+    // Both operands are Strings or Ropes.
+    static Object concat(Object left, Object right) {
+        int leftLength = length(left);
+        int rightLength = length(right);
+        int length = leftLength + rightLength;
+        if (length < 0) {
+            throw new OutOfMemoryError("String too long.");
+        }
+        if (length < MIN_LENGTH) {
+            // Ropes are never this short, so both are Strings.
+            return (String) left + (String) right;
+        }
+
+        // Don't keep the pieces of a rope alive once it has been flattened.
+        if (left instanceof Rope && ((Rope) left).flat != null) {
+            left = ((Rope) left).flat;
+        }
+        if (right instanceof Rope && ((Rope) right).flat != null) {
+            right = ((Rope) right).flat;
+        }
+
+        if (right instanceof String && rightLength < MIN_LENGTH && left instanceof Rope) {
+            Rope rope = (Rope) left;
+            if (rope.right instanceof String && ((String) rope.right).length() + rightLength < MIN_LENGTH) {
+                return new Rope(rope.left, (String) rope.right + (String) right, length);
+            }
+        }
+        return new Rope(left, right, length);
+    }
+
+    static int length(Object string) {
+        return string instanceof Rope ? ((Rope) string).length : ((String) string).length();
+    }
+
+    // The String for a String or a Rope.
+    static String flatten(Object string) {
+        return string instanceof Rope ? string.toString() : (String) string;
+    }
+
+    @Override
+    public String toString() {
+        String flat = this.flat;
+        if (flat == null) {
+            flat = copy();
+            this.flat = flat;
+        }
+        return flat;
+    }
+
+    // Fills the characters in from the end, right piece first, so a rope
+    // built by appending, which leans left, only ever has a couple of
+    // pieces pending.
+    private String copy() {
+        char[] chars = new char[length];
+        int end = length;
+
+        ArrayDeque<Object> pending = new ArrayDeque<>();
+        pending.push(this);
+        while (!pending.isEmpty()) {
+            Object piece = pending.pop();
+            String string = piece instanceof Rope ? ((Rope) piece).flat : (String) piece;
+            if (string == null) {
+                pending.push(((Rope) piece).left);
+                pending.push(((Rope) piece).right);
+                continue;
+            }
+
+            end -= string.length();
+            string.getChars(0, string.length(), chars, end);
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Rope && length == ((Rope) other).length &&
+                toString().equals(other.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
@@ -1,63 +1,63 @@
 package com.superestos;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import static com.superestos.TokenType.*;
 
-public class Scanner {
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+/**
+ * Turns source text into tokens, one at a time through nextToken, or all at
+ * once through scanTokens. The source can be any CharSequence, such as a
+ * String or a MappedSource over a memory-mapped file.
+ *
+ * Tokens don't point back into the source, and only identifiers are copied
+ * out of it, once per distinct name, into Symbols. See Token.
+ */
+public class Scanner implements TokenSource {
+    private final CharSequence source;
+    private final Reporter reporter;
+
+    // The token the last call to scanToken produced, if any.
+    private Token token;
 
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and",    AND);
-        keywords.put("class",  CLASS);
-        keywords.put("else",   ELSE);
-        keywords.put("false",  FALSE);
-        keywords.put("for",    FOR);
-        keywords.put("fun",    FUN);
-        keywords.put("if",     IF);
-        keywords.put("nil",    NIL);
-        keywords.put("or",     OR);
-        keywords.put("print",  PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super",  SUPER);
-        keywords.put("this",   THIS);
-        keywords.put("true",   TRUE);
-        keywords.put("var",    VAR);
-        keywords.put("while",  WHILE);
-    }
-
-    Scanner(String source) {
+    Scanner(CharSequence source, Reporter reporter) {
         this.source = source;
+        this.reporter = reporter;
     }
 
     List<Token> scanTokens() {
+        List<Token> tokens = new ArrayList<>();
+        Token token;
+        do {
+            token = nextToken();
+            tokens.add(token);
+        } while (token.type != EOF);
+
+        return tokens;
+    }
+
+    @Override
+    public Token nextToken() {
         while (!isAtEnd()) {
             start = current;
             scanToken();
+
+            if (token != null) {
+                Token next = token;
+                token = null;
+                return next;
+            }
         }
 
-        tokens.add(new Token(EOF, "", null, line));
-        return tokens;
+        return new Token(EOF, line);
     }
 
     private void addToken(TokenType type) {
-        addToken(type, null);
-    }
-
-    private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        token = new Token(type, line);
     }
 
     private boolean isAtEnd() {
@@ -98,15 +98,15 @@ public class Scanner {
         }
 
         if (isAtEnd()) {
-            Main.error(line, "Unterminated string.");
+            reporter.error(line, "Unterminated string.");
             return;
         }
 
         // Consume the closing '"'.
         advance();
 
-        String value = source.substring(start + 1, current - 1);
-        addToken(STRING, value);
+        String value = source.subSequence(start + 1, current - 1).toString();
+        token = new Token(value, line);
     }
 
     private boolean isDigit(char c) {
@@ -126,10 +126,62 @@ public class Scanner {
     private void identifier() {
         while (isAlphaNumeric(peek())) advance();
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) type = IDENTIFIER;
-        addToken(type);
+        TokenType type = keywordType();
+        if (type == IDENTIFIER) {
+            token = new Token(IDENTIFIER, Symbols.intern(source, start, current), null, line);
+        } else {
+            addToken(type);
+        }
+    }
+
+    // Matches the keywords with a switch on their first letters, like a trie,
+    // without copying the lexeme out of the source.
+    private TokenType keywordType() {
+        switch (source.charAt(start)) {
+            case 'a': return checkKeyword(1, "nd", AND);
+            case 'c': return checkKeyword(1, "lass", CLASS);
+            case 'e': return checkKeyword(1, "lse", ELSE);
+            case 'f':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'a': return checkKeyword(2, "lse", FALSE);
+                        case 'o': return checkKeyword(2, "r", FOR);
+                        case 'u': return checkKeyword(2, "n", FUN);
+                    }
+                }
+                break;
+            case 'i': return checkKeyword(1, "f", IF);
+            case 'n': return checkKeyword(1, "il", NIL);
+            case 'o': return checkKeyword(1, "r", OR);
+            case 'p': return checkKeyword(1, "rint", PRINT);
+            case 'r': return checkKeyword(1, "eturn", RETURN);
+            case 's': return checkKeyword(1, "uper", SUPER);
+            case 't':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'h': return checkKeyword(2, "is", THIS);
+                        case 'r': return checkKeyword(2, "ue", TRUE);
+                    }
+                }
+                break;
+            case 'v': return checkKeyword(1, "ar", VAR);
+            case 'w': return checkKeyword(1, "hile", WHILE);
+        }
+
+        return IDENTIFIER;
+    }
+
+    private TokenType checkKeyword(int offset, String rest, TokenType type) {
+        if (current - start != offset + rest.length()) {
+            return IDENTIFIER;
+        }
+
+        for (int i = 0; i < rest.length(); i++) {
+            if (source.charAt(start + offset + i) != rest.charAt(i)) {
+                return IDENTIFIER;
+            }
+        }
+        return type;
     }
 
     private void number() {
@@ -143,7 +195,19 @@ public class Scanner {
             } while (isDigit(peek()));
         }
 
-        addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+        String lexeme = source.subSequence(start, current).toString();
+        token = new Token(NUMBER, lexeme, Double.parseDouble(lexeme), line);
+    }
+
+    // So a character that takes more than one char of the source, a
+    // surrogate pair or a multi-byte UTF-8 sequence in a MappedSource, is
+    // only reported once.
+    private void skipRestOfCharacter(char c) {
+        if (Character.isHighSurrogate(c) && Character.isLowSurrogate(peek())) {
+            current++;
+        } else if (source instanceof MappedSource) {
+            current = ((MappedSource) source).endOfCharacter(start);
+        }
     }
 
     private void scanToken() {
@@ -154,6 +218,8 @@ public class Scanner {
             case ')': addToken(RIGHT_PAREN); break;
             case '{': addToken(LEFT_BRACE); break;
             case '}': addToken(RIGHT_BRACE); break;
+            case '[': addToken(LEFT_BRACKET); break;
+            case ']': addToken(RIGHT_BRACKET); break;
             case ',': addToken(COMMA); break;
             case '.': addToken(DOT); break;
             case '-': addToken(MINUS); break;
@@ -200,7 +266,8 @@ public class Scanner {
                 } else if (isAlpha(c)) {
                     identifier();
                 } else {
-                    Main.error(line, "Unexpected character.");
+                    reporter.error(line, "Unexpected character.");
+                    skipRestOfCharacter(c);
                 }
                 break;
         }
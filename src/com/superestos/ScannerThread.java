@@ -0,0 +1,69 @@
+package com.superestos;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Runs a Scanner on its own thread, ahead of the Parser. Tokens are handed
+ * over in batches through a bounded queue, so the scanner never gets more
+ * than a few batches ahead and memory stays bounded.
+ *
+ * Scan errors are reported from the scanner thread, so they may come out
+ * interleaved with parse errors in a different order than without it.
+ */
+class ScannerThread implements TokenSource {
+    private static final int BATCH_SIZE = 512;
+    private static final int QUEUE_SIZE = 8;
+
+    private final BlockingQueue<Token[]> batches = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private volatile Throwable failure;
+
+    private Token[] batch = new Token[0];
+    private int index = 0;
+
+    ScannerThread(Scanner scanner) {
+        Thread thread = new Thread(() -> produce(scanner), "lox-scanner");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void produce(Scanner scanner) {
+        try {
+            Token[] batch = new Token[BATCH_SIZE];
+            int count = 0;
+            Token token;
+            do {
+                token = scanner.nextToken();
+                batch[count++] = token;
+                if (count == BATCH_SIZE || token.type == TokenType.EOF) {
+                    batches.put(count == BATCH_SIZE ? batch : Arrays.copyOf(batch, count));
+                    batch = new Token[BATCH_SIZE];
+                    count = 0;
+                }
+            } while (token.type != TokenType.EOF);
+        } catch (Throwable error) {
+            failure = error;
+            batches.offer(new Token[0]);
+        }
+    }
+
+    @Override
+    public Token nextToken() {
+        if (index == batch.length) {
+            try {
+                batch = batches.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            index = 0;
+
+            if (batch.length == 0) {
+                throw new IllegalStateException("Scanner failed.", failure);
+            }
+        }
+
+        return batch[index++];
+    }
+}
@@ -0,0 +1,56 @@
+package com.superestos;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The layout of an instance's fields: which name lives in which slot of
+ * Instance.fields. Every class has an empty root shape, and adding a field
+ * to an instance moves it to the shape that is its current one plus that
+ * field. Those transitions are shared, so instances of one class that get
+ * the same fields in the same order all end up with the same Shape, and an
+ * inline cache can tell where a field is from the shape alone (see
+ * PropertyCache).
+ *
+ * A shape also stands for its class, since shapes never cross classes.
+ */
+final class Shape {
+    final LoxClass klass;
+    // Number of fields, the last of which this shape added.
+    final int size;
+
+    private final Shape parent;
+    private final String name;
+
+    // Guarded by this; instances on several threads can add fields at once.
+    private Map<String, Shape> transitions;
+
+    Shape(LoxClass klass) {
+        this(klass, null, null, 0);
+    }
+
+    private Shape(LoxClass klass, Shape parent, String name, int size) {
+        this.klass = klass;
+        this.parent = parent;
+        this.name = name;
+        this.size = size;
+    }
+
+    // The slot of the field, or -1. Only runs when an inline cache misses.
+    int slot(String name) {
+        for (Shape shape = this; shape.parent != null; shape = shape.parent) {
+            if (shape.name.equals(name)) {
+                return shape.size - 1;
+            }
+        }
+        return -1;
+    }
+
+    // This shape plus the field, which it doesn't have yet.
+    synchronized Shape with(String name) {
+        if (transitions == null) {
+            transitions = new HashMap<>();
+        }
+        return transitions.computeIfAbsent(name, added -> new Shape(klass, this, added, size + 1));
+    }
+}
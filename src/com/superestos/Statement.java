@@ -27,6 +27,9 @@ abstract class Statement {
 
         final Token name;
         final Expression initializer;
+
+        // Filled in by the Resolver. A slot of -1 means the variable is global.
+        int slot = -1;
     }
 
     static class Block extends Statement {
@@ -35,6 +38,9 @@ abstract class Statement {
         }
 
         final List<Statement> statements;
+
+        // Number of locals declared directly in this block, filled in by the Resolver.
+        int frameSize;
     }
 
     static class If extends Statement {
@@ -57,6 +63,16 @@ abstract class Statement {
 
         final Expression condition;
         final Statement body;
+
+        // Filled in by the Resolver: the function the loop is in, or null
+        // at top level, and the sizes of the local frames the loop can see,
+        // outermost first. Null sizes mean the loop has a return in it and
+        // can't be compiled on its own, so it makes its function hot instead.
+        Statement.Function function;
+        int[] enclosingFrames;
+
+        // Back edges taken by the interpreter, and the loop compiled on its own.
+        final Jit.Tier tier = new Jit.Tier();
     }
 
     static class Function extends Statement {
@@ -69,6 +85,38 @@ abstract class Statement {
         final Token name;
         final List<Token> parameters;
         final List<Statement> body;
+
+        // Filled in by the Resolver. A slot of -1 means the function is global.
+        int slot = -1;
+        // Number of parameters and locals declared directly in the body.
+        int frameSize;
+
+        // Tiering state, shared by every Function created from this declaration.
+        final Jit.Tier tier = new Jit.Tier();
+
+        // Set by Purity when calls to the function can be memoized, and when
+        // they can run in parallel.
+        boolean pure;
+        boolean isolated;
+
+        // Filled in by the Resolver for a method: 1 for the slot of 'this'
+        // after the parameters, or 2 with the superclass after that.
+        int receiverSlots;
+    }
+
+    static class Class extends Statement {
+        Class(Token name, Expression.Variable superclass, List<Statement.Function> methods) {
+            this.name = name;
+            this.superclass = superclass;
+            this.methods = methods;
+        }
+
+        final Token name;
+        final Expression.Variable superclass;
+        final List<Statement.Function> methods;
+
+        // Filled in by the Resolver. A slot of -1 means the class is global.
+        int slot = -1;
     }
 
     static class Return extends Statement {
@@ -79,5 +127,9 @@ abstract class Statement {
 
         final Token keyword;
         final Expression value;
+
+        // Set by the Resolver when the value is a call made from inside a
+        // function, which the engines can then run in place of the caller.
+        boolean tailCall;
     }
 }
@@ -0,0 +1,156 @@
+package com.superestos;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Process-wide table of interned identifiers. Every identifier token gets its
+ * name from here, so two tokens naming the same variable share one String
+ * and names can be compared, and used as map keys, by identity.
+ *
+ * Looking a name up straight from a range of the source doesn't allocate;
+ * a String is only created the first time a name is seen. Lookups take no
+ * lock, so threads scanning different scripts don't wait for each other;
+ * only adding a name does.
+ *
+ * The table holds its names weakly. Once no token, tree or cache refers to a
+ * name any more it can be collected, and the next script to use it gets a
+ * new String, which is fine since nothing is left to compare it with. Its
+ * slot is reused, and the table is rebuilt without such slots when it
+ * fills up, so it only grows with the names that are in use.
+ */
+final class Symbols {
+    private static final int MINIMUM_SIZE = 1024;
+
+    private static final class Symbol extends WeakReference<String> {
+        final int hash;
+
+        Symbol(String name, int hash) {
+            super(name);
+            this.hash = hash;
+        }
+    }
+
+    private static volatile AtomicReferenceArray<Symbol> table = new AtomicReferenceArray<>(MINIMUM_SIZE);
+    // Slots in use, including ones whose name has been collected. Guarded by lock.
+    private static int count = 0;
+    private static final Object lock = new Object();
+
+    private Symbols() {}
+
+    static String intern(String name) {
+        return intern(name, 0, name.length());
+    }
+
+    static String intern(CharSequence text, int start, int end) {
+        // Same hash as String.hashCode, so it can be checked against the
+        // hash each String caches.
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+
+        String symbol = find(table, text, start, end, hash);
+        if (symbol != null) {
+            return symbol;
+        }
+
+        synchronized (lock) {
+            // Another thread may have added it, or rebuilt the table, since.
+            AtomicReferenceArray<Symbol> current = table;
+            symbol = find(current, text, start, end, hash);
+            if (symbol != null) {
+                return symbol;
+            }
+
+            symbol = text.subSequence(start, end).toString();
+            int mask = current.length() - 1;
+            int index = spread(hash) & mask;
+            while (true) {
+                Symbol entry = current.get(index);
+                if (entry == null) {
+                    count++;
+                    break;
+                }
+                if (entry.get() == null) {
+                    break;
+                }
+                index = (index + 1) & mask;
+            }
+            current.set(index, new Symbol(symbol, hash));
+
+            if (count * 2 > current.length()) {
+                table = rebuild(current);
+            }
+            return symbol;
+        }
+    }
+
+    private static String find(AtomicReferenceArray<Symbol> table, CharSequence text,
+                               int start, int end, int hash) {
+        int mask = table.length() - 1;
+        for (int index = spread(hash) & mask; ; index = (index + 1) & mask) {
+            Symbol entry = table.get(index);
+            if (entry == null) {
+                return null;
+            }
+
+            if (entry.hash == hash) {
+                String symbol = entry.get();
+                if (symbol != null && matches(symbol, text, start, end)) {
+                    return symbol;
+                }
+            }
+        }
+    }
+
+    private static boolean matches(String symbol, CharSequence text, int start, int end) {
+        if (symbol.length() != end - start) {
+            return false;
+        }
+
+        for (int i = 0; i < symbol.length(); i++) {
+            if (symbol.charAt(i) != text.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // A table with room for the names still in use, at most a quarter full,
+    // so it shrinks again after a burst of names that are gone.
+    private static AtomicReferenceArray<Symbol> rebuild(AtomicReferenceArray<Symbol> old) {
+        int live = 0;
+        for (int i = 0; i < old.length(); i++) {
+            Symbol entry = old.get(i);
+            if (entry != null && entry.get() != null) {
+                live++;
+            }
+        }
+
+        int size = MINIMUM_SIZE;
+        while (size < live * 4) {
+            size *= 2;
+        }
+
+        AtomicReferenceArray<Symbol> table = new AtomicReferenceArray<>(size);
+        int mask = size - 1;
+        count = 0;
+        for (int i = 0; i < old.length(); i++) {
+            Symbol entry = old.get(i);
+            if (entry == null || entry.get() == null) continue;
+
+            int index = spread(entry.hash) & mask;
+            while (table.get(index) != null) {
+                index = (index + 1) & mask;
+            }
+            table.set(index, entry);
+            count++;
+        }
+        return table;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,268 @@
+package com.superestos;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Lox map from any value to any value, indexed like an array with
+ * 'm[key]' and 'm[key] = value'. Reading a missing key gives nil. Keys
+ * compare the way '==' does. Maps are made and searched through natives:
+ *
+ *   map()           a new, empty map,
+ *   has(m, key)     whether m has an entry for key,
+ *   remove(m, key)  removes the entry for key and returns its value, or nil,
+ *   keys(m)         an array of the keys of m, in no particular order.
+ *
+ * length(m) is its number of entries.
+ *
+ * The entries sit in an open-addressing table probed linearly: three
+ * parallel arrays of keys, values and key hashes, so an entry costs no
+ * object of its own and a lookup allocates nothing. The stored hash is
+ * compared before calling equals, and keys are compared by identity first,
+ * so looking up a string literal that was stored before never gets as far
+ * as equals. Removed entries leave a tombstone until the table is rebuilt,
+ * which happens when keys and tombstones fill three quarters of it or the
+ * keys shrink below an eighth; the new table is sized for the keys alone.
+ *
+ * Maps compare by identity, like arrays, and aren't synchronized either.
+ */
+final class Table {
+    static final List<Native> NATIVES = List.of(
+            new Native("map", 0, Table::map),
+            new Native("has", 2, Table::has),
+            new Native("remove", 2, Table::remove),
+            new Native("keys", 1, Table::keys));
+
+    // Stands in for nil as a key; empty slots are null.
+    private static final Object NIL = new Object();
+    private static final Object TOMBSTONE = new Object();
+
+    private static final int MIN_CAPACITY = 8;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    // A power of two long, and never full, so every probe ends.
+    private Object[] keys = new Object[MIN_CAPACITY];
+    private Object[] values = new Object[MIN_CAPACITY];
+    private int[] hashes = new int[MIN_CAPACITY];
+    // Turns a hash into a slot: 32 minus log2 of the capacity.
+    private int shift = 32 - 3;
+
+    private int size;
+    private int tombstones;
+
+    int size() {
+        return size;
+    }
+
+    Object get(Object key) {
+        key = key(key);
+        int slot = find(key, key.hashCode());
+        return slot < 0 ? null : values[slot];
+    }
+
+    // The same as get with a boxed number, for the VM's unboxed keys.
+    Object get(double key) {
+        long bits = Double.doubleToLongBits(key);
+        int hash = (int) (bits ^ (bits >>> 32));
+        int mask = keys.length - 1;
+        for (int slot = slot(hash); ; slot = (slot + 1) & mask) {
+            Object stored = keys[slot];
+            if (stored == null) {
+                return null;
+            }
+            if (hashes[slot] == hash && stored instanceof Double &&
+                    Double.doubleToLongBits((Double) stored) == bits) {
+                return values[slot];
+            }
+        }
+    }
+
+    void put(Object key, Object value) {
+        key = key(key);
+        int hash = key.hashCode();
+        int mask = keys.length - 1;
+        int free = -1;
+        int slot = slot(hash);
+        for (; ; slot = (slot + 1) & mask) {
+            Object stored = keys[slot];
+            if (stored == null) {
+                break;
+            }
+            if (stored == TOMBSTONE) {
+                if (free < 0) {
+                    free = slot;
+                }
+            } else if (stored == key || (hashes[slot] == hash && stored.equals(key))) {
+                values[slot] = value;
+                return;
+            }
+        }
+
+        if (free >= 0) {
+            slot = free;
+            tombstones--;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        hashes[slot] = hash;
+        size++;
+        if ((size + tombstones) * 4L > keys.length * 3L) {
+            rebuild();
+        }
+    }
+
+    boolean has(Object key) {
+        key = key(key);
+        return find(key, key.hashCode()) >= 0;
+    }
+
+    Object remove(Object key) {
+        key = key(key);
+        int slot = find(key, key.hashCode());
+        if (slot < 0) {
+            return null;
+        }
+
+        Object value = values[slot];
+        keys[slot] = TOMBSTONE;
+        values[slot] = null;
+        size--;
+        tombstones++;
+        if (size < keys.length / 8 && keys.length > MIN_CAPACITY) {
+            rebuild();
+        }
+        return value;
+    }
+
+    Array keys() {
+        Array array = new Array(0, null);
+        for (Object key: keys) {
+            if (key != null && key != TOMBSTONE) {
+                array.add(key == NIL ? null : key);
+            }
+        }
+        return array;
+    }
+
+    // Ropes are flattened so they find the Strings they equal.
+    private static Object key(Object key) {
+        if (key == null) {
+            return NIL;
+        }
+        return key instanceof Rope ? key.toString() : key;
+    }
+
+    // Fibonacci hashing: the top bits of the hash times 2^32 / phi, which
+    // spreads out numbers, whose low hash bits are mostly zero.
+    private int slot(int hash) {
+        return (hash * 0x9e3779b9) >>> shift;
+    }
+
+    // The slot holding key, or -1.
+    private int find(Object key, int hash) {
+        int mask = keys.length - 1;
+        for (int slot = slot(hash); ; slot = (slot + 1) & mask) {
+            Object stored = keys[slot];
+            if (stored == null) {
+                return -1;
+            }
+            if (stored == key || (hashes[slot] == hash && stored != TOMBSTONE && stored.equals(key))) {
+                return slot;
+            }
+        }
+    }
+
+    // Moves the entries into a table at most three eighths full, dropping
+    // the tombstones.
+    private void rebuild() {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3L < size * 8L) {
+            if (capacity == MAX_CAPACITY) {
+                throw new OutOfMemoryError("Map too large.");
+            }
+            capacity <<= 1;
+        }
+
+        Object[] oldKeys = keys;
+        Object[] oldValues = values;
+        int[] oldHashes = hashes;
+        keys = new Object[capacity];
+        values = new Object[capacity];
+        hashes = new int[capacity];
+        shift = 32 - Integer.numberOfTrailingZeros(capacity);
+        tombstones = 0;
+
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            Object key = oldKeys[i];
+            if (key == null || key == TOMBSTONE) {
+                continue;
+            }
+
+            int slot = slot(oldHashes[i]);
+            while (keys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = oldValues[i];
+            hashes[slot] = oldHashes[i];
+        }
+    }
+
+    private static Object map(Interpreter interpreter, List<Object> arguments) {
+        return new Table();
+    }
+
+    private static Object has(Interpreter interpreter, List<Object> arguments) {
+        return table(arguments.get(0), "First argument must be a map.").has(arguments.get(1));
+    }
+
+    private static Object remove(Interpreter interpreter, List<Object> arguments) {
+        return table(arguments.get(0), "First argument must be a map.").remove(arguments.get(1));
+    }
+
+    private static Object keys(Interpreter interpreter, List<Object> arguments) {
+        return table(arguments.get(0), "Argument must be a map.").keys();
+    }
+
+    private static Table table(Object value, String message) {
+        if (!(value instanceof Table)) {
+            throw new Native.Error(message);
+        }
+        return (Table) value;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        Array.append(builder, this, new IdentityHashMap<>());
+        return builder.toString();
+    }
+
+    void appendEntries(StringBuilder builder, Map<Object, Boolean> open) {
+        if (open.put(this, true) != null) {
+            builder.append("{...}");
+            return;
+        }
+
+        builder.append('{');
+        boolean first = true;
+        for (int i = 0; i < keys.length; i++) {
+            Object key = keys[i];
+            if (key == null || key == TOMBSTONE) {
+                continue;
+            }
+
+            if (!first) {
+                builder.append(", ");
+            }
+            first = false;
+            Array.append(builder, key == NIL ? null : key, open);
+            builder.append(": ");
+            Array.append(builder, values[i], open);
+        }
+        builder.append('}');
+        open.remove(this);
+    }
+}
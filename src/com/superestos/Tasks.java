@@ -0,0 +1,162 @@
+package com.superestos;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+
+/**
+ * Natives for running Lox functions concurrently:
+ *
+ *   spawn(fn)              runs fn, which takes no arguments, as a task
+ *                          and returns the task,
+ *   await(task)            waits for the task and returns what fn returned,
+ *                          or fails with the runtime error it failed with,
+ *   channel(capacity)      makes a channel holding up to capacity values;
+ *                          with 0 every send waits for a receive,
+ *   send(channel, value)   waits for room in the channel, then adds value,
+ *   receive(channel)       waits for a value and removes it.
+ *
+ * Each task runs in an interpreter of its own that shares the globals and
+ * the output of the one that spawned it. On a JVM with virtual threads
+ * every task gets one; otherwise tasks run on a pool of daemon threads.
+ * A program ends when its main script does, whether or not its tasks have
+ * finished.
+ */
+final class Tasks {
+    static final List<Native> NATIVES = List.of(
+            new Native("spawn", 1, Tasks::spawn),
+            new Native("await", 1, Tasks::await),
+            new Native("channel", 1, Tasks::channel),
+            new Native("send", 2, Tasks::send),
+            new Native("receive", 1, Tasks::receive));
+
+    private static final ExecutorService executor = executor();
+
+    // Wraps values in a channel, which can't hold nulls.
+    private static final Object NIL = new Object();
+
+    private Tasks() {}
+
+    static final class Task {
+        private final CompletableFuture<Object> result = new CompletableFuture<>();
+
+        @Override
+        public String toString() {
+            return "<task>";
+        }
+    }
+
+    static final class Channel {
+        private final BlockingQueue<Object> queue;
+
+        Channel(int capacity) {
+            queue = capacity == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(capacity);
+        }
+
+        @Override
+        public String toString() {
+            return "<channel>";
+        }
+    }
+
+    private static Object spawn(Interpreter interpreter, List<Object> arguments) {
+        Object function = arguments.get(0);
+        if (!(function instanceof Callable) || ((Callable) function).arity() != 0) {
+            throw new Native.Error("Can only spawn functions that take no arguments.");
+        }
+
+        Task task = new Task();
+        // The closures engine calls natives without an interpreter, and its
+        // functions don't need one.
+        Interpreter taskInterpreter = interpreter != null ? interpreter.forTask() : null;
+        executor.execute(() -> {
+            try {
+                task.result.complete(((Callable) function).call(taskInterpreter, List.of()));
+            } catch (Throwable error) {
+                task.result.completeExceptionally(error);
+            }
+        });
+        return task;
+    }
+
+    private static Object await(Interpreter interpreter, List<Object> arguments) {
+        if (!(arguments.get(0) instanceof Task)) {
+            throw new Native.Error("Can only await tasks.");
+        }
+
+        try {
+            return ((Task) arguments.get(0)).result.get();
+        } catch (ExecutionException failure) {
+            Throwable error = failure.getCause();
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            }
+            if (error instanceof java.lang.Error) {
+                throw (java.lang.Error) error;
+            }
+            throw new IllegalStateException(error);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Native.Error("Interrupted while waiting for a task.");
+        }
+    }
+
+    private static Object channel(Interpreter interpreter, List<Object> arguments) {
+        Object capacity = arguments.get(0);
+        if (!(capacity instanceof Double) || (double) capacity < 0 ||
+                (double) capacity != Math.floor((double) capacity) || (double) capacity > Integer.MAX_VALUE) {
+            throw new Native.Error("Channel capacity must be a non-negative integer.");
+        }
+
+        return new Channel((int) (double) capacity);
+    }
+
+    private static Object send(Interpreter interpreter, List<Object> arguments) {
+        Object value = arguments.get(1);
+        try {
+            channel(arguments.get(0)).queue.put(value == null ? NIL : value);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Native.Error("Interrupted while sending.");
+        }
+        return null;
+    }
+
+    private static Object receive(Interpreter interpreter, List<Object> arguments) {
+        try {
+            Object value = channel(arguments.get(0)).queue.take();
+            return value == NIL ? null : value;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Native.Error("Interrupted while receiving.");
+        }
+    }
+
+    private static Channel channel(Object channel) {
+        if (!(channel instanceof Channel)) {
+            throw new Native.Error("Can only send to and receive from channels.");
+        }
+        return (Channel) channel;
+    }
+
+    // One virtual thread per task where the JVM has them (21 and later),
+    // looked up reflectively since the build targets 17.
+    private static ExecutorService executor() {
+        try {
+            Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) virtual.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "lox-task");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -1,19 +1,49 @@
 package com.superestos;
 
+/**
+ * A token doesn't hold on to the source it was scanned from, so a tree or a
+ * cached Program that keeps tokens doesn't keep the script's text, or its
+ * mapped file, alive. Nothing is copied out of the source for it either:
+ * keywords and operators share the spelling of their TokenType, identifiers
+ * are interned in Symbols as they are scanned, and a string literal's
+ * lexeme is only put back together from its value if something asks for
+ * it, which mostly happens when reporting an error.
+ */
 public class Token {
     final TokenType type;
-    final String lexeme;
     final Object literal;
     final int line;
 
+    private String lexeme;
+
     Token(TokenType type, String lexeme, Object literal, int line) {
         this.type = type;
-        this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.lexeme = type == TokenType.IDENTIFIER ? Symbols.intern(lexeme) : lexeme;
+    }
+
+    // A keyword or operator.
+    Token(TokenType type, int line) {
+        this(type, type.spelling, null, line);
+    }
+
+    // A string literal. Lox strings have no escapes, so the value is
+    // exactly the text between the quotes.
+    Token(String value, int line) {
+        this.type = TokenType.STRING;
+        this.literal = value;
+        this.line = line;
+    }
+
+    String lexeme() {
+        if (lexeme == null) {
+            lexeme = "\"" + literal + "\"";
+        }
+        return lexeme;
     }
 
     public String toString() {
-        return type + " " + lexeme + " " + literal;
+        return type + " " + lexeme() + " " + literal;
     }
 }
@@ -0,0 +1,6 @@
+package com.superestos;
+
+interface TokenSource {
+    // Returns the next token, and an EOF token once the source is used up.
+    Token nextToken();
+}
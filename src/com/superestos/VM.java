@@ -0,0 +1,566 @@
+package com.superestos;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.superestos.OpCode.*;
+
+/**
+ * Stack-based virtual machine that runs the bytecode produced by Compiler.
+ * Locals and temporaries share one value stack. A call frame starts at the
+ * callee's first argument, and the callee itself sits just below it so the
+ * return value can take its place.
+ *
+ * Every stack slot has a reference half and a primitive half. A number is
+ * kept unboxed: its reference half holds the NUMBER tag and the value lives
+ * in the primitive half. Numbers on the stack are never boxed Doubles, so
+ * arithmetic only has to compare tags, and a Double is only allocated when a
+ * number leaves the stack for a global or for printing. Numeric arrays are
+ * read and written straight from and to the primitive halves, too, and
+ * maps are searched for a number key without boxing it.
+ *
+ * A method call 'object.name(...)' is a single INVOKE, which finds the
+ * method through the site's PropertyCache and calls it with no BoundMethod
+ * in between. The instance takes the callee's slot and is pushed again
+ * after the arguments, with the superclass, as the method's 'this' and
+ * 'super'. Calling a class does the same with a new instance and 'init'.
+ */
+public class VM {
+    private static final Object NUMBER = new Object();
+
+    private final GlobalSlots globalSlots;
+    private final Environment globals;
+    private final Output out = Output.standard();
+
+
+    private Object[] stack = new Object[256];
+    private double[] numbers = new double[256];
+
+    private CompiledFunction[] frameFunctions = new CompiledFunction[64];
+    private int[] frameIps = new int[64];
+    private int[] frameBases = new int[64];
+
+    VM(GlobalSlots globalSlots) {
+        this.globalSlots = globalSlots;
+        globals = new Environment(globalSlots);
+        // The other natives call back into Lox functions, which the VM's
+        // functions aren't.
+        Native.define(globals, Library.NATIVES);
+        Native.define(globals, Array.NATIVES);
+        Native.define(globals, Table.NATIVES);
+    }
+
+    void interpret(List<Statement> statements, Reporter reporter) {
+        CompiledFunction script = Compiler.compileScript(statements, globalSlots, reporter);
+        if (script == null) {
+            return;
+        }
+
+        try {
+            run(script);
+        } catch (Interpreter.RuntimeError error) {
+            out.flush();
+            reporter.runtimeError(error);
+        } finally {
+            out.flush();
+            Arrays.fill(stack, null);
+        }
+    }
+
+    private void run(CompiledFunction script) {
+        int frameCount = 0;
+
+        CompiledFunction function = script;
+        byte[] code = function.chunk.code;
+        Object[] constants = function.chunk.constants;
+        int ip = 0;
+        int base = 0;
+        int sp = script.locals;
+        ensureStack(sp + script.maxStack);
+
+        for (;;) {
+            byte op = code[ip++];
+            switch (op) {
+                case CONSTANT:
+                    push(sp++, constants[readShort(code, ip)]);
+                    ip += 2;
+                    break;
+                case CONSTANT_WIDE:
+                    push(sp++, constants[readInt(code, ip)]);
+                    ip += 4;
+                    break;
+                case NIL:
+                    stack[sp++] = null;
+                    break;
+                case TRUE:
+                    stack[sp++] = true;
+                    break;
+                case FALSE:
+                    stack[sp++] = false;
+                    break;
+                case POP:
+                    sp--;
+                    break;
+
+                case GET_LOCAL: {
+                    int slot = base + readShort(code, ip);
+                    stack[sp] = stack[slot];
+                    numbers[sp] = numbers[slot];
+                    sp++;
+                    ip += 2;
+                    break;
+                }
+                case SET_LOCAL: {
+                    int slot = base + readShort(code, ip);
+                    stack[slot] = stack[sp - 1];
+                    numbers[slot] = numbers[sp - 1];
+                    ip += 2;
+                    break;
+                }
+                case GET_GLOBAL:
+                    push(sp++, globals.get(readShort(code, ip), function.chunk.tokens[ip - 1]));
+                    ip += 2;
+                    break;
+                case SET_GLOBAL:
+                    globals.assign(readShort(code, ip), function.chunk.tokens[ip - 1], value(sp - 1));
+                    ip += 2;
+                    break;
+                case STORE_LOCAL: {
+                    int slot = base + readShort(code, ip);
+                    sp--;
+                    stack[slot] = stack[sp];
+                    numbers[slot] = numbers[sp];
+                    ip += 2;
+                    break;
+                }
+                case STORE_GLOBAL:
+                    globals.assign(readShort(code, ip), function.chunk.tokens[ip - 1], value(--sp));
+                    ip += 2;
+                    break;
+                case DEFINE_GLOBAL:
+                    globals.define(readShort(code, ip), function.chunk.tokens[ip - 1], value(--sp));
+                    ip += 2;
+                    break;
+
+                case EQUAL:
+                    sp--;
+                    stack[sp - 1] = isEqual(sp - 1, sp);
+                    break;
+                case NOT_EQUAL:
+                    sp--;
+                    stack[sp - 1] = !isEqual(sp - 1, sp);
+                    break;
+                case GREATER:
+                    sp--;
+                    checkNumberOperands(function, ip - 1, sp - 1, sp);
+                    stack[sp - 1] = numbers[sp - 1] > numbers[sp];
+                    break;
+                case GREATER_EQUAL:
+                    sp--;
+                    checkNumberOperands(function, ip - 1, sp - 1, sp);
+                    stack[sp - 1] = numbers[sp - 1] >= numbers[sp];
+                    break;
+                case LESS:
+                    sp--;
+                    checkNumberOperands(function, ip - 1, sp - 1, sp);
+                    stack[sp - 1] = numbers[sp - 1] < numbers[sp];
+                    break;
+                case LESS_EQUAL:
+                    sp--;
+                    checkNumberOperands(function, ip - 1, sp - 1, sp);
+                    stack[sp - 1] = numbers[sp - 1] <= numbers[sp];
+                    break;
+                case ADD: {
+                    sp--;
+                    Object left = stack[sp - 1];
+                    Object right = stack[sp];
+                    if (left == NUMBER && right == NUMBER) {
+                        numbers[sp - 1] += numbers[sp];
+                    } else if (Rope.isString(left) && Rope.isString(right)) {
+                        stack[sp - 1] = Rope.concat(left, right);
+                    } else {
+                        throw new Interpreter.RuntimeError(function.chunk.tokens[ip - 1],
+                                "Operands must be two numbers or two strings.");
+                    }
+                    break;
+                }
+                case SUBTRACT:
+                    sp--;
+                    checkNumberOperands(function, ip - 1, sp - 1, sp);
+                    numbers[sp - 1] -= numbers[sp];
+                    break;
+                case MULTIPLY:
+                    sp--;
+                    checkNumberOperands(function, ip - 1, sp - 1, sp);
+                    numbers[sp - 1] *= numbers[sp];
+                    break;
+                case DIVIDE:
+                    sp--;
+                    checkNumberOperands(function, ip - 1, sp - 1, sp);
+                    numbers[sp - 1] /= numbers[sp];
+                    break;
+                case NOT:
+                    stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+                    break;
+                case NEGATE:
+                    if (stack[sp - 1] != NUMBER) {
+                        throw new Interpreter.RuntimeError(function.chunk.tokens[ip - 1],
+                                "Operand must be a number.");
+                    }
+                    numbers[sp - 1] = -numbers[sp - 1];
+                    break;
+
+                case GET_INDEX: {
+                    sp--;
+                    if (stack[sp - 1] instanceof Table) {
+                        Table table = (Table) stack[sp - 1];
+                        push(sp - 1, stack[sp] == NUMBER ? table.get(numbers[sp]) : table.get(stack[sp]));
+                        break;
+                    }
+                    Token bracket = function.chunk.tokens[ip - 1];
+                    Array array = Array.array(stack[sp - 1], bracket);
+                    int index = index(array, sp, bracket);
+                    if (array.isNumeric()) {
+                        number(sp - 1, array.number(index));
+                    } else {
+                        push(sp - 1, array.get(index));
+                    }
+                    break;
+                }
+                case SET_INDEX: {
+                    sp -= 2;
+                    if (stack[sp - 1] instanceof Table) {
+                        ((Table) stack[sp - 1]).put(value(sp), value(sp + 1));
+                        stack[sp - 1] = stack[sp + 1];
+                        numbers[sp - 1] = numbers[sp + 1];
+                        break;
+                    }
+                    Token bracket = function.chunk.tokens[ip - 1];
+                    Array array = Array.array(stack[sp - 1], bracket);
+                    int index = index(array, sp, bracket);
+                    if (stack[sp + 1] == NUMBER) {
+                        array.setNumber(index, numbers[sp + 1]);
+                        number(sp - 1, numbers[sp + 1]);
+                    } else {
+                        array.set(index, stack[sp + 1]);
+                        stack[sp - 1] = stack[sp + 1];
+                    }
+                    break;
+                }
+
+                case PRINT:
+                    sp--;
+                    if (stack[sp] == NUMBER) {
+                        out.print(numbers[sp]);
+                    } else {
+                        out.print(stack[sp]);
+                    }
+                    break;
+                case JUMP:
+                    ip += readInt(code, ip) + 4;
+                    break;
+                case JUMP_IF_FALSE:
+                    if (Interpreter.isTruthy(stack[sp - 1])) {
+                        ip += 4;
+                    } else {
+                        ip += readInt(code, ip) + 4;
+                    }
+                    break;
+                case LOOP:
+                    ip -= readInt(code, ip) - 4;
+                    break;
+                case POP_JUMP_IF_FALSE:
+                    if (Interpreter.isTruthy(stack[--sp])) {
+                        ip += 4;
+                    } else {
+                        ip += readInt(code, ip) + 4;
+                    }
+                    break;
+                case JUMP_IF_NOT_LESS:
+                    sp -= 2;
+                    checkNumberOperands(function, ip - 1, sp, sp + 1);
+                    ip += numbers[sp] < numbers[sp + 1] ? 4 : readInt(code, ip) + 4;
+                    break;
+                case JUMP_IF_NOT_LESS_EQUAL:
+                    sp -= 2;
+                    checkNumberOperands(function, ip - 1, sp, sp + 1);
+                    ip += numbers[sp] <= numbers[sp + 1] ? 4 : readInt(code, ip) + 4;
+                    break;
+                case JUMP_IF_NOT_GREATER:
+                    sp -= 2;
+                    checkNumberOperands(function, ip - 1, sp, sp + 1);
+                    ip += numbers[sp] > numbers[sp + 1] ? 4 : readInt(code, ip) + 4;
+                    break;
+                case JUMP_IF_NOT_GREATER_EQUAL:
+                    sp -= 2;
+                    checkNumberOperands(function, ip - 1, sp, sp + 1);
+                    ip += numbers[sp] >= numbers[sp + 1] ? 4 : readInt(code, ip) + 4;
+                    break;
+
+                case CLASS: {
+                    CompiledClass compiled = (CompiledClass) constants[readShort(code, ip)];
+                    LoxClass superclass = null;
+                    if (compiled.hasSuperclass) {
+                        superclass = LoxClass.superclass(value(sp - 1), function.chunk.tokens[ip - 1]);
+                    }
+                    stack[sp - 1] = compiled.instantiate(superclass);
+                    ip += 2;
+                    break;
+                }
+                case GET_PROPERTY: {
+                    PropertyCache cache = (PropertyCache) constants[readShort(code, ip)];
+                    push(sp - 1, cache.get(stack[sp - 1], function.chunk.tokens[ip - 1]));
+                    ip += 2;
+                    break;
+                }
+                case SET_PROPERTY: {
+                    PropertyCache cache = (PropertyCache) constants[readShort(code, ip)];
+                    sp--;
+                    cache.set(stack[sp - 1], function.chunk.tokens[ip - 1], value(sp));
+                    stack[sp - 1] = stack[sp];
+                    numbers[sp - 1] = numbers[sp];
+                    ip += 2;
+                    break;
+                }
+                case GET_SUPER: {
+                    PropertyCache cache = (PropertyCache) constants[readShort(code, ip)];
+                    sp--;
+                    LoxClass.Method method = cache.findSuper((LoxClass) stack[sp], function.chunk.tokens[ip - 1]);
+                    stack[sp - 1] = new LoxClass.BoundMethod((Instance) stack[sp - 1], method);
+                    ip += 2;
+                    break;
+                }
+
+                case INVOKE:
+                case CALL: {
+                    int argumentCount;
+                    Token paren;
+                    Object callee;
+                    // Set when calling a method, whose instance is put in
+                    // the callee's slot.
+                    LoxClass.Method method = null;
+                    if (op == INVOKE) {
+                        PropertyCache cache = (PropertyCache) constants[readShort(code, ip)];
+                        Token name = function.chunk.tokens[ip - 1];
+                        argumentCount = readShort(code, ip + 2);
+                        paren = function.chunk.tokens[ip + 2];
+                        ip += 4;
+
+                        int receiver = sp - argumentCount - 1;
+                        PropertyCache.Entry entry = cache.lookup(stack[receiver], name);
+                        method = entry.method;
+                        callee = method != null ? null : ((Instance) stack[receiver]).fields[entry.slot];
+                        if (callee != null) {
+                            push(receiver, callee);
+                        }
+                    } else {
+                        argumentCount = readShort(code, ip);
+                        paren = function.chunk.tokens[ip - 1];
+                        ip += 2;
+                        callee = stack[sp - argumentCount - 1];
+                    }
+
+                    if (callee instanceof Native) {
+                        sp = callNative((Native) callee, sp, argumentCount, paren);
+                        break;
+                    }
+                    if (callee instanceof LoxClass) {
+                        LoxClass klass = (LoxClass) callee;
+                        stack[sp - argumentCount - 1] = new Instance(klass);
+                        method = klass.initializer;
+                        if (method == null) {
+                            if (argumentCount != 0) {
+                                throw new Interpreter.RuntimeError(paren, "Expected 0 arguments but got " +
+                                        argumentCount + ".");
+                            }
+                            break;
+                        }
+                    } else if (callee instanceof LoxClass.BoundMethod) {
+                        LoxClass.BoundMethod bound = (LoxClass.BoundMethod) callee;
+                        stack[sp - argumentCount - 1] = bound.receiver;
+                        method = bound.method;
+                    } else if (method == null && !(callee instanceof CompiledFunction)) {
+                        throw new Interpreter.RuntimeError(paren,
+                                "Can only call functions and classes.");
+                    }
+
+                    CompiledFunction called;
+                    if (method != null) {
+                        called = ((CompiledClass.Method) method).function;
+                    } else {
+                        called = (CompiledFunction) callee;
+                    }
+                    if (argumentCount != called.arity) {
+                        throw new Interpreter.RuntimeError(paren, "Expected " + called.arity +
+                                " arguments but got " + argumentCount + ".");
+                    }
+
+                    if (method != null) {
+                        // 'this' and 'super' go in the slots after the
+                        // arguments; the Compiler left room for them.
+                        stack[sp] = stack[sp - argumentCount - 1];
+                        sp++;
+                        argumentCount++;
+                        LoxClass superclass = ((CompiledClass.Method) method).superclass;
+                        if (superclass != null) {
+                            stack[sp++] = superclass;
+                            argumentCount++;
+                        }
+                    }
+
+                    if (frameCount == frameIps.length) {
+                        growFrames();
+                    }
+                    frameFunctions[frameCount] = function;
+                    frameIps[frameCount] = ip;
+                    frameBases[frameCount] = base;
+                    frameCount++;
+
+                    function = called;
+                    code = function.chunk.code;
+                    constants = function.chunk.constants;
+                    ip = 0;
+                    base = sp - argumentCount;
+                    sp = base + function.locals;
+                    ensureStack(sp + function.maxStack);
+                    // Locals of an earlier call may still be lying around.
+                    Arrays.fill(stack, base + argumentCount, sp, null);
+                    break;
+                }
+                case RETURN: {
+                    sp--;
+                    if (frameCount == 0) {
+                        return;
+                    }
+
+                    stack[base - 1] = stack[sp];
+                    numbers[base - 1] = numbers[sp];
+                    sp = base;
+
+                    frameCount--;
+                    function = frameFunctions[frameCount];
+                    code = function.chunk.code;
+                    constants = function.chunk.constants;
+                    ip = frameIps[frameCount];
+                    base = frameBases[frameCount];
+                    frameFunctions[frameCount] = null;
+                    break;
+                }
+            }
+        }
+    }
+
+    // Leaves the result where the callee was and returns the new top of
+    // the stack. Numeric intrinsics take their arguments and leave their
+    // result unboxed.
+    private int callNative(Native callee, int sp, int argumentCount, Token paren) {
+        if (argumentCount != callee.arity()) {
+            throw new Interpreter.RuntimeError(paren, "Expected " + callee.arity() +
+                    " arguments but got " + argumentCount + ".");
+        }
+
+        int first = sp - argumentCount;
+        int result = first - 1;
+        Library.Intrinsic intrinsic = callee.intrinsic;
+        if (intrinsic != null && (argumentCount < 1 || stack[first] == NUMBER) &&
+                (argumentCount < 2 || stack[first + 1] == NUMBER)) {
+            double a = argumentCount > 0 ? numbers[first] : 0;
+            double b = argumentCount > 1 ? numbers[first + 1] : 0;
+            switch (intrinsic) {
+                case SQRT: return number(result, Math.sqrt(a));
+                case FLOOR: return number(result, Math.floor(a));
+                case ABS: return number(result, Math.abs(a));
+                case MIN: return number(result, Math.min(a, b));
+                case MAX: return number(result, Math.max(a, b));
+                case POW: return number(result, Math.pow(a, b));
+                default: break;
+            }
+        }
+
+        if (intrinsic != null) {
+            push(result, intrinsic.call(argumentCount > 0 ? value(first) : null,
+                    argumentCount > 1 ? value(first + 1) : null, paren));
+            return first;
+        }
+
+        List<Object> arguments = new ArrayList<>();
+        for (int i = first; i < sp; i++) {
+            arguments.add(value(i));
+        }
+        try {
+            push(result, callee.call(null, arguments));
+        } catch (Native.Error error) {
+            throw new Interpreter.RuntimeError(paren, error.getMessage());
+        }
+        return first;
+    }
+
+    private int index(Array array, int slot, Token bracket) {
+        if (stack[slot] == NUMBER) {
+            return array.index(numbers[slot], bracket);
+        }
+        return array.index(stack[slot], bracket);
+    }
+
+    private int number(int slot, double value) {
+        stack[slot] = NUMBER;
+        numbers[slot] = value;
+        return slot + 1;
+    }
+
+    private static int readShort(byte[] code, int offset) {
+        return ((code[offset] & 0xff) << 8) | (code[offset + 1] & 0xff);
+    }
+
+    private static int readInt(byte[] code, int offset) {
+        return (readShort(code, offset) << 16) | readShort(code, offset + 2);
+    }
+
+    // Puts a value from outside the stack into a slot, unboxing numbers.
+    private void push(int slot, Object value) {
+        if (value instanceof Double) {
+            stack[slot] = NUMBER;
+            numbers[slot] = (double)value;
+        } else {
+            stack[slot] = value;
+        }
+    }
+
+    // Reads a slot as a value that can leave the stack, boxing numbers.
+    private Object value(int slot) {
+        if (stack[slot] == NUMBER) {
+            return numbers[slot];
+        }
+        return stack[slot];
+    }
+
+    private boolean isEqual(int left, int right) {
+        if (stack[left] == NUMBER && stack[right] == NUMBER) {
+            // Same as Double.equals: NaN equals itself, 0 and -0 differ.
+            return Double.doubleToLongBits(numbers[left]) == Double.doubleToLongBits(numbers[right]);
+        }
+        return Interpreter.isEqual(stack[left], stack[right]);
+    }
+
+    private void checkNumberOperands(CompiledFunction function, int offset, int left, int right) {
+        if (stack[left] == NUMBER && stack[right] == NUMBER) return;
+        throw new Interpreter.RuntimeError(function.chunk.tokens[offset],
+                "Operand must be a number.");
+    }
+
+    private void ensureStack(int size) {
+        if (size > stack.length) {
+            int length = Math.max(size, stack.length * 2);
+            stack = Arrays.copyOf(stack, length);
+            numbers = Arrays.copyOf(numbers, length);
+        }
+    }
+
+    private void growFrames() {
+        int size = frameIps.length * 2;
+        frameFunctions = Arrays.copyOf(frameFunctions, size);
+        frameIps = Arrays.copyOf(frameIps, size);
+        frameBases = Arrays.copyOf(frameBases, size);
+    }
+}
@@ -0,0 +1,141 @@
+package com.superestos;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.TestFactory;
+
+/**
+ * Runs every script in test/lox through each engine, with and without
+ * --optimize, and checks that stdout, stderr and the exit code are the
+ * same as the script's .expected file, which the tree walker wrote. Every
+ * engine giving the same output as the tree walker is what lets them be
+ * chosen by a flag.
+ *
+ * Each run is a separate JVM running Main, since Main keeps its
+ * interpreter, reporter and exit code in statics. A script can leave an
+ * engine out with a line such as '// skip: --vm'.
+ *
+ * Run with -Dlox.recordExpected=true to rewrite the .expected files from
+ * the tree walker after a deliberate change in behavior.
+ */
+class EngineEquivalenceTest {
+    private static final Path SCRIPTS = Paths.get("test", "lox");
+    private static final long TIMEOUT_SECONDS = 120;
+
+    private static final class Engine {
+        final String name;
+        final List<String> jvmOptions;
+        final List<String> options;
+
+        Engine(String name, List<String> jvmOptions, List<String> options) {
+            this.name = name;
+            this.jvmOptions = jvmOptions;
+            this.options = options;
+        }
+    }
+
+    // The first is the one .expected files are recorded with.
+    private static final List<Engine> ENGINES = List.of(
+            new Engine("tree walker", List.of(), List.of()),
+            new Engine("tree walker, Jit on every call", List.of("-Dlox.jitThreshold=1"), List.of()),
+            new Engine("tree walker --optimize", List.of(), List.of("--optimize")),
+            new Engine("--closures", List.of(), List.of("--closures")),
+            new Engine("--closures --optimize", List.of(), List.of("--closures", "--optimize")),
+            new Engine("--vm", List.of(), List.of("--vm")),
+            new Engine("--vm --optimize", List.of(), List.of("--vm", "--optimize")));
+
+    @TestFactory
+    Stream<DynamicTest> scripts() throws IOException {
+        List<Path> scripts = new ArrayList<>();
+        try (Stream<Path> files = Files.list(SCRIPTS)) {
+            files.filter(file -> file.toString().endsWith(".lox")).sorted().forEach(scripts::add);
+        }
+        assertFalse(scripts.isEmpty(), "No scripts in " + SCRIPTS.toAbsolutePath());
+
+        return scripts.stream().map(script ->
+                DynamicTest.dynamicTest(script.getFileName().toString(), () -> check(script)));
+    }
+
+    private static void check(Path script) throws Exception {
+        String source = Files.readString(script, StandardCharsets.UTF_8);
+        Path expectedFile = Paths.get(script.toString().replaceFirst("\\.lox$", ".expected"));
+
+        if (Boolean.getBoolean("lox.recordExpected")) {
+            Files.writeString(expectedFile, run(ENGINES.get(0), script), StandardCharsets.UTF_8);
+            return;
+        }
+
+        assertTrue(Files.exists(expectedFile), "Missing " + expectedFile);
+        String expected = Files.readString(expectedFile, StandardCharsets.UTF_8);
+        for (Engine engine: ENGINES) {
+            if (skips(source, engine)) {
+                continue;
+            }
+            assertEquals(expected, run(engine, script), script.getFileName() + " on " + engine.name);
+        }
+    }
+
+    private static boolean skips(String source, Engine engine) {
+        for (String line: source.split("\n")) {
+            if (line.startsWith("// skip:")) {
+                for (String option: engine.options) {
+                    if (line.contains(option)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    // Everything a run shows: stdout, then stderr, then the exit code.
+    private static String run(Engine engine, Path script) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        // Scripts and .expected files are UTF-8 whatever the machine's locale.
+        command.add("-Dfile.encoding=UTF-8");
+        command.addAll(engine.jvmOptions);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Main.class.getName());
+        command.add("--no-cache");
+        command.addAll(engine.options);
+        command.add(script.toString());
+
+        File stdout = File.createTempFile("lox", ".out");
+        File stderr = File.createTempFile("lox", ".err");
+        try {
+            Process process = new ProcessBuilder(command)
+                    .redirectOutput(stdout)
+                    .redirectError(stderr)
+                    .start();
+            if (!process.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                throw new AssertionError(script.getFileName() + " on " + engine.name + " timed out.");
+            }
+
+            return read(stdout) + "--- stderr\n" + read(stderr) + "--- exit " + process.exitValue() + "\n";
+        } finally {
+            stdout.delete();
+            stderr.delete();
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        return Files.readString(file.toPath(), StandardCharsets.UTF_8).replace("\r\n", "\n");
+    }
+}